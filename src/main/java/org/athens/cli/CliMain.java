@@ -113,11 +113,17 @@ public class CliMain {
                             case "bool":
                                 cacheBox.put(inputKey, CacheValue.of(0, Boolean.parseBoolean(inputValue)));
                                 break;
+                            case "long":
+                                cacheBox.put(inputKey, CacheValue.of(0, Long.parseLong(inputValue)));
+                                break;
+                            case "double":
+                                cacheBox.put(inputKey, CacheValue.of(0, Double.parseDouble(inputValue)));
+                                break;
                             case "list":
                                 cacheBox.put(inputKey, CacheValue.of(0, Arrays.asList(inputValue.split(","))));
                                 break;
                             default:
-                                System.out.println("Unknown type. Use: string, int, bool, or list");
+                                System.out.println("Unknown type. Use: string, int, long, double, bool, or list");
                                 break;
                         }
                         System.out.println("Value staged successfully (uncommitted).");
@@ -386,7 +392,7 @@ public class CliMain {
         System.out.println("commit, -c - Commit the current transaction");
         System.out.println("rollback, -r - Roll back the current transaction");
         System.out.println("put, -p <type> <key> <value> - Stage a value of the specified type");
-        System.out.println("  Types: string, int, bool, list");
+        System.out.println("  Types: string, int, long, double, bool, list");
         System.out.println("  Example: put string name John");
         System.out.println("  Example: put int age 25");
         System.out.println("  Example: put bool active true");
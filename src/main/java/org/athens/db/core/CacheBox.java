@@ -1,19 +1,39 @@
 package org.athens.db.core;
 
 import org.athens.db.encryption.AESEncryptionStrategy;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.db.storage.Durability;
 import org.athens.utils.CacheQuery;
 import org.athens.utils.CacheValue;
 import org.athens.db.encryption.EncryptionStrategy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 public class CacheBox {
-    private final LRUCache<String, CacheValue> cache;
-    private final ConcurrentHashMap<String, String> keyIndex = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, Integer> valueIndex = new ConcurrentHashMap<>();
+    private static final Logger logger = LoggerFactory.getLogger(CacheBox.class);
+    private final MvccStore cache;
+    // Committed keys in order, so a pattern with a literal prefix scans only that range
+    private final ConcurrentSkipListSet<String> keyIndex = new ConcurrentSkipListSet<>();
+    // Numeric values in value order, for range queries
+    private final SortedValueIndex valueIndex = new SortedValueIndex();
     private final Storage storage;
     private final TransactionManager transactionManager;
     private EncryptionStrategy encryptionStrategy;
@@ -21,18 +41,49 @@ public class CacheBox {
 
     private boolean encryptionEnabled;
     private byte[] encryptionKey;
+    private volatile Durability durability = Durability.ALWAYS;
+    // The log entry of the transaction between prepareCommit and commitPrepared; only
+    // touched while the commit lock is held, though not always by the thread holding it
+    private Storage.PreparedBatch prepared;
 
     public CacheBox(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy, int maxSize) {
+        this(dbFile, encryptionEnabled, encryptionKey, encryptionStrategy, maxSize, EvictionPolicy.LRU);
+    }
+
+    public CacheBox(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy, int maxSize,
+                    EvictionPolicy evictionPolicy) {
+        this(dbFile, encryptionEnabled, encryptionKey, encryptionStrategy, maxSize, evictionPolicy, false);
+    }
+
+    /**
+     * @param offHeapValues whether to keep values serialized outside the Java
+     * heap, which spares the garbage collector at the cost of decoding them on
+     * every read
+     */
+    public CacheBox(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy, int maxSize,
+                    EvictionPolicy evictionPolicy, boolean offHeapValues) {
+        this(dbFile, encryptionEnabled, encryptionKey, encryptionStrategy, maxSize, evictionPolicy, offHeapValues,
+                txId -> false);
+    }
+
+    /**
+     * @param committedTransactions tells recovery whether a transaction
+     * spanning several stores, which this store may have prepared with
+     * {@link #prepareCommit}, was committed
+     */
+    public CacheBox(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy, int maxSize,
+                    EvictionPolicy evictionPolicy, boolean offHeapValues, LongPredicate committedTransactions) {
         this.dbFile = dbFile;
         this.storage = new Storage(dbFile, encryptionEnabled, encryptionKey, encryptionStrategy);
-        this.cache = new LRUCache<>(maxSize);
+        this.cache = new MvccStore(maxSize, evictionPolicy, storage.getColdTier(),
+                offHeapValues ? new OffHeapValueStore() : null);
         this.transactionManager = new TransactionManager(cache);
         this.encryptionEnabled = encryptionEnabled;
         this.encryptionKey = encryptionKey;
         this.encryptionStrategy = encryptionStrategy;
 
-        storage.loadWithRecovery(cache);
-        initializeIndexes();
+        storage.setLiveKeyCount(cache::getLiveKeyCount);
+        storage.loadWithRecovery(this::applyRecovered, committedTransactions);
     }
 
     public CacheBox(String dbFile, int maxSize) {
@@ -40,31 +91,33 @@ public class CacheBox {
         byte[] key = new SecureRandom().generateSeed(16);
         EncryptionStrategy strategy = new AESEncryptionStrategy();
         this.storage = new Storage(dbFile, true, key, strategy);
-        this.cache = new LRUCache<>(maxSize);
+        this.cache = new MvccStore(maxSize, EvictionPolicy.LRU, storage.getColdTier());
         this.transactionManager = new TransactionManager(cache);
         this.encryptionEnabled = true;
         this.encryptionKey = key;
         this.encryptionStrategy = strategy;
-        storage.loadWithRecovery(cache);
-        initializeIndexes();
+        storage.setLiveKeyCount(cache::getLiveKeyCount);
+        storage.loadWithRecovery(this::applyRecovered);
     }
 
-    private void initializeIndexes() {
-        for (Map.Entry<String, CacheValue> entry : cache.entrySet()) {
-            updateIndexes(entry.getKey(), entry.getValue());
+    // Recovery feeds the cache and the indexes in the same pass
+    private void applyRecovered(String key, CacheValue value) {
+        cache.load(key, value);
+        if (value == null) {
+            removeIndexes(key);
+        } else {
+            updateIndexes(key, value);
         }
     }
 
     public void put(String key, CacheValue value) {
         transactionManager.getActiveTransaction().put(key, value);
-        updateIndexes(key, value);
     }
 
+    // The indexes cover committed state only; they change when a commit is installed
     private void updateIndexes(String key, CacheValue value) {
-        keyIndex.put(key, key);
-        if (value.getType() == CacheValue.Type.INTEGER) {
-            valueIndex.put(key, (Integer) value.getValue());
-        }
+        keyIndex.add(key);
+        valueIndex.put(key, value);
     }
 
     public CacheValue get(String key) {
@@ -73,7 +126,6 @@ public class CacheBox {
 
     public void delete(String key) {
         transactionManager.getActiveTransaction().delete(key);
-        removeIndexes(key);
     }
 
     private void removeIndexes(String key) {
@@ -81,9 +133,213 @@ public class CacheBox {
         valueIndex.remove(key);
     }
 
+    /**
+     * Commits the active transaction.
+     *
+     * @throws org.athens.exceptions.ConcurrencyException if it conflicts with a
+     * commit since it began; nothing is committed
+     * @throws IllegalStateException if the store stopped taking commits after a
+     * write failure; nothing is committed
+     * @throws org.athens.exceptions.CommitNotDurableException if writing the
+     * commit failed after it was installed
+     */
     public void commit() {
-        transactionManager.commit();
-        storage.saveToDisk(cache);
+        Durability commitDurability = commitDurability();
+        CompletableFuture<Void> durable;
+        storage.getCommitLock().lock();
+        try {
+            storage.checkWritable();
+            ChangeSet changes = transactionManager.commit();
+            applyIndexes(changes);
+            durable = storage.append(changes, commitDurability);
+        } finally {
+            storage.getCommitLock().unlock();
+        }
+        if (commitDurability == Durability.ALWAYS) {
+            storage.awaitDurable(durable);
+        }
+    }
+
+    private Durability commitDurability() {
+        if (transactionManager.isTransactionActive() && transactionManager.getActiveTransaction().getDurability() != null) {
+            return transactionManager.getActiveTransaction().getDurability();
+        }
+        return durability;
+    }
+
+    /**
+     * @return whether the active transaction has written or deleted anything
+     */
+    public boolean hasStagedChanges() {
+        return transactionManager.isTransactionActive() && transactionManager.getActiveTransaction().hasChanges();
+    }
+
+    /**
+     * First phase of a commit spanning several stores: takes this store's
+     * commit lock, checks that the active transaction would commit, and logs
+     * it marked with {@code txId} without installing it. Recovery replays the
+     * entry only if the caller then records its decision to commit
+     * {@code txId} where {@code committedTransactions} can find it.
+     * <p>
+     * On success the lock stays held by the calling thread, so nothing can
+     * invalidate the check, until it calls {@link #commitPrepared} or
+     * {@link #abortPrepared}. On a conflict the lock is released and the
+     * transaction left active for the caller to roll back. Callers preparing
+     * several stores must do so in one fixed order to avoid deadlocks.
+     *
+     * @return completes with the LSN of the entry once it is on disk, which
+     * it must be before the decision is recorded
+     * @throws org.athens.exceptions.ConcurrencyException if the transaction
+     * conflicts with a commit since it began
+     */
+    public CompletableFuture<Long> prepareCommit(long txId) {
+        storage.getCommitLock().lock();
+        try {
+            return prepareLocked(transactionManager.getActiveTransaction(), txId);
+        } catch (RuntimeException e) {
+            storage.getCommitLock().unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * {@link #prepareCommit} in two steps, so that a caller preparing several
+     * stores can lock them all in order first and then check and log them in
+     * parallel: takes the commit lock on the calling thread and returns the
+     * rest, which may run on any thread while the lock is held.
+     * <p>
+     * The calling thread keeps the lock and the transaction whatever the
+     * returned step does, and must end both with {@link #commitPrepared} or
+     * {@link #abortPrepared}.
+     */
+    public Supplier<CompletableFuture<Long>> lockForPrepare(long txId) {
+        storage.getCommitLock().lock();
+        try {
+            Transaction transaction = transactionManager.getActiveTransaction();
+            return () -> prepareLocked(transaction, txId);
+        } catch (RuntimeException e) {
+            storage.getCommitLock().unlock();
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Long> prepareLocked(Transaction transaction, long txId) {
+        storage.checkWritable();
+        ChangeSet changes = transaction.prepare();
+        Storage.PreparedBatch batch = storage.logPrepared(changes, txId);
+        prepared = batch;
+        long lsn = batch.lsn();
+        return batch.durable().thenApply(ignored -> lsn);
+    }
+
+    /**
+     * Second phase, once the decision to commit is recorded: installs the
+     * transaction prepared by {@link #prepareCommit}, appends it to the
+     * segments and releases the commit lock.
+     * <p>
+     * The commit is durable by then, so this does not fail: if the append
+     * does, the store stops taking commits and recovery replays the commit
+     * from the log.
+     */
+    public void commitPrepared() {
+        try {
+            applyIndexes(transactionManager.commitPrepared());
+            storage.appendPrepared(prepared);
+        } catch (IOException | RuntimeException e) {
+            storage.fail(e);
+            logger.error("Failed to apply a committed transaction to {}; it takes no more commits", dbFile, e);
+        } finally {
+            prepared = null;
+            storage.getCommitLock().unlock();
+        }
+    }
+
+    /**
+     * Rolls back a transaction prepared by {@link #prepareCommit} and releases
+     * the commit lock. Its log entry stays, and recovery skips it.
+     */
+    public void abortPrepared() {
+        try {
+            transactionManager.rollback();
+        } finally {
+            prepared = null;
+            storage.getCommitLock().unlock();
+        }
+    }
+
+    /**
+     * @return the latest committed value of {@code key}, read without a
+     * transaction
+     */
+    public CacheValue getCommitted(String key) {
+        return cache.get(key);
+    }
+
+    /**
+     * @return whether {@link #getCommitted} would answer from memory right
+     * now, rather than from the cold tier's files
+     */
+    public boolean isReadableFromMemory(String key) {
+        return cache.isReadableFromMemory(key);
+    }
+
+    /**
+     * Writes {@code key} as a transaction of its own, without staging it in
+     * the caller's transaction if there is one.
+     */
+    public void putAndCommit(String key, CacheValue value) {
+        commitSingle(key, value);
+    }
+
+    /**
+     * Deletes {@code key} as a transaction of its own.
+     *
+     * @return whether the key existed
+     */
+    public boolean deleteAndCommit(String key) {
+        return commitSingle(key, null);
+    }
+
+    // One key cannot conflict with itself, and the commit lock keeps other commits out meanwhile
+    private boolean commitSingle(String key, CacheValue value) {
+        Durability commitDurability = durability;
+        CompletableFuture<Void> durable;
+        storage.getCommitLock().lock();
+        try {
+            storage.checkWritable();
+            if (value == null && cache.peek(key) == null) {
+                return false;
+            }
+            Map<String, CacheValue> applied;
+            MvccStore.Snapshot snapshot = cache.openSnapshot();
+            try {
+                applied = value != null
+                        ? cache.commit(snapshot, Map.of(key, value), Set.of())
+                        : cache.commit(snapshot, Map.of(), Set.of(key));
+            } finally {
+                snapshot.close();
+            }
+            ChangeSet changes = new ChangeSet(TxIdManager.getInstance().getNextTxId(), applied,
+                    value != null ? Set.of() : Set.of(key));
+            applyIndexes(changes);
+            durable = storage.append(changes, commitDurability);
+        } finally {
+            storage.getCommitLock().unlock();
+        }
+        if (commitDurability == Durability.ALWAYS) {
+            storage.awaitDurable(durable);
+        }
+        return true;
+    }
+
+    // Runs under the commit lock, so index updates are applied in commit order
+    private void applyIndexes(ChangeSet changes) {
+        for (String key : changes.getDeletions()) {
+            removeIndexes(key);
+        }
+        for (Map.Entry<String, CacheValue> entry : changes.getPuts().entrySet()) {
+            updateIndexes(entry.getKey(), entry.getValue());
+        }
     }
 
     public void rollback() {
@@ -94,6 +350,46 @@ public class CacheBox {
         transactionManager.beginTransaction();
     }
 
+    /**
+     * Begins a transaction whose commit uses {@code durability} instead of the
+     * store's setting.
+     */
+    public void beginTransaction(Durability durability) {
+        transactionManager.beginTransaction(durability);
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return cache.getEvictionPolicy();
+    }
+
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        cache.setEvictionPolicy(evictionPolicy);
+    }
+
+    /**
+     * @return the budget this shard's estimated footprint is charged to, with
+     * its usage and eviction counts
+     */
+    public MemoryBudget getMemoryBudget() {
+        return cache.getMemoryBudget();
+    }
+
+    /**
+     * Limits the estimated footprint of the committed state, in bytes, on top
+     * of the entry count limit.
+     */
+    public void setMaxMemory(long maxBytes) {
+        cache.getMemoryBudget().setMaxBytes(maxBytes);
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
     public boolean isTransactionActive() {
         return transactionManager.isTransactionActive();
     }
@@ -106,33 +402,99 @@ public class CacheBox {
     }
 
     public Map<String, CacheValue> getCommittedState() {
-        return new HashMap<>(cache);
+        return cache.toMap();
     }
 
     public Map<String, CacheValue> searchCommitted(CacheQuery query) {
         Map<String, CacheValue> results = new HashMap<>();
 
         if (query.getPattern() != null) {
-            for (String indexedKey : keyIndex.keySet()) {
-                if (indexedKey.matches(query.getPattern())) {
-                    results.put(indexedKey, cache.get(indexedKey));
+            Matcher matcher = query.getCompiledPattern().matcher("");
+            String prefix = query.getLiteralPrefix();
+            for (String indexedKey : keyIndex.tailSet(prefix)) {
+                if (!indexedKey.startsWith(prefix)) {
+                    break;
+                }
+                if (matcher.reset(indexedKey).matches()) {
+                    putIfPresent(results, indexedKey);
                 }
             }
         }
 
         if (query.getMinValue() != null || query.getMaxValue() != null) {
-            for (Map.Entry<String, Integer> entry : valueIndex.entrySet()) {
-                Integer intValue = entry.getValue();
-                if ((query.getMinValue() == null || intValue >= query.getMinValue()) &&
-                        (query.getMaxValue() == null || intValue <= query.getMaxValue())) {
-                    results.put(entry.getKey(), cache.get(entry.getKey()));
-                }
+            double min = query.getMinValue() != null ? query.getMinValue() : Double.NEGATIVE_INFINITY;
+            double max = query.getMaxValue() != null ? query.getMaxValue() : Double.POSITIVE_INFINITY;
+            for (String key : valueIndex.keysBetween(min, max)) {
+                putIfPresent(results, key);
             }
         }
 
         return results;
     }
 
+    // Keys deleted since the index was read have no value any more
+    private void putIfPresent(Map<String, CacheValue> results, String key) {
+        CacheValue value = cache.peek(key);
+        if (value != null) {
+            results.put(key, value);
+        }
+    }
+
+    /**
+     * Streams the committed entries {@link #searchCommitted} would return, in
+     * ascending key order and without collecting them first.
+     * <p>
+     * A pattern alone is walked lazily from the key index, with values read
+     * as they are reached, so a caller that stops early pays only for what it
+     * took; a literal prefix narrows the walk to the keys sharing it. A range
+     * is looked up in the value index instead, and its matches, together with
+     * those of a pattern next to it, are sorted by key before the first one is
+     * returned: that costs in proportion to the matches, not to every key.
+     *
+     * @param after the key to resume after, or {@code null} to start from the
+     * beginning
+     */
+    public Stream<Map.Entry<String, CacheValue>> streamCommitted(CacheQuery query, String after) {
+        boolean byRange = query.getMinValue() != null || query.getMaxValue() != null;
+        double min = query.getMinValue() != null ? query.getMinValue() : Double.NEGATIVE_INFINITY;
+        double max = query.getMaxValue() != null ? query.getMaxValue() : Double.POSITIVE_INFINITY;
+        Matcher matcher = query.getPattern() != null ? query.getCompiledPattern().matcher("") : null;
+        String prefix = matcher != null ? query.getLiteralPrefix() : "";
+
+        Stream<String> keys;
+        if (byRange) {
+            TreeSet<String> matches = new TreeSet<>();
+            for (String key : valueIndex.keysBetween(min, max)) {
+                if (after == null || key.compareTo(after) > 0) {
+                    matches.add(key);
+                }
+            }
+            if (matcher != null) {
+                patternKeys(prefix, after).filter(key -> matcher.reset(key).matches()).forEach(matches::add);
+            }
+            keys = matches.stream();
+        } else if (matcher != null) {
+            keys = patternKeys(prefix, after).filter(key -> matcher.reset(key).matches());
+        } else {
+            return Stream.empty();
+        }
+        return keys
+                .map(key -> {
+                    CacheValue value = cache.peek(key);
+                    // Deleted since the index was read
+                    return value != null ? Map.entry(key, value) : null;
+                })
+                .filter(Objects::nonNull);
+    }
+
+    // The indexed keys starting with prefix, after the given key if any, in order
+    private Stream<String> patternKeys(String prefix, String after) {
+        NavigableSet<String> keys = after != null && after.compareTo(prefix) >= 0
+                ? keyIndex.tailSet(after, false)
+                : keyIndex.tailSet(prefix, true);
+        return keys.stream().takeWhile(key -> key.startsWith(prefix));
+    }
+
     public Map<String, CacheValue> searchStaged(CacheQuery query) {
         if (!isTransactionActive()) {
             throw new IllegalStateException("No active transaction.");
@@ -167,6 +529,12 @@ public class CacheBox {
         return results;
     }
 
+    // The bounds are ints, so comparing as doubles is exact even for large longs
+    private static boolean inRange(CacheValue value, double min, double max) {
+        double number = value.doubleValue();
+        return number >= min && number <= max;
+    }
+
     private boolean matchesQuery(String key, CacheValue value, CacheQuery query) {
         // Type filter
         if (query.getTypeFilter() != null && value.getType() != query.getTypeFilter()) {
@@ -175,22 +543,21 @@ public class CacheBox {
 
         // Pattern matching for key or string value
         if (query.getPattern() != null) {
-            if (key.matches(query.getPattern())) {
+            Pattern pattern = query.getCompiledPattern();
+            if (pattern.matcher(key).matches()) {
                 return true;
             }
             if (value.getType() == CacheValue.Type.STRING &&
-                    value.getValue().toString().matches(query.getPattern())) {
+                    pattern.matcher(value.asString()).matches()) {
                 return true;
             }
         }
 
-        // Range queries for integer values
-        if (value.getType() == CacheValue.Type.INTEGER) {
-            Integer intValue = (Integer) value.getValue();
-            if (query.getMinValue() != null && intValue < query.getMinValue()) {
-                return false;
-            }
-            if (query.getMaxValue() != null && intValue > query.getMaxValue()) {
+        // Range queries for numeric values
+        if (value.isNumeric()) {
+            double min = query.getMinValue() != null ? query.getMinValue() : Double.NEGATIVE_INFINITY;
+            double max = query.getMaxValue() != null ? query.getMaxValue() : Double.POSITIVE_INFINITY;
+            if (!inRange(value, min, max)) {
                 return false;
             }
         }
@@ -215,7 +582,7 @@ public class CacheBox {
     }
 
 
-    public Map<String, CacheValue> getGlobalStore() {
+    public MvccStore getGlobalStore() {
         return cache;
     }
 
@@ -0,0 +1,43 @@
+package org.athens.db.core;
+
+import org.athens.utils.CacheValue;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The keys a single commit wrote or deleted, with the final versioned values
+ * that were installed in the global store.
+ */
+public class ChangeSet {
+    private final long txId;
+    private final Map<String, CacheValue> puts;
+    private final Set<String> deletions;
+
+    public ChangeSet(long txId, Map<String, CacheValue> puts, Set<String> deletions) {
+        this.txId = txId;
+        this.puts = puts;
+        this.deletions = deletions;
+    }
+
+    public static ChangeSet empty() {
+        return new ChangeSet(0, Collections.emptyMap(), Collections.emptySet());
+    }
+
+    public long getTxId() {
+        return txId;
+    }
+
+    public Map<String, CacheValue> getPuts() {
+        return puts;
+    }
+
+    public Set<String> getDeletions() {
+        return deletions;
+    }
+
+    public boolean isEmpty() {
+        return puts.isEmpty() && deletions.isEmpty();
+    }
+}
@@ -1,17 +1,320 @@
 package org.athens.db.core;
-import java.util.LinkedHashMap;
-import java.util.Map;
 
-public class LRUCache<K, V> extends LinkedHashMap<K, V> {
+import org.athens.db.eviction.EvictingMap;
+import org.athens.db.eviction.EvictionListener;
+import org.athens.db.eviction.MemoryBudget;
+import org.athens.db.eviction.Weigher;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe map that evicts its least recently used entries once it holds
+ * more than {@code maxSize} of them, or once the entries weighed by its
+ * {@link Weigher} exceed its {@link MemoryBudget}.
+ * <p>
+ * Entries live in a {@link ConcurrentHashMap}, so reads never take a lock.
+ * Instead of reordering the LRU list, a read records the entry in one of
+ * several small ring buffers, picked by thread. Whoever fills a buffer, or
+ * inserts or removes a key, drains the buffers into the list under the
+ * eviction lock and evicts in the same pass, so reordering and eviction are
+ * done in batches. When a buffer is full and the lock is busy the read is
+ * simply not recorded, which only makes the LRU order approximate.
+ */
+public class LRUCache<K, V> extends AbstractMap<K, V> implements EvictingMap<K, V> {
+    private static final int BUFFER_SIZE = 32;
+    private static final int BUFFER_COUNT = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1) << 1;
+
     private final int maxSize;
+    private final Weigher<? super K, ? super V> weigher;
+    private final MemoryBudget budget;
+    private final EvictionListener<? super K, ? super V> listener;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReadBuffer<K, V>[] readBuffers;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // The LRU list, least recently used first; guarded by evictionLock
+    private Node<K, V> head;
+    private Node<K, V> tail;
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile int weight;
+        // Guarded by evictionLock
+        private Node<K, V> previous;
+        private Node<K, V> next;
+        private boolean linked;
+        private boolean removed;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private static final class ReadBuffer<K, V> {
+        private final AtomicReferenceArray<Node<K, V>> slots = new AtomicReferenceArray<>(BUFFER_SIZE);
+        private final AtomicInteger writeIndex = new AtomicInteger();
+    }
 
     public LRUCache(int maxSize) {
-        super(maxSize, 0.75f, true);
+        this(maxSize, null, MemoryBudget.unlimited());
+    }
+
+    public LRUCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget) {
+        this(maxSize, weigher, budget, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    public LRUCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget,
+                    EvictionListener<? super K, ? super V> listener) {
         this.maxSize = maxSize;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.listener = listener;
+        this.readBuffers = (ReadBuffer<K, V>[]) new ReadBuffer<?, ?>[BUFFER_COUNT];
+        for (int i = 0; i < BUFFER_COUNT; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V peek(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null ? node.value : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int weight = weigher != null ? weigher.weigh(key, value) : 0;
+        Node<K, V> created = new Node<>(key, value);
+        created.weight = weight;
+        // Replacing inside compute keeps a concurrent remove from swallowing the update
+        Object[] previous = new Object[1];
+        int[] weightDelta = {weight};
+        Node<K, V> node = data.compute(key, (k, existing) -> {
+            if (existing == null) {
+                return created;
+            }
+            previous[0] = existing.value;
+            existing.value = value;
+            weightDelta[0] = weight - existing.weight;
+            existing.weight = weight;
+            return existing;
+        });
+        budget.add(weightDelta[0]);
+        if (node != created) {
+            recordRead(node);
+            if (weightDelta[0] > 0 && budget.getExcessBytes() > 0) {
+                evictionLock.lock();
+                try {
+                    evict(node);
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            @SuppressWarnings("unchecked")
+            V replaced = (V) previous[0];
+            return replaced;
+        }
+        evictionLock.lock();
+        try {
+            drainReadBuffers();
+            if (!created.removed) {
+                link(created);
+            }
+            evict(created);
+        } finally {
+            evictionLock.unlock();
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        budget.add(-node.weight);
+        unlinkRemoved(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Node<K, V> node = data.get(key);
+        if (node == null || !Objects.equals(node.value, value) || !data.remove(key, node)) {
+            return false;
+        }
+        budget.add(-node.weight);
+        unlinkRemoved(node);
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return data.size();
     }
 
     @Override
-    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
-        return size() > maxSize;
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : data.values()) {
+                if (data.remove(node.key, node)) {
+                    node.removed = true;
+                    budget.add(-node.weight);
+                }
+            }
+            while (head != null) {
+                unlink(head);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                return new Iterator<>() {
+                    private Node<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = nodes.next();
+                        return new SimpleImmutableEntry<>(current.key, current.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        LRUCache.this.remove(current.key, current.value);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+
+    private void recordRead(Node<K, V> node) {
+        ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().threadId() & (BUFFER_COUNT - 1)];
+        int index = buffer.writeIndex.getAndIncrement();
+        if (index < BUFFER_SIZE) {
+            buffer.slots.lazySet(index, node);
+            return;
+        }
+        if (evictionLock.tryLock()) {
+            try {
+                drainReadBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Called with evictionLock held
+    private void drainReadBuffers() {
+        for (ReadBuffer<K, V> buffer : readBuffers) {
+            int count = Math.min(buffer.writeIndex.get(), BUFFER_SIZE);
+            for (int i = 0; i < count; i++) {
+                Node<K, V> node = buffer.slots.getAndSet(i, null);
+                if (node != null && node.linked) {
+                    unlink(node);
+                    link(node);
+                }
+            }
+            buffer.writeIndex.set(0);
+        }
+    }
+
+    private void unlinkRemoved(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            node.removed = true;
+            if (node.linked) {
+                unlink(node);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Stops short of the entry just written, which would otherwise go if the budget's parent is far over
+    private void evict(Node<K, V> written) {
+        while ((data.size() > maxSize || budget.getExcessBytes() > 0) && head != null && head != written) {
+            Node<K, V> eldest = head;
+            unlink(eldest);
+            eldest.removed = true;
+            if (data.remove(eldest.key, eldest)) {
+                budget.add(-eldest.weight);
+                budget.recordEviction(eldest.weight);
+                if (listener != null) {
+                    listener.onEviction(eldest.key, eldest.value);
+                }
+            }
+        }
+    }
+
+    private void link(Node<K, V> node) {
+        node.previous = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        node.linked = true;
+    }
+
+    private void unlink(Node<K, V> node) {
+        if (node.previous == null) {
+            head = node.next;
+        } else {
+            node.previous.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.previous;
+        } else {
+            node.next.previous = node.previous;
+        }
+        node.previous = null;
+        node.next = null;
+        node.linked = false;
     }
-}
\ No newline at end of file
+}
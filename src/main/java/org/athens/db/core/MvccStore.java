@@ -0,0 +1,672 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.EvictingMap;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
+import org.athens.db.eviction.Weigher;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.db.storage.ColdTier;
+import org.athens.exceptions.ConcurrencyException;
+import org.athens.utils.CacheValue;
+import org.athens.utils.MemoryEstimator;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The committed state of a store, kept as a short chain of versions per key.
+ * <p>
+ * Every commit is stamped with a commit timestamp and a {@link Snapshot} sees
+ * exactly the commits up to the timestamp it was opened at, so reads never lock
+ * and never see half of a commit. Commits are validated and installed under the
+ * store's lock; a commit that writes a key someone else committed after its
+ * snapshot was opened fails (first committer wins).
+ * <p>
+ * Versions that no open snapshot can see any more are unlinked by later
+ * commits, and keys whose newest version is an old delete are dropped. When the
+ * store holds more than {@code maxSize} keys, or their estimated footprint
+ * exceeds its {@link MemoryBudget}, the map holding the chains evicts keys
+ * according to the store's {@link EvictionPolicy}. A key is weighed by its
+ * newest version only; older ones are short-lived.
+ * <p>
+ * With a {@link ColdTier}, evicted keys are spilled to it with their newest
+ * value and read back into memory when they are next read, so eviction only
+ * decides what stays in memory. A snapshot that reads a key spilled while it
+ * was open sees the newest value, and a commit writing such a key conflicts if
+ * anything was spilled after its snapshot was opened.
+ * <p>
+ * With an {@link OffHeapValueStore}, values are kept serialized outside the
+ * heap and decoded on every read; only the chains and their handles stay on
+ * heap. Memory of versions that are unlinked, evicted or removed is freed at
+ * once, and a reader that loses the race against such a free reads again.
+ */
+public class MvccStore {
+    // Map node, chain and version objects around every key
+    private static final int ENTRY_OVERHEAD = 128;
+    // Returned by visible when an off-heap value was freed while we read it
+    private static final CacheValue STALE = CacheValue.ofNull(0);
+    // Returned by visible when it walked past every version still linked, which
+    // for a read at a timestamp no snapshot holds may be because the one it
+    // looked for was unlinked meanwhile
+    private static final CacheValue UNLINKED = CacheValue.ofNull(0);
+
+    private final int maxSize;
+    private final MemoryBudget memoryBudget = MemoryBudget.unlimited();
+    private final ColdTier coldTier;
+    private final OffHeapValueStore offHeap;
+    private final Weigher<String, VersionChain> weigher = this::weigh;
+    // Bumped under the lock whenever the cold tier changes, so that a key
+    // read from it is only brought back if it was not spilled or deleted since
+    private volatile long coldEpoch;
+    private volatile long lastSpilledTs;
+    private volatile EvictionPolicy evictionPolicy;
+    private volatile EvictingMap<String, VersionChain> chains;
+    private final ConcurrentLinkedQueue<Garbage> garbage = new ConcurrentLinkedQueue<>();
+    private final Set<Snapshot> openSnapshots = ConcurrentHashMap.newKeySet();
+    private final AtomicLong lastCommitTs = new AtomicLong();
+    // Not a monitor: eviction under it may wait for the cold tier's writer,
+    // which must not pin the carrier of a virtual thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // Keys with a committed value, in memory or spilled; changed under the lock
+    private final AtomicLong liveKeys = new AtomicLong();
+
+    /**
+     * A committed value and the timestamp of the commit that wrote it. The
+     * value is on heap, or off heap under {@code handle}; neither marks a
+     * delete.
+     */
+    private static final class Version {
+        private final long commitTs;
+        private final CacheValue value;
+        private final long handle;
+        private volatile Version previous;
+
+        Version(long commitTs, CacheValue value, long handle, Version previous) {
+            this.commitTs = commitTs;
+            this.value = value;
+            this.handle = handle;
+            this.previous = previous;
+        }
+
+        boolean isDelete() {
+            return value == null && handle == 0;
+        }
+    }
+
+    private static final class VersionChain {
+        private final String key;
+        private volatile Version head;
+        // The version the cold tier holds the value of, which need not be spilled again
+        private volatile Version spilled;
+
+        VersionChain(String key) {
+            this.key = key;
+        }
+    }
+
+    // A chain that holds versions the commit at commitTs made obsolete
+    private record Garbage(VersionChain chain, long commitTs) {
+    }
+
+    /**
+     * A consistent, read-only view of the store as of one commit timestamp.
+     * Must be closed so that the versions it can see may be reclaimed.
+     */
+    public final class Snapshot implements AutoCloseable {
+        // 0 until opened, which keeps every version alive in the meantime
+        private volatile long readTs;
+
+        private Snapshot() {
+        }
+
+        public long getReadTs() {
+            return readTs;
+        }
+
+        public CacheValue get(String key) {
+            // The versions an open snapshot can see are never unlinked, so the key did not exist yet
+            CacheValue value = read(key, readTs);
+            return value != UNLINKED ? value : null;
+        }
+
+        @Override
+        public void close() {
+            openSnapshots.remove(this);
+        }
+    }
+
+    public MvccStore(int maxSize) {
+        this(maxSize, EvictionPolicy.LRU);
+    }
+
+    public MvccStore(int maxSize, EvictionPolicy evictionPolicy) {
+        this(maxSize, evictionPolicy, null);
+    }
+
+    /**
+     * @param coldTier where evicted keys are spilled to, or {@code null} to
+     * drop them
+     */
+    public MvccStore(int maxSize, EvictionPolicy evictionPolicy, ColdTier coldTier) {
+        this(maxSize, evictionPolicy, coldTier, null);
+    }
+
+    /**
+     * @param offHeap where values are kept, or {@code null} to keep them on heap
+     */
+    public MvccStore(int maxSize, EvictionPolicy evictionPolicy, ColdTier coldTier, OffHeapValueStore offHeap) {
+        this.maxSize = maxSize;
+        this.evictionPolicy = evictionPolicy;
+        this.coldTier = coldTier;
+        this.offHeap = offHeap;
+        this.chains = newMap(evictionPolicy);
+    }
+
+    private EvictingMap<String, VersionChain> newMap(EvictionPolicy evictionPolicy) {
+        return evictionPolicy.newMap(maxSize, weigher, memoryBudget,
+                coldTier != null || offHeap != null ? this::evicted : null);
+    }
+
+    // Called by the map for every evicted chain. Maps only evict while they are written
+    // to, which is always under the lock
+    private void evicted(String key, VersionChain chain) {
+        Version head = chain.head;
+        if (head == null) {
+            return;
+        }
+        if (coldTier != null && head != chain.spilled) {
+            coldEpoch++;
+            lastSpilledTs = Math.max(lastSpilledTs, head.commitTs);
+            if (head.isDelete()) {
+                coldTier.delete(key);
+            } else {
+                coldTier.put(key, valueOf(head));
+            }
+        }
+        release(head);
+    }
+
+    private Version newVersion(long commitTs, CacheValue value, Version previous) {
+        if (offHeap != null && value != null) {
+            return new Version(commitTs, null, offHeap.store(value), previous);
+        }
+        return new Version(commitTs, value, 0, previous);
+    }
+
+    // Null for a delete, or if the off-heap value was freed while we read it
+    private CacheValue valueOf(Version version) {
+        return version.handle != 0 ? offHeap.read(version.handle) : version.value;
+    }
+
+    // Frees the off-heap values of version and everything older
+    private void release(Version version) {
+        if (offHeap == null) {
+            return;
+        }
+        for (; version != null; version = version.previous) {
+            if (version.handle != 0) {
+                offHeap.free(version.handle);
+            }
+        }
+    }
+
+    private int weigh(String key, VersionChain chain) {
+        Version head = chain.head;
+        long valueBytes = 0;
+        if (head != null && head.handle != 0) {
+            valueBytes = offHeap.capacity(head.handle);
+        } else if (head != null && head.value != null) {
+            valueBytes = head.value.estimatedBytes();
+        }
+        long bytes = ENTRY_OVERHEAD + MemoryEstimator.ofString(key) + valueBytes;
+        return (int) Math.min(Integer.MAX_VALUE, bytes);
+    }
+
+    /**
+     * @return the budget the estimated footprint of this store is charged to;
+     * unlimited unless configured
+     */
+    public MemoryBudget getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+
+    /**
+     * Moves every key into a map evicting by {@code evictionPolicy}. Commits
+     * wait for the move; readers keep using the old map until it is done.
+     */
+    public void setEvictionPolicy(EvictionPolicy evictionPolicy) {
+        lock.lock();
+        try {
+            if (evictionPolicy == this.evictionPolicy) {
+                return;
+            }
+            long weight = 0;
+            for (VersionChain chain : chains.values()) {
+                weight += weigh(chain.key, chain);
+            }
+            // The new map charges every chain again
+            memoryBudget.add(-weight);
+            EvictingMap<String, VersionChain> moved = newMap(evictionPolicy);
+            moved.putAll(chains);
+            this.chains = moved;
+            this.evictionPolicy = evictionPolicy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Snapshot openSnapshot() {
+        Snapshot snapshot = new Snapshot();
+        openSnapshots.add(snapshot);
+        snapshot.readTs = lastCommitTs.get();
+        return snapshot;
+    }
+
+    /**
+     * @return the latest committed value of {@code key}
+     */
+    public CacheValue get(String key) {
+        while (true) {
+            // Not a snapshot, so a commit may unlink what we read; then we read again at its timestamp
+            CacheValue value = read(key, lastCommitTs.get());
+            if (value != UNLINKED) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * @return whether a latest read of {@code key} would be answered from
+     * memory right now, without reading the cold tier's files or taking the
+     * store's lock; an eviction can change that at any moment
+     */
+    public boolean isReadableFromMemory(String key) {
+        return chains.peek(key) != null || coldTier == null || !coldTier.mightContain(key);
+    }
+
+    /**
+     * Like {@link #get}, but not counted as an access by the eviction policy,
+     * for scans that should not decide what stays cached.
+     */
+    public CacheValue peek(String key) {
+        while (true) {
+            VersionChain chain = chains.peek(key);
+            if (chain == null) {
+                if (coldTier == null) {
+                    return null;
+                }
+                boolean evicting = lock.isLocked();
+                CacheValue value = coldTier.get(key);
+                if (value != null || !evicting) {
+                    return value;
+                }
+                lock.lock();
+                try {
+                    if (chains.peek(key) == null) {
+                        return coldTier.get(key);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                continue;
+            }
+            CacheValue value = visible(chain, lastCommitTs.get());
+            if (value != STALE && value != UNLINKED) {
+                return value;
+            }
+        }
+    }
+
+    public boolean containsKey(String key) {
+        return get(key) != null;
+    }
+
+    private CacheValue read(String key, long readTs) {
+        while (true) {
+            VersionChain chain = chains.get(key);
+            CacheValue value;
+            if (chain != null) {
+                value = visible(chain, readTs);
+            } else if (coldTier != null) {
+                value = readCold(key, readTs);
+            } else {
+                return null;
+            }
+            if (value != STALE) {
+                return value;
+            }
+        }
+    }
+
+    // Reads a key that is not in memory from the cold tier and brings it back
+    private CacheValue readCold(String key, long readTs) {
+        // An eviction takes a key out of memory before spilling it, both under the lock.
+        // Unless the lock is held now, after the key was missed, any such spill is visible
+        boolean evicting = lock.isLocked();
+        while (true) {
+            long epoch = coldEpoch;
+            CacheValue value = coldTier.get(key);
+            if (value == null && !evicting) {
+                return null;
+            }
+            lock.lock();
+            try {
+                VersionChain chain = chains.peek(key);
+                if (chain != null) {
+                    return visible(chain, readTs);
+                }
+                if (value == null) {
+                    value = coldTier.get(key);
+                    if (value == null) {
+                        return null;
+                    }
+                } else if (coldEpoch != epoch) {
+                    continue;
+                }
+                chain = new VersionChain(key);
+                chain.head = newVersion(0, value, null);
+                chain.spilled = chain.head;
+                chains.put(key, chain);
+                return value;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private CacheValue visible(VersionChain chain, long readTs) {
+        for (Version version = chain.head; version != null; version = version.previous) {
+            if (version.commitTs <= readTs) {
+                if (version.isDelete()) {
+                    return null;
+                }
+                CacheValue value = valueOf(version);
+                return value != null ? value : STALE;
+            }
+        }
+        return chain.head != null ? UNLINKED : null;
+    }
+
+    /**
+     * Validates {@code puts} and {@code deletions} against {@code snapshot} and
+     * installs them as one commit. Values written with version 0 get the next
+     * version of their key.
+     *
+     * @return the values as installed
+     * @throws ConcurrencyException if another commit wrote one of the keys after
+     * the snapshot was opened
+     */
+    public Map<String, CacheValue> commit(Snapshot snapshot, Map<String, CacheValue> puts,
+                                          Collection<String> deletions) {
+        lock.lock();
+        try {
+            Prepared prepared = prepare(snapshot, puts, deletions);
+            install(prepared);
+            return prepared.puts();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A validated commit, with the versions of its puts set, that is not
+     * installed yet.
+     *
+     * @param created how many of the puts write keys without a committed value
+     */
+    public record Prepared(Map<String, CacheValue> puts, Set<String> deletions, int created) {
+    }
+
+    /**
+     * Validates a commit as {@link #commit} does and works out what it would
+     * install, without installing anything. The caller must keep other commits
+     * out until it has passed the result to {@link #install(Prepared)}.
+     *
+     * @throws ConcurrencyException if another commit wrote one of the keys after
+     * the snapshot was opened
+     */
+    public Prepared prepare(Snapshot snapshot, Map<String, CacheValue> puts,
+                            Collection<String> deletions) {
+        lock.lock();
+        try {
+            validate(snapshot, puts.keySet(), deletions);
+            Map<String, CacheValue> stamped = new HashMap<>();
+            int created = 0;
+            for (Map.Entry<String, CacheValue> entry : puts.entrySet()) {
+                VersionChain chain = chains.get(entry.getKey());
+                CacheValue current = chain != null && chain.head != null ? valueOf(chain.head)
+                        : chain == null && coldTier != null ? coldTier.get(entry.getKey()) : null;
+                if (current == null) {
+                    created++;
+                }
+                CacheValue newValue = entry.getValue();
+                int newVersion = current != null ? current.getVersion() + 1 : 1;
+                int finalVersion = newValue.getVersion() == 0 ? newVersion : newValue.getVersion();
+                stamped.put(entry.getKey(), newValue.withVersion(finalVersion));
+            }
+            return new Prepared(stamped, new HashSet<>(deletions), created);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Installs a prepared commit under the next timestamp. Nothing is checked
+     * again, so once prepared, a commit cannot fail here.
+     */
+    public void install(Prepared prepared) {
+        lock.lock();
+        try {
+            long commitTs = lastCommitTs.get() + 1;
+            for (String key : prepared.deletions()) {
+                VersionChain chain = chains.get(key);
+                // Transactions only stage deletes of keys they saw, so either branch removes a live key
+                if (chain == null && coldTier != null && coldTier.mightContain(key)) {
+                    // The tombstone deletes the key from the cold tier once collected or evicted
+                    install(chainFor(key), commitTs, null);
+                    liveKeys.decrementAndGet();
+                } else if (chain != null && chain.head != null && !chain.head.isDelete()) {
+                    install(chain, commitTs, null);
+                    liveKeys.decrementAndGet();
+                }
+            }
+            for (Map.Entry<String, CacheValue> entry : prepared.puts().entrySet()) {
+                install(chainFor(entry.getKey()), commitTs, entry.getValue());
+            }
+            liveKeys.addAndGet(prepared.created());
+            // Publishing the timestamp makes the whole commit visible at once
+            lastCommitTs.set(commitTs);
+            collectGarbage();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Checks that {@code keys} and {@code deletions} could be committed
+     * against {@code snapshot}, without installing anything.
+     *
+     * @throws ConcurrencyException if another commit wrote one of the keys after
+     * the snapshot was opened
+     */
+    public void validate(Snapshot snapshot, Collection<String> keys, Collection<String> deletions) {
+        lock.lock();
+        try {
+            long readTs = snapshot.readTs;
+            for (String key : deletions) {
+                checkConflict(key, readTs);
+            }
+            for (String key : keys) {
+                checkConflict(key, readTs);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkConflict(String key, long readTs) {
+        VersionChain chain = chains.peek(key);
+        Version head = chain != null ? chain.head : null;
+        if (head != null && head.commitTs > readTs) {
+            throw new ConcurrencyException("Conflict on key " + key);
+        }
+        if (chain == null && lastSpilledTs > readTs && coldTier.mightContain(key)) {
+            // A newer version may have been spilled; we cannot tell which
+            throw new ConcurrencyException("Conflict on key " + key);
+        }
+    }
+
+    // A new chain is only put once it has a head: an empty one would hide the
+    // key's spilled value from readers
+    private VersionChain chainFor(String key) {
+        VersionChain chain = chains.get(key);
+        return chain != null ? chain : new VersionChain(key);
+    }
+
+    private void install(VersionChain chain, long commitTs, CacheValue value) {
+        Version previous = chain.head;
+        chain.head = newVersion(commitTs, value, previous);
+        // Putting the chain again weighs its new head
+        chains.put(chain.key, chain);
+        if (previous != null || value == null) {
+            garbage.offer(new Garbage(chain, commitTs));
+        }
+    }
+
+    /**
+     * Sets the committed value of {@code key} during recovery, without keeping
+     * history. A {@code null} value removes the key.
+     */
+    public void load(String key, CacheValue value) {
+        lock.lock();
+        try {
+            boolean live = isLive(key);
+            if (live != (value != null)) {
+                liveKeys.addAndGet(live ? -1 : 1);
+            }
+            if (value == null) {
+                VersionChain removed = chains.remove(key);
+                if (removed != null) {
+                    release(removed.head);
+                }
+                dropCold(key);
+            } else {
+                VersionChain chain = chainFor(key);
+                Version replaced = chain.head;
+                chain.head = newVersion(lastCommitTs.get(), value, null);
+                chains.put(key, chain);
+                release(replaced);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Runs under the lock
+    private boolean isLive(String key) {
+        VersionChain chain = chains.peek(key);
+        if (chain != null) {
+            return chain.head != null && !chain.head.isDelete();
+        }
+        return coldTier != null && coldTier.get(key) != null;
+    }
+
+    // Runs under the lock, after the commit is published
+    private void collectGarbage() {
+        long oldestReadTs = lastCommitTs.get();
+        for (Snapshot snapshot : openSnapshots) {
+            oldestReadTs = Math.min(oldestReadTs, snapshot.readTs);
+        }
+        Garbage next;
+        while ((next = garbage.peek()) != null && next.commitTs() <= oldestReadTs) {
+            garbage.poll();
+            VersionChain chain = next.chain();
+            if (chains.peek(chain.key) != chain) {
+                continue;
+            }
+            Version version = chain.head;
+            while (version != null && version.commitTs > oldestReadTs) {
+                version = version.previous;
+            }
+            if (version == null) {
+                continue;
+            }
+            Version unlinked = version.previous;
+            version.previous = null;
+            release(unlinked);
+            if (version == chain.head && version.isDelete() && chains.remove(chain.key, chain)) {
+                dropCold(chain.key);
+            }
+        }
+    }
+
+    private void dropCold(String key) {
+        if (coldTier != null) {
+            coldEpoch++;
+            coldTier.delete(key);
+        }
+    }
+
+    /**
+     * @return a copy of the latest committed state, including what was spilled
+     * to the cold tier
+     */
+    public Map<String, CacheValue> toMap() {
+        long readTs = lastCommitTs.get();
+        Map<String, CacheValue> state = new HashMap<>();
+        if (coldTier != null) {
+            coldTier.copyTo(state);
+        }
+        for (VersionChain chain : chains.values()) {
+            CacheValue value = visible(chain, readTs);
+            if (value == STALE || value == UNLINKED) {
+                value = peek(chain.key);
+            }
+            if (value != null) {
+                state.put(chain.key, value);
+            } else {
+                state.remove(chain.key);
+            }
+        }
+        return state;
+    }
+
+    /**
+     * @return the number of keys held in memory, including recently deleted ones whose
+     * versions are still visible to an open snapshot
+     */
+    public int size() {
+        return chains.size();
+    }
+
+    /**
+     * @return where values are kept off heap, or {@code null} if they are on heap
+     */
+    public OffHeapValueStore getOffHeapStore() {
+        return offHeap;
+    }
+
+    /**
+     * @return the number of keys with a committed value, whether held in memory
+     * or spilled to the cold tier. Without a cold tier, keys evicted from memory
+     * are still counted, but are counted again if they are written again.
+     */
+    public long getLiveKeyCount() {
+        return liveKeys.get();
+    }
+
+    public long getLastCommitTs() {
+        return lastCommitTs.get();
+    }
+}
@@ -0,0 +1,81 @@
+package org.athens.db.core;
+
+import org.athens.db.storage.IoThrottle;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically folds the segments of a {@link Storage} into its snapshot once
+ * enough of the records on disk are superseded or deleted.
+ * <p>
+ * All stores share one background thread, so compactions never run in parallel,
+ * and each compaction reads and writes at most {@code maxBytesPerSecond}.
+ */
+public final class SegmentCompactor {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentCompactor.class);
+    public static final double DEFAULT_DEAD_RATIO_THRESHOLD = 0.5;
+    public static final long DEFAULT_MAX_BYTES_PER_SECOND = 16L * 1024 * 1024;
+    public static final long DEFAULT_MIN_RECORDS = 10_000;
+    private static final long CHECK_INTERVAL_SECONDS = 10;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Storage storage;
+    private volatile double deadRatioThreshold = DEFAULT_DEAD_RATIO_THRESHOLD;
+    private volatile long maxBytesPerSecond = DEFAULT_MAX_BYTES_PER_SECOND;
+    private volatile long minRecords = DEFAULT_MIN_RECORDS;
+    private final ScheduledFuture<?> task;
+
+    public SegmentCompactor(Storage storage) {
+        this.storage = storage;
+        this.task = executor.scheduleWithFixedDelay(this::compactIfNeeded,
+                CHECK_INTERVAL_SECONDS, CHECK_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compacts the store if at least {@code minRecords} records are on disk and
+     * the share of dead ones reached the threshold.
+     *
+     * @return whether a compaction ran
+     */
+    public boolean compactIfNeeded() {
+        try {
+            if (storage.getRecordCount() < minRecords || storage.getDeadRatio() < deadRatioThreshold) {
+                return false;
+            }
+            storage.compact(new IoThrottle(maxBytesPerSecond));
+            return true;
+        } catch (RuntimeException e) {
+            logger.error("Compaction failed", e);
+            return false;
+        }
+    }
+
+    public void setDeadRatioThreshold(double deadRatioThreshold) {
+        this.deadRatioThreshold = deadRatioThreshold;
+    }
+
+    /**
+     * @param maxBytesPerSecond the compaction I/O budget, or 0 for no limit
+     */
+    public void setMaxBytesPerSecond(long maxBytesPerSecond) {
+        this.maxBytesPerSecond = maxBytesPerSecond;
+    }
+
+    public void setMinRecords(long minRecords) {
+        this.minRecords = minRecords;
+    }
+
+    public void close() {
+        task.cancel(false);
+    }
+}
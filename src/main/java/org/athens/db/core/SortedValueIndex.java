@@ -0,0 +1,82 @@
+package org.athens.db.core;
+
+import org.athens.utils.CacheValue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * The keys of numeric values ordered by value, so that a range query walks only
+ * the keys it returns instead of every numeric entry.
+ * <p>
+ * Values are ordered as doubles, the way range queries compare them. Updates
+ * are expected to come from one writer at a time; lookups may run alongside
+ * them and see a key that is being moved under both its old and new value.
+ */
+public class SortedValueIndex {
+    private static final Comparator<Entry> ORDER = (a, b) -> {
+        int byNumber = Double.compare(a.number, b.number);
+        if (byNumber != 0) {
+            return byNumber;
+        }
+        // A null key only appears in the upper bound of a range and sorts after every key
+        if (a.key == null || b.key == null) {
+            return a.key == b.key ? 0 : a.key == null ? 1 : -1;
+        }
+        return a.key.compareTo(b.key);
+    };
+
+    private final ConcurrentSkipListSet<Entry> entries = new ConcurrentSkipListSet<>(ORDER);
+    private final ConcurrentHashMap<String, Entry> byKey = new ConcurrentHashMap<>();
+
+    private record Entry(double number, String key) {
+    }
+
+    /**
+     * Indexes {@code key} under {@code value}, or drops it if the value is not
+     * numeric.
+     */
+    public void put(String key, CacheValue value) {
+        if (!value.isNumeric()) {
+            remove(key);
+            return;
+        }
+        // Adding 0.0 turns -0.0 into 0.0, which Double.compare would otherwise put below it
+        Entry entry = new Entry(value.doubleValue() + 0.0, key);
+        Entry previous = byKey.put(key, entry);
+        // Add before removing so a concurrent lookup never misses the key
+        entries.add(entry);
+        if (previous != null && ORDER.compare(previous, entry) != 0) {
+            entries.remove(previous);
+        }
+    }
+
+    public void remove(String key) {
+        Entry previous = byKey.remove(key);
+        if (previous != null) {
+            entries.remove(previous);
+        }
+    }
+
+    /**
+     * @return the keys whose values lie between {@code min} and {@code max},
+     * both inclusive, in ascending order of value
+     */
+    public List<String> keysBetween(double min, double max) {
+        List<String> keys = new ArrayList<>();
+        if (Double.isNaN(min) || Double.isNaN(max) || min > max) {
+            return keys;
+        }
+        for (Entry entry : entries.subSet(new Entry(min + 0.0, ""), true, new Entry(max + 0.0, null), true)) {
+            keys.add(entry.key);
+        }
+        return keys;
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+}
@@ -1,62 +1,148 @@
 package org.athens.db.core;
 
+import org.athens.db.storage.ColdTier;
+import org.athens.db.storage.Durability;
+import org.athens.db.storage.IoThrottle;
+import org.athens.db.storage.ParallelRecordReader;
+import org.athens.db.storage.RecordCodec;
+import org.athens.db.storage.RecordVisitor;
+import org.athens.db.storage.SegmentLog;
+import org.athens.db.storage.ValueCodec;
+import org.athens.db.storage.WriteAheadLog;
+import org.athens.exceptions.CommitNotDurableException;
 import org.athens.utils.CacheValue;
 import org.athens.db.encryption.EncryptionStrategy;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
 
-public class Storage {
+public final class Storage implements WriteAheadLog.Participant {
     private final String dbFile;
     private boolean encryptionEnabled;
     private byte[] encryptionKey;
     private EncryptionStrategy encryptionStrategy;
+    private final ValueCodec valueCodec = new StorageValueCodec();
+    private final ParallelRecordReader recordReader = new ParallelRecordReader();
+    private final SegmentLog segmentLog;
+    private final WriteAheadLog writeAheadLog;
+    private final Lock commitLock = new ReentrantLock();
+    // One compaction at a time; held over throttled file I/O, so not a monitor
+    private final Lock compactionLock = new ReentrantLock();
+    private volatile long checkpointLsn;
+    // The first failed log or segment write; from then on nothing more is written
+    private volatile Throwable failure;
+    private final AtomicLong recordCount = new AtomicLong();
+    // Counted by the store that holds the keys; until one is set, nothing counts as dead
+    private volatile LongSupplier liveKeyCount = recordCount::get;
+    private final SegmentCompactor compactor;
+    private final ColdTier coldTier;
 
     public Storage(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy) {
+        this(dbFile, encryptionEnabled, encryptionKey, encryptionStrategy, SegmentLog.DEFAULT_MAX_SEGMENT_SIZE);
+    }
+
+    public Storage(String dbFile, boolean encryptionEnabled, byte[] encryptionKey, EncryptionStrategy encryptionStrategy, long maxSegmentSize) {
         this.dbFile = dbFile;
         this.encryptionEnabled = encryptionEnabled;
         this.encryptionKey = encryptionKey;
         this.encryptionStrategy = encryptionStrategy;
+        this.segmentLog = new SegmentLog(dbFile, maxSegmentSize, valueCodec, recordReader);
+        this.writeAheadLog = new WriteAheadLog(dbFile + ".wal", valueCodec, recordReader);
+        this.compactor = new SegmentCompactor(this);
+        this.coldTier = new ColdTier(dbFile, valueCodec, () -> this.encryptionEnabled);
     }
 
     public Map<String, CacheValue> loadFromDisk() {
         Map<String, CacheValue> store = new HashMap<>();
-        try (BufferedReader reader = new BufferedReader(new FileReader(dbFile))) {
+        loadSnapshot(store::put);
+        return store;
+    }
+
+    /**
+     * @return the LSN the snapshot was written at, or 0 if it carries none
+     */
+    private long loadSnapshot(RecordVisitor visitor) {
+        File file = new File(dbFile);
+        if (!file.exists()) {
+            createFileIfNotExists();
+            return 0;
+        }
+        try {
+            if (file.length() == 0) {
+                return 0;
+            }
+            if (!isBinary(file)) {
+                // Text snapshots from before the binary format are migrated on first load
+                Map<String, CacheValue> store = loadTextFormat(file);
+                saveToDisk(store);
+                store.forEach(visitor::visit);
+                return 0;
+            }
+            long[] snapshotLsn = {0};
+            boolean complete = recordReader.read(file.toPath(), valueCodec, (op, key, value, lsn, txId) -> {
+                if (op == RecordCodec.OP_PUT) {
+                    visitor.visit(key, value);
+                } else if (op == RecordCodec.OP_COMMIT) {
+                    snapshotLsn[0] = lsn;
+                }
+            });
+            if (!complete) {
+                throw new RuntimeException("Error loading database: corrupt record in " + dbFile);
+            }
+            return snapshotLsn[0];
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading database: " + e.getMessage(), e);
+        }
+    }
+
+    private boolean isBinary(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RecordCodec.hasHeader(ByteBuffer.wrap(in.readNBytes(RecordCodec.HEADER_SIZE)));
+        }
+    }
+
+    private Map<String, CacheValue> loadTextFormat(File file) throws IOException {
+        Map<String, CacheValue> store = new HashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
             String header = reader.readLine();
             if (header == null) {
-                return loadOldFormat(reader);
+                return store;
+            }
+            if (!header.startsWith("version=")) {
+                // Files without a header are never encrypted
+                putTextLine(store, header, false);
+                return loadOldFormat(reader, store);
             }
             String[] headerParts = header.split(",");
-            String versionPart = headerParts[0];
             String encryptionPart = headerParts[1];
             boolean fileEncrypted = Boolean.parseBoolean(encryptionPart.split("=")[1]);
 
             String line;
             while ((line = reader.readLine()) != null) {
-                String[] keyValue = line.split("=", 2);
-                String key = keyValue[0];
-                String valueData = keyValue[1];
-                if (fileEncrypted) {
-                    byte[] encryptedData = Base64.getDecoder().decode(valueData);
-                    byte[] decryptedData = encryptionStrategy.decrypt(encryptedData, encryptionKey);
-                    String serialized = new String(decryptedData);
-                    CacheValue cacheValue = CacheValue.deserialize(serialized);
-                    store.put(key, cacheValue);
-                } else {
-                    CacheValue cacheValue = CacheValue.deserialize(valueData);
-                    store.put(key, cacheValue);
-                }
+                putTextLine(store, line, fileEncrypted);
             }
-        } catch (FileNotFoundException e) {
-            createFileIfNotExists();
-            loadFromDisk();
-            //throw new RuntimeException("Error loading database: File not found: " + dbFile, e);
-        } catch (IOException e) {
-            throw new RuntimeException("Error loading database: " + e.getMessage(), e);
         }
         return store;
     }
 
+    private void putTextLine(Map<String, CacheValue> store, String line, boolean encrypted) {
+        if (line.isEmpty()) {
+            return;
+        }
+        String[] keyValue = line.split("=", 2);
+        store.put(keyValue[0], valueCodec.decodeLegacy(keyValue[1], encrypted));
+    }
+
     private void createFileIfNotExists() {
         File file = new File(dbFile);
         File parentDir = file.getParentFile(); // Get the parent directory
@@ -74,107 +160,443 @@ public class Storage {
         }
     }
 
-    private Map<String, CacheValue> loadOldFormat(BufferedReader reader) throws IOException {
-        // Implement loading logic for files without headers
-        // Assume no encryption
-        Map<String, CacheValue> store = new HashMap<>();
+    private Map<String, CacheValue> loadOldFormat(BufferedReader reader, Map<String, CacheValue> store) throws IOException {
+        // Files without headers are assumed to be unencrypted
         String line;
         while ((line = reader.readLine()) != null) {
-            String[] keyValue = line.split("=", 2);
-            String key = keyValue[0];
-            String valueData = keyValue[1];
-            CacheValue cacheValue = CacheValue.deserialize(valueData);
-            store.put(key, cacheValue);
+            putTextLine(store, line, false);
         }
         return store;
     }
 
     public void loadWithRecovery(Map<String, CacheValue> globalStore) {
+        loadWithRecovery((key, value) -> {
+            if (value == null) {
+                globalStore.remove(key);
+            } else {
+                globalStore.put(key, value);
+            }
+        });
+    }
+
+    /**
+     * Streams the recovered state to {@code visitor} in a single pass: the snapshot,
+     * then every commit appended to the segments, then the committed log entries
+     * that are newer than both the last checkpoint and the segments.
+     */
+    public void loadWithRecovery(RecordVisitor visitor) {
+        loadWithRecovery(visitor, txId -> false);
+    }
+
+    /**
+     * @param committedTransactions tells whether a transaction spanning
+     * several stores was committed; the log entries prepared for it are
+     * replayed only if so
+     */
+    public void loadWithRecovery(RecordVisitor visitor, LongPredicate committedTransactions) {
+        RecordVisitor counting = (key, value) -> {
+            recordCount.incrementAndGet();
+            visitor.visit(key, value);
+        };
+
         // Load committed data from the database file
-        globalStore.putAll(loadFromDisk());
+        long snapshotLsn = loadSnapshot(counting);
+
+        // Apply every commit appended to the segments since the snapshot
+        long segmentLsn = Math.max(snapshotLsn, replaySegments(counting));
+
+        // Replay only the part of the log that the checkpoint and segments do not cover
+        checkpointLsn = readCheckpoint();
+        long replayedLsn = replayLog(counting, Math.max(checkpointLsn, segmentLsn), committedTransactions);
 
-        // Replay log file to apply pending changes
-        replayLog(globalStore);
+        writeAheadLog.observeLsn(Math.max(replayedLsn, Math.max(checkpointLsn, segmentLsn)));
+        writeAheadLog.register(this);
     }
 
-    private void replayLog(Map<String, CacheValue> globalStore) {
-        File logFile = new File("transaction_log.txt");
-        if (!logFile.exists()) return;
+    private long replaySegments(RecordVisitor visitor) {
+        try {
+            return segmentLog.replay(visitor);
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading database segments: " + e.getMessage(), e);
+        }
+    }
 
-        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
-            String line;
-            Map<Integer, TransactionLog> ongoingTransactions = new HashMap<>();
+    /**
+     * Held around applying a commit and appending it, so that this store's
+     * commits reach the log and the segments in LSN order.
+     */
+    public Lock getCommitLock() {
+        return commitLock;
+    }
 
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(":", 4);
-                if (parts.length < 2) continue;
-
-                String operation = parts[0];
-                int txId = Integer.parseInt(parts[1]);
-
-                switch (operation) {
-                    case "BEGIN":
-                        ongoingTransactions.put(txId, new TransactionLog());
-                        break;
-                    case "PUT":
-                        if (ongoingTransactions.containsKey(txId)) {
-                            ongoingTransactions.get(txId).puts.put(parts[2], CacheValue.deserialize(parts[3]));
-                        }
-                        break;
-                    case "DELETE":
-                        if (ongoingTransactions.containsKey(txId)) {
-                            ongoingTransactions.get(txId).deletions.add(parts[2]);
-                        }
-                        break;
-                    case "COMMIT":
-                        TransactionLog transactionLog = ongoingTransactions.remove(txId);
-                        if (transactionLog != null) {
-                            // Apply changes to globalStore
-                            for (Map.Entry<String, CacheValue> entry : transactionLog.puts.entrySet()) {
-                                globalStore.put(entry.getKey(), entry.getValue());
-                            }
-                            for (String key : transactionLog.deletions) {
-                                globalStore.remove(key);
-                            }
-                        }
-                        break;
-                    case "ROLLBACK":
-                        ongoingTransactions.remove(txId);
-                        break;
-                }
+    /**
+     * Checks that this store still takes commits, which it stops doing after a
+     * log or segment write failed. Callers check under
+     * {@link #getCommitLock()}, before they install anything.
+     *
+     * @throws IllegalStateException if a write failed
+     */
+    public void checkWritable() {
+        Throwable failure = this.failure;
+        if (failure == null && writeAheadLog.getFailure() != null) {
+            fail(failure = writeAheadLog.getFailure());
+        }
+        if (failure != null) {
+            throw new IllegalStateException("Store " + dbFile + " takes no commits after a write failure: "
+                    + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Stops this store taking commits, as after a failed write. Also used when
+     * it may hold a commit whose outcome is unknown until recovery.
+     */
+    public void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * Logs one commit under a new LSN and appends the records it changed to the
+     * active segment instead of rewriting the whole database file. Callers hold
+     * {@link #getCommitLock()}, and should release it before passing the result
+     * to {@link #awaitDurable} so that concurrent commits share a log fsync.
+     * <p>
+     * The commit is already installed when it gets here, so a failure cannot
+     * undo it; the store stops taking commits instead, so that nothing is
+     * logged behind a commit that may be lost.
+     *
+     * @return a future completed once the commit is in the log as required by
+     * {@code durability}
+     * @throws CommitNotDurableException if the commit could not be written
+     */
+    public CompletableFuture<Void> append(ChangeSet changes, Durability durability) {
+        if (changes.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> durable;
+        try {
+            boolean encrypted = encryptionEnabled;
+            long lsn = writeAheadLog.nextLsn();
+            // Encoded once: the log and the segment hold the same batch
+            byte[] batch = segmentLog.encodeBatch(changes.getPuts(), changes.getDeletions(), lsn, encrypted);
+            durable = writeAheadLog.append(batch, encrypted, durability);
+            segmentLog.appendBatch(batch, encrypted);
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw new CommitNotDurableException("Error appending to database: " + e.getMessage(), e);
+        }
+        recordCount.addAndGet(changes.getPuts().size() + changes.getDeletions().size());
+        // Also stops the store when nobody waits for the log, as with PERIODIC or NONE
+        durable.whenComplete((ignored, e) -> {
+            if (e != null) {
+                fail(e);
             }
+        });
+        return durable;
+    }
 
-            // Rollback any ongoing transactions
-            for (TransactionLog transactionLog : ongoingTransactions.values()) {
-                for (Map.Entry<String, CacheValue> entry : transactionLog.puts.entrySet()) {
-                    globalStore.remove(entry.getKey());
-                }
-                for (String key : transactionLog.deletions) {
-                    globalStore.put(key, transactionLog.deletedValues.get(key));
+    /**
+     * A commit logged as this store's part of a transaction spanning several
+     * stores, and not yet appended to the segments.
+     */
+    public record PreparedBatch(long lsn, byte[] batch, boolean encrypted, int records,
+                                CompletableFuture<Void> durable) {
+    }
+
+    /**
+     * Logs a commit that is not installed yet under a new LSN, marked with the
+     * transaction it belongs to. Recovery replays it only if that transaction's
+     * commit decision was recorded, so the batch is fsynced whatever the
+     * durability: the decision must never reach disk before it. Callers hold
+     * {@link #getCommitLock()} until they either pass the result to
+     * {@link #appendPrepared} or give up on it.
+     */
+    public PreparedBatch logPrepared(ChangeSet changes, long txId) {
+        boolean encrypted = encryptionEnabled;
+        long lsn = writeAheadLog.nextLsn();
+        byte[] batch = segmentLog.encodeBatch(changes.getPuts(), changes.getDeletions(), lsn, txId, encrypted);
+        CompletableFuture<Void> durable = writeAheadLog.append(batch, encrypted, Durability.ALWAYS);
+        return new PreparedBatch(lsn, batch, encrypted, changes.getPuts().size() + changes.getDeletions().size(),
+                durable);
+    }
+
+    /**
+     * Appends a prepared commit to the segments once its transaction has
+     * committed. It is durable in the log by then, so a failure stops the
+     * store but does not undo the commit: recovery replays it from the log.
+     */
+    public void appendPrepared(PreparedBatch prepared) throws IOException {
+        try {
+            segmentLog.appendBatch(prepared.batch(), prepared.encrypted());
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+        recordCount.addAndGet(prepared.records());
+    }
+
+    /**
+     * @throws CommitNotDurableException if the commit could not be logged
+     */
+    public void awaitDurable(CompletableFuture<Void> durable) {
+        try {
+            WriteAheadLog.await(durable);
+        } catch (IOException e) {
+            throw new CommitNotDurableException("Error writing transaction log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Number of records in the snapshot and the segments, including superseded
+     * puts and tombstones.
+     */
+    public long getRecordCount() {
+        return recordCount.get();
+    }
+
+    /**
+     * Share of the records on disk that are superseded puts or tombstones.
+     */
+    public double getDeadRatio() {
+        long records = recordCount.get();
+        return records == 0 ? 0 : Math.max(0, 1 - (double) liveKeyCount.getAsLong() / records);
+    }
+
+    /**
+     * Sets where {@link #getDeadRatio} gets the number of live keys from,
+     * which is one record per key once compacted.
+     */
+    public void setLiveKeyCount(LongSupplier liveKeyCount) {
+        this.liveKeyCount = liveKeyCount;
+    }
+
+    public WriteAheadLog getWriteAheadLog() {
+        return writeAheadLog;
+    }
+
+    public SegmentCompactor getCompactor() {
+        return compactor;
+    }
+
+    /**
+     * @return the on-disk tier that entries evicted from memory are spilled to
+     */
+    public ColdTier getColdTier() {
+        return coldTier;
+    }
+
+    /**
+     * Folds every sealed segment into a new snapshot, dropping superseded puts
+     * and tombstones, then deletes those segments. Commits keep appending to a
+     * fresh segment meanwhile, and readers are served from memory, so neither
+     * waits for the compaction. A crash before the segments are deleted only
+     * means they are replayed over a snapshot that already contains them.
+     */
+    public void compact(IoThrottle throttle) {
+        compactionLock.lock();
+        try {
+            checkWritable();
+            List<File> inputs = segmentLog.sealSegments();
+            if (inputs.isEmpty()) {
+                return;
+            }
+            Map<String, CacheValue> merged = new HashMap<>();
+            long[] recordsRead = {0};
+            RecordVisitor merge = (key, value) -> {
+                recordsRead[0]++;
+                // Segments are replayed in commit order, so the last record of a key wins
+                if (value == null) {
+                    merged.remove(key);
+                } else {
+                    merged.put(key, value);
                 }
+            };
+            throttle.acquire(new File(dbFile).length());
+            long lsn = loadSnapshot(merge);
+            for (File segment : inputs) {
+                throttle.acquire(segment.length());
+                lsn = Math.max(lsn, segmentLog.replay(segment, merge));
+            }
+            writeSnapshot(merged, lsn, throttle);
+            segmentLog.remove(inputs);
+            recordCount.addAndGet(merged.size() - recordsRead[0]);
+        } catch (IOException e) {
+            throw new RuntimeException("Error compacting database: " + e.getMessage(), e);
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * Forces every commit logged so far by this store to disk and records the
+     * covered LSN in {@code <dbFile>.checkpoint}, so that recovery and log
+     * truncation can skip it.
+     */
+    @Override
+    public long checkpoint() {
+        long lsn;
+        commitLock.lock();
+        try {
+            // Every commit of this store with an LSN up to here has been appended
+            lsn = writeAheadLog.currentLsn();
+        } finally {
+            commitLock.unlock();
+        }
+        if (lsn == checkpointLsn) {
+            return lsn;
+        }
+        // The segments may lack a commit the log holds, so the log must not be truncated
+        checkWritable();
+        try {
+            segmentLog.sync();
+            File tmpFile = new File(dbFile + ".checkpoint.tmp");
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                out.write(("lsn=" + lsn + "\n").getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
             }
+            Files.move(tmpFile.toPath(), new File(dbFile + ".checkpoint").toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            // Handle exception
+            throw new RuntimeException("Error writing checkpoint: " + e.getMessage(), e);
         }
+        checkpointLsn = lsn;
+        return lsn;
     }
 
-    private static class TransactionLog {
-        Map<String, CacheValue> puts = new HashMap<>();
-        Set<String> deletions = new HashSet<>();
-        Map<String, CacheValue> deletedValues = new HashMap<>();
+    private long readCheckpoint() {
+        File file = new File(dbFile + ".checkpoint");
+        if (!file.exists()) {
+            return 0;
+        }
+        try {
+            String content = Files.readString(file.toPath(), StandardCharsets.UTF_8).trim();
+            return content.startsWith("lsn=") ? Long.parseLong(content.substring(4)) : 0;
+        } catch (IOException | NumberFormatException e) {
+            throw new RuntimeException("Error reading checkpoint: " + e.getMessage(), e);
+        }
     }
 
+    private class StorageValueCodec implements ValueCodec {
+        @Override
+        public byte[] encode(CacheValue value, boolean encrypted) {
+            byte[] encoded = RecordCodec.encodeValue(value);
+            if (encrypted) {
+                return RecordCodec.encryptedPayload(encryptionStrategy.encrypt(encoded, encryptionKey));
+            }
+            return encoded;
+        }
+
+        @Override
+        public CacheValue decode(ByteBuffer payload, boolean encrypted) {
+            if (encrypted) {
+                byte[] decryptedData = encryptionStrategy.decrypt(RecordCodec.readEncryptedPayload(payload), encryptionKey);
+                return RecordCodec.decodeValue(ByteBuffer.wrap(decryptedData));
+            }
+            return RecordCodec.decodeValue(payload);
+        }
+
+        @Override
+        public CacheValue decodeLegacy(String valueData, boolean encrypted) {
+            if (encrypted) {
+                byte[] encryptedData = Base64.getDecoder().decode(valueData);
+                byte[] decryptedData = encryptionStrategy.decrypt(encryptedData, encryptionKey);
+                return CacheValue.deserialize(new String(decryptedData));
+            }
+            return CacheValue.deserialize(valueData);
+        }
+    }
+
+    public long getDiskUsage() {
+        return new File(dbFile).length() + segmentLog.getDiskUsage() + writeAheadLog.getDiskUsage()
+                + coldTier.getDiskUsage();
+    }
+
+    public long getCheckpointLsn() {
+        return checkpointLsn;
+    }
+
+    public void close() {
+        compactor.close();
+        coldTier.close();
+        writeAheadLog.unregister(this);
+        try {
+            writeAheadLog.close();
+            segmentLog.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Error closing database: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Applies the commits from this store's transaction log whose LSN is above
+     * {@code afterLsn}, leaving out those prepared for transactions that never
+     * committed.
+     *
+     * @return the highest LSN in the log, or {@code afterLsn} if none was
+     * above it; left-out commits count too, so that their LSNs are not reused
+     */
+    private long replayLog(RecordVisitor visitor, long afterLsn, LongPredicate committedTransactions) {
+        try {
+            return writeAheadLog.replay(afterLsn, (puts, deletions, lsn, txId) -> {
+                // A new transaction under this id would commit the batch along with itself
+                TxIdManager.getInstance().observeTxId(txId);
+                if (txId != 0 && !committedTransactions.test(txId)) {
+                    return;
+                }
+                puts.forEach(visitor::visit);
+                for (String key : deletions) {
+                    visitor.visit(key, null);
+                }
+                // Write it back to the segments so a later checkpoint really covers it
+                appendRecovered(puts, deletions, lsn);
+            });
+        } catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Error replaying transaction log: " + e.getMessage(), e);
+        }
+    }
+
+    private void appendRecovered(Map<String, CacheValue> puts, Set<String> deletions, long lsn) {
+        try {
+            segmentLog.append(puts, deletions, lsn, encryptionEnabled);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a full snapshot of {@code store} in the binary format. The snapshot
+     * is written to a temporary file first and then moved over the database file.
+     */
     public void saveToDisk(Map<String, CacheValue> store) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(dbFile))) {
-            writer.write("version=2,encryptionEnabled=" + encryptionEnabled + "\n");
+        writeSnapshot(store, 0, IoThrottle.unlimited());
+    }
+
+    private void writeSnapshot(Map<String, CacheValue> store, long lsn, IoThrottle throttle) {
+        File file = new File(dbFile);
+        File tmpFile = new File(dbFile + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile);
+             OutputStream out = new BufferedOutputStream(fileOut)) {
+            out.write(RecordCodec.header(encryptionEnabled));
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
             for (Map.Entry<String, CacheValue> entry : store.entrySet()) {
-                String serializedValue = entry.getValue().serialize();
-                if (encryptionEnabled) {
-                    byte[] encryptedData = encryptionStrategy.encrypt(serializedValue.getBytes(), encryptionKey);
-                    serializedValue = Base64.getEncoder().encodeToString(encryptedData);
-                }
-                writer.write(entry.getKey() + "=" + serializedValue + "\n");
+                record.reset();
+                RecordCodec.writePut(record, entry.getKey(), valueCodec.encode(entry.getValue(), encryptionEnabled));
+                throttle.acquire(record.size());
+                record.writeTo(out);
             }
+            // The LSN tells recovery which logged commits the snapshot already contains
+            record.reset();
+            RecordCodec.writeCommit(record, lsn);
+            record.writeTo(out);
+            out.flush();
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            throw new RuntimeException("Error saving database: " + e.getMessage(), e);
+        }
+        try {
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
             throw new RuntimeException("Error saving database: " + e.getMessage(), e);
         }
@@ -1,47 +1,47 @@
 package org.athens.db.core;
 
-import org.athens.exceptions.ConcurrencyException;
+import org.athens.db.storage.Durability;
 import org.athens.utils.CacheValue;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.concurrent.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Transaction {
-    private final LRUCache<String, CacheValue> globalStore;
+    private final MvccStore globalStore;
+    private final MvccStore.Snapshot snapshot;
     private final ConcurrentHashMap<String, CacheValue> stagedChanges = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, CacheValue> stagedDeletions = new ConcurrentHashMap<>();
-    private final Map<String, Integer> readVersions = new HashMap<>();
-    private final File logFile = new File("transaction_log.txt");
-    private int txId;
-    private static final BlockingQueue<String> logQueue = new LinkedBlockingQueue<>();
-    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private final long txId;
+    private final Durability durability;
+    private MvccStore.Prepared prepared;
 
-    public Transaction(LRUCache<String, CacheValue> globalStore) {
+    public Transaction(MvccStore globalStore) {
+        this(globalStore, null);
+    }
+
+    // Nothing is logged before commit: Storage.append logs the whole commit as one entry
+    public Transaction(MvccStore globalStore, Durability durability) {
         this.globalStore = globalStore;
         this.txId = TxIdManager.getInstance().getNextTxId();
+        this.durability = durability;
+        this.snapshot = globalStore.openSnapshot();
+    }
 
-        // Schedule log flush every 1 second
-        scheduler.scheduleAtFixedRate(() -> {
-            try {
-                writeLogEntries();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }, 0, 1, TimeUnit.SECONDS);
+    /**
+     * @return the durability requested for this transaction, or {@code null}
+     * to use the store's setting
+     */
+    public Durability getDurability() {
+        return durability;
     }
 
     public void put(String key, CacheValue value) {
-        writeLogEntry("PUT:" + txId + ":" + key + ":" + value.serialize());
-
         stagedChanges.put(key, value);
         stagedDeletions.remove(key);
     }
 
+    // Reads see the store as of beginTransaction, plus this transaction's own writes
     public CacheValue get(String key) {
         if (stagedChanges.containsKey(key)) {
             return stagedChanges.get(key);
@@ -49,82 +49,69 @@ public class Transaction {
         if (stagedDeletions.containsKey(key)) {
             return null;
         }
-        CacheValue value = globalStore.get(key);
-        if (value != null) {
-            readVersions.put(key, value.getVersion());
-        }
-        return value;
+        return snapshot.get(key);
     }
 
     public void delete(String key) {
-        if (globalStore.containsKey(key) || stagedChanges.containsKey(key)) {
-            stagedDeletions.put(key, stagedChanges.getOrDefault(key, globalStore.get(key)));
+        CacheValue current = stagedChanges.containsKey(key) ? stagedChanges.get(key) : snapshot.get(key);
+        if (current != null) {
+            stagedDeletions.put(key, current);
             stagedChanges.remove(key);
         }
     }
 
-    public void commit() {
-        for (Map.Entry<String, CacheValue> entry : stagedChanges.entrySet()) {
-            writeLogEntry("PUT:" + txId + ":" + entry.getKey() + ":" + entry.getValue().serialize());
-        }
-        for (String key : stagedDeletions.keySet()) {
-            writeLogEntry("DELETE:" + txId + ":" + key);
-        }
-        // First, process deletions
-        for (String key : stagedDeletions.keySet()) {
-            CacheValue current = globalStore.get(key);
-            int expectedVersion = readVersions.getOrDefault(key, current != null ? current.getVersion() : 0);
-            if (current != null && current.getVersion() != expectedVersion) {
-                throw new ConcurrencyException("Conflict on key " + key);
-            }
-            globalStore.remove(key);
-        }
-        // Then, process changes
-        for (Map.Entry<String, CacheValue> entry : stagedChanges.entrySet()) {
-            String key = entry.getKey();
-            CacheValue newValue = entry.getValue();
-            CacheValue current = globalStore.get(key);
-            int expectedVersion = readVersions.getOrDefault(key, current != null ? current.getVersion() : 0);
-            if (current != null && current.getVersion() != expectedVersion) {
-                throw new ConcurrencyException("Conflict on key " + key);
-            }
-            int newVersion = current != null ? current.getVersion() + 1 : 1;
-            int finalVersion = newValue.getVersion() == 0 ? newVersion : newValue.getVersion();
-            CacheValue updatedValue = new CacheValue(finalVersion, newValue.getType(), newValue.getValue());
-            globalStore.put(key, updatedValue);
+    /**
+     * Validates this transaction and works out its commit without installing
+     * it, for {@link #commitPrepared}. The caller keeps other commits out in
+     * between.
+     *
+     * @return the changes the commit would make
+     * @throws org.athens.exceptions.ConcurrencyException if it would not commit
+     */
+    public ChangeSet prepare() {
+        prepared = globalStore.prepare(snapshot, stagedChanges, stagedDeletions.keySet());
+        return new ChangeSet(txId, prepared.puts(), prepared.deletions());
+    }
+
+    public boolean hasChanges() {
+        return !stagedChanges.isEmpty() || !stagedDeletions.isEmpty();
+    }
+
+    public ChangeSet commit() {
+        try {
+            // Validation and installation happen atomically in the store
+            Map<String, CacheValue> applied = globalStore.commit(snapshot, stagedChanges, stagedDeletions.keySet());
+            // The commit itself is logged by Storage.append, which stamps it with an LSN
+            ChangeSet changes = new ChangeSet(txId, applied, new HashSet<>(stagedDeletions.keySet()));
+            stagedChanges.clear();
+            stagedDeletions.clear();
+            return changes;
+        } finally {
+            snapshot.close();
         }
-        // Log commit marker
-        writeLogEntry("COMMIT:" + txId);
+    }
 
-        // Checkpoint txId
-        TxIdManager.getInstance().checkpoint();
-        stagedChanges.clear();
-        stagedDeletions.clear();
-        readVersions.clear();
+    /**
+     * Installs the commit worked out by {@link #prepare}, which cannot fail.
+     */
+    public ChangeSet commitPrepared() {
+        try {
+            globalStore.install(prepared);
+            stagedChanges.clear();
+            stagedDeletions.clear();
+            return new ChangeSet(txId, prepared.puts(), prepared.deletions());
+        } finally {
+            snapshot.close();
+        }
     }
 
     public void rollback() {
-        writeLogEntry("ROLLBACK:" + txId);
-
         stagedChanges.clear();
         stagedDeletions.clear();
-        readVersions.clear();
+        snapshot.close();
     }
 
     public Map<String, CacheValue> getStagedChanges() {
         return stagedChanges;
     }
-
-    private void writeLogEntry(String entry) {
-        logQueue.offer(entry);
-    }
-
-    private void writeLogEntries() throws IOException {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(logFile, true))) {
-            String entry;
-            while ((entry = logQueue.poll()) != null) {
-                writer.write(entry + "\n");
-            }
-        }
-    }
-}
\ No newline at end of file
+}
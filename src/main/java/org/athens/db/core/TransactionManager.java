@@ -1,31 +1,46 @@
 package org.athens.db.core;
 
-import org.athens.utils.CacheValue;
+import org.athens.db.storage.Durability;
 
 public class TransactionManager {
-    private final LRUCache<String, CacheValue> globalStore; // Persistent store
+    private final MvccStore globalStore; // Persistent store
     private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
 
-    public TransactionManager(LRUCache<String, CacheValue> globalStore) {
+    public TransactionManager(MvccStore globalStore) {
         this.globalStore = globalStore;
     }
 
     public Transaction beginTransaction() {
+        return beginTransaction(null);
+    }
+
+    public Transaction beginTransaction(Durability durability) {
         if (currentTransaction.get() != null) {
             throw new IllegalStateException("Transaction already active on this thread");
         }
-        Transaction transaction = new Transaction(globalStore);
+        Transaction transaction = new Transaction(globalStore, durability);
         currentTransaction.set(transaction);
         return transaction;
     }
 
-    public void commit() {
+    public ChangeSet commit() {
         Transaction transaction = currentTransaction.get();
         if (transaction == null) {
             throw new IllegalStateException("No active transaction to commit");
         }
-        transaction.commit();
+        ChangeSet changes = transaction.commit();
+        currentTransaction.remove();
+        return changes;
+    }
+
+    /**
+     * Installs the active transaction, which {@link Transaction#prepare} has
+     * already validated, and ends it.
+     */
+    public ChangeSet commitPrepared() {
+        ChangeSet changes = getActiveTransaction().commitPrepared();
         currentTransaction.remove();
+        return changes;
     }
 
     public void rollback() {
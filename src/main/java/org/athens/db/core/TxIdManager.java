@@ -1,61 +1,112 @@
 package org.athens.db.core;
 
-import java.io.BufferedWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Hands out transaction ids without locking.
+ * <p>
+ * Ids are reserved in blocks of {@link #BLOCK_SIZE}: only the end of the
+ * current block is written to {@code last_txid.txt}, and only when a block is
+ * used up. After a restart allocation continues past the last reserved block,
+ * so ids are never reused and the unused rest of that block is skipped.
+ * <p>
+ * That file lives in the working directory, not next to the data, so it can
+ * be missing or stale. Recovery therefore also reports every id it finds in
+ * the stores' logs and commit decisions through {@link #observeTxId}, which
+ * keeps ids that recovery still acts on from being handed out again.
+ */
 public class TxIdManager {
-    private static TxIdManager instance;
-    private static final AtomicInteger lastTxId = new AtomicInteger(0);
+    private static final Logger logger = LoggerFactory.getLogger(TxIdManager.class);
+    public static final long BLOCK_SIZE = 10_000;
+
+    private final AtomicLong lastTxId = new AtomicLong();
+    private volatile long reservedUpTo;
+    private final ReentrantLock reserveLock = new ReentrantLock();
     private final File txIdFile = new File("last_txid.txt");
-    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+
+    private static final class Holder {
+        private static final TxIdManager INSTANCE = new TxIdManager();
+    }
 
     private TxIdManager() {
-        loadLastTxId();
-        scheduleCheckpoint();
+        long highWaterMark = loadHighWaterMark();
+        lastTxId.set(highWaterMark);
+        reservedUpTo = highWaterMark;
     }
 
     public static TxIdManager getInstance() {
-        if (instance == null) {
-            instance = new TxIdManager();
+        return Holder.INSTANCE;
+    }
+
+    /**
+     * Ensures ids handed out from now on are greater than {@code txId}, which
+     * was found on disk during recovery.
+     */
+    public void observeTxId(long txId) {
+        lastTxId.accumulateAndGet(txId, Math::max);
+    }
+
+    public long getNextTxId() {
+        long txId = lastTxId.incrementAndGet();
+        if (txId > reservedUpTo) {
+            reserve(txId);
         }
-        return instance;
+        return txId;
     }
 
-    public synchronized int getNextTxId() {
-        return lastTxId.incrementAndGet();
+    // Only taken once per block; everyone past the reservation waits for it to be persisted.
+    // A lock rather than a monitor, so that virtual threads waiting on the file write unmount
+    private void reserve(long txId) {
+        reserveLock.lock();
+        try {
+            if (txId <= reservedUpTo) {
+                return;
+            }
+            long highWaterMark = reservedUpTo;
+            while (highWaterMark < txId) {
+                highWaterMark += BLOCK_SIZE;
+            }
+            writeHighWaterMark(highWaterMark);
+            reservedUpTo = highWaterMark;
+        } finally {
+            reserveLock.unlock();
+        }
     }
 
-    private void loadLastTxId() {
+    private long loadHighWaterMark() {
         try {
             if (txIdFile.exists()) {
-                String lastTxIdStr = new String(Files.readAllBytes(txIdFile.toPath()));
-                lastTxId.set(Integer.parseInt(lastTxIdStr));
+                return Long.parseLong(Files.readString(txIdFile.toPath()).trim());
             }
         } catch (IOException | NumberFormatException e) {
-            e.printStackTrace();
+            logger.warn("Could not read {}; transaction ids restart from 0", txIdFile, e);
         }
+        return 0;
     }
 
-    private void scheduleCheckpoint() {
-        scheduler.scheduleAtFixedRate(this::writeLastTxIdToFile, 0, 1, TimeUnit.MINUTES);
-    }
-
-    private void writeLastTxIdToFile() {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(txIdFile))) {
-            writer.write(String.valueOf(lastTxId.get()));
+    private void writeHighWaterMark(long highWaterMark) {
+        Path target = txIdFile.toPath().toAbsolutePath();
+        Path temp = target.resolveSibling(txIdFile.getName() + ".tmp");
+        try {
+            Files.write(temp, String.valueOf(highWaterMark).getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
         } catch (IOException e) {
-            e.printStackTrace();
+            throw new RuntimeException("Error reserving transaction ids: " + e.getMessage(), e);
         }
     }
-
-    public void checkpoint() {
-        writeLastTxIdToFile();
-    }
-}
\ No newline at end of file
+}
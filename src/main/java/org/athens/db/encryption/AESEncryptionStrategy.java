@@ -25,6 +25,17 @@ public class AESEncryptionStrategy implements EncryptionStrategy {
         Security.addProvider(new BouncyCastleProvider());
     }
 
+    // Provider lookup dominates the cost of a single-value cipher call, so each
+    // thread keeps its own instance; recovery decrypts on many threads at once
+    private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+        try {
+            return Cipher.getInstance(ALGORITHM, "BC");
+        } catch (Exception e) {
+            throw new IllegalStateException("AES/GCM is not available", e);
+        }
+    });
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     @Override
     public byte[] encrypt(byte[] data, byte[] key) {
         try {
@@ -41,11 +52,10 @@ public class AESEncryptionStrategy implements EncryptionStrategy {
 
             // Generate random IV
             byte[] iv = new byte[GCM_IV_LENGTH];
-            SecureRandom random = new SecureRandom();
-            random.nextBytes(iv);
+            RANDOM.nextBytes(iv);
 
             // Initialize cipher
-            Cipher cipher = Cipher.getInstance(ALGORITHM, "BC");
+            Cipher cipher = CIPHER.get();
             GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
             cipher.init(Cipher.ENCRYPT_MODE, secretKey, parameterSpec);
 
@@ -101,7 +111,7 @@ public class AESEncryptionStrategy implements EncryptionStrategy {
 //            LOGGER.log(Level.FINE, "Key hash: " + Arrays.hashCode(key));
 
             // Initialize cipher
-            Cipher cipher = Cipher.getInstance(ALGORITHM, "BC");
+            Cipher cipher = CIPHER.get();
             GCMParameterSpec parameterSpec = new GCMParameterSpec(GCM_TAG_LENGTH * 8, iv);
             cipher.init(Cipher.DECRYPT_MODE, secretKey, parameterSpec);
 
@@ -0,0 +1,182 @@
+package org.athens.db.eviction;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Policy;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * {@link EvictionPolicy#W_TINY_LFU}, backed by a Caffeine cache.
+ * <p>
+ * Caffeine runs its maintenance, which is where it evicts, on whichever thread
+ * asks for it, readers included. Those requests are queued here instead and
+ * run by the next {@link #put}, so that, as with the other maps, entries are
+ * only evicted on threads writing to the map and the size bound holds as soon
+ * as a put returns.
+ * <p>
+ * Caffeine bounds the entry count. The memory budget is enforced here by
+ * evicting Caffeine's coldest entries, in its own eviction order, after an
+ * insertion leaves the budget exceeded.
+ */
+public class CaffeineCache<K, V> extends AbstractMap<K, V> implements EvictingMap<K, V> {
+    private final Cache<K, Weighted<V>> cache;
+    private final ConcurrentMap<K, Weighted<V>> map;
+    private final Policy.Eviction<K, Weighted<V>> eviction;
+    private final Weigher<? super K, ? super V> weigher;
+    private final MemoryBudget budget;
+    private final EvictionListener<? super K, ? super V> listener;
+    private final ConcurrentLinkedQueue<Runnable> maintenance = new ConcurrentLinkedQueue<>();
+
+    private record Weighted<V>(V value, int weight) {
+    }
+
+    public CaffeineCache(int maxSize) {
+        this(maxSize, null, MemoryBudget.unlimited());
+    }
+
+    public CaffeineCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget) {
+        this(maxSize, weigher, budget, null);
+    }
+
+    public CaffeineCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget,
+                         EvictionListener<? super K, ? super V> listener) {
+        this.weigher = weigher;
+        this.budget = budget;
+        this.listener = listener;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .executor(maintenance::offer)
+                .<K, Weighted<V>>evictionListener((key, weighted, cause) -> {
+                    if (weighted != null && cause.wasEvicted()) {
+                        evicted(key, weighted);
+                    }
+                })
+                .build();
+        this.map = cache.asMap();
+        this.eviction = cache.policy().eviction().orElseThrow();
+    }
+
+    @Override
+    public V get(Object key) {
+        return unwrap(map.get(key));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V peek(Object key) {
+        return unwrap(cache.policy().getIfPresentQuietly((K) key));
+    }
+
+    private static <V> V unwrap(Weighted<V> weighted) {
+        return weighted != null ? weighted.value() : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int weight = weigher != null ? weigher.weigh(key, value) : 0;
+        Weighted<V> previous = map.put(key, new Weighted<>(value, weight));
+        budget.add(previous != null ? weight - previous.weight() : weight);
+        Runnable task;
+        while ((task = maintenance.poll()) != null) {
+            task.run();
+        }
+        // Never evicts the entry just written, which would otherwise go if the budget's parent is far over
+        while (budget.getExcessBytes() > 0) {
+            K coldest = eviction.coldest(2).keySet().stream().filter(k -> !k.equals(key)).findFirst().orElse(null);
+            if (coldest == null) {
+                break;
+            }
+            Weighted<V> evicted = map.remove(coldest);
+            if (evicted != null) {
+                evicted(coldest, evicted);
+            }
+        }
+        return unwrap(previous);
+    }
+
+    private void evicted(K key, Weighted<V> weighted) {
+        budget.add(-weighted.weight());
+        budget.recordEviction(weighted.weight());
+        if (listener != null) {
+            listener.onEviction(key, weighted.value());
+        }
+    }
+
+    @Override
+    public V remove(Object key) {
+        Weighted<V> removed = map.remove(key);
+        if (removed == null) {
+            return null;
+        }
+        budget.add(-removed.weight());
+        return removed.value();
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Weighted<V> current = map.get(key);
+        if (current == null || !Objects.equals(current.value(), value) || !map.remove(key, current)) {
+            return false;
+        }
+        budget.add(-current.weight());
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public void clear() {
+        for (K key : map.keySet()) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Entry<K, Weighted<V>>> entries = map.entrySet().iterator();
+                return new Iterator<>() {
+                    private Entry<K, Weighted<V>> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = entries.next();
+                        return new SimpleImmutableEntry<>(current.getKey(), current.getValue().value());
+                    }
+
+                    @Override
+                    public void remove() {
+                        CaffeineCache.this.remove(current.getKey(), current.getValue().value());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+}
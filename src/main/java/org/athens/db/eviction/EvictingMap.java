@@ -0,0 +1,15 @@
+package org.athens.db.eviction;
+
+import java.util.Map;
+
+/**
+ * A thread-safe map that bounds its own size by evicting entries according to
+ * an {@link EvictionPolicy}. {@link #get} counts as an access; {@link #peek}
+ * and iteration do not, so scans do not disturb what the policy keeps.
+ */
+public interface EvictingMap<K, V> extends Map<K, V> {
+    /**
+     * @return the value of {@code key} without recording an access
+     */
+    V peek(Object key);
+}
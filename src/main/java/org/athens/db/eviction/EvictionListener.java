@@ -0,0 +1,10 @@
+package org.athens.db.eviction;
+
+/**
+ * Told about every entry an {@link EvictingMap} evicts, but not about entries
+ * removed explicitly. Runs on the thread whose insertion caused the eviction.
+ */
+@FunctionalInterface
+public interface EvictionListener<K, V> {
+    void onEviction(K key, V value);
+}
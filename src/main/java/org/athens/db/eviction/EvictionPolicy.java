@@ -0,0 +1,59 @@
+package org.athens.db.eviction;
+
+import org.athens.db.core.LRUCache;
+
+/**
+ * Chooses which keys a store drops once it holds more than its maximum size.
+ */
+public enum EvictionPolicy {
+    /**
+     * Least recently used.
+     */
+    LRU,
+    /**
+     * Least frequently used, approximated by sampling; counts are halved
+     * periodically so that formerly hot keys age out.
+     */
+    LFU,
+    /**
+     * Oldest inserted first; reads cost nothing.
+     */
+    FIFO,
+    /**
+     * The least recently used of a few randomly sampled keys.
+     */
+    RANDOM_SAMPLE,
+    /**
+     * Caffeine's Window TinyLFU: admits new keys only if they are likely to be
+     * used more than the key they would replace, which keeps scans and
+     * one-hit wonders from flushing hot keys.
+     */
+    W_TINY_LFU;
+
+    public <K, V> EvictingMap<K, V> newMap(int maxSize) {
+        return newMap(maxSize, null, MemoryBudget.unlimited());
+    }
+
+    /**
+     * @return a map holding at most {@code maxSize} entries whose weights, as
+     * estimated by {@code weigher}, are charged to {@code budget}
+     */
+    public <K, V> EvictingMap<K, V> newMap(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget) {
+        return newMap(maxSize, weigher, budget, null);
+    }
+
+    /**
+     * As above, also handing every evicted entry to {@code listener} if it is
+     * not {@code null}.
+     */
+    public <K, V> EvictingMap<K, V> newMap(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget,
+                                           EvictionListener<? super K, ? super V> listener) {
+        return switch (this) {
+            case LRU -> new LRUCache<>(maxSize, weigher, budget, listener);
+            case LFU -> new SampledCache<>(maxSize, true, weigher, budget, listener);
+            case FIFO -> new FifoCache<>(maxSize, weigher, budget, listener);
+            case RANDOM_SAMPLE -> new SampledCache<>(maxSize, false, weigher, budget, listener);
+            case W_TINY_LFU -> new CaffeineCache<>(maxSize, weigher, budget, listener);
+        };
+    }
+}
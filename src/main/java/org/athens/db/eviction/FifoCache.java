@@ -0,0 +1,218 @@
+package org.athens.db.eviction;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link EvictionPolicy#FIFO}: evicts keys in the order they were inserted,
+ * once there are more than {@code maxSize} or their weight exceeds the budget.
+ * Reads are plain {@link ConcurrentHashMap} lookups. Removed keys stay in the
+ * insertion queue until eviction reaches them or enough of them pile up to
+ * be purged.
+ */
+public class FifoCache<K, V> extends AbstractMap<K, V> implements EvictingMap<K, V> {
+    private final int maxSize;
+    private final Weigher<? super K, ? super V> weigher;
+    private final MemoryBudget budget;
+    private final EvictionListener<? super K, ? super V> listener;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Node<K, V>> insertionOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger staleNodes = new AtomicInteger();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile int weight;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public FifoCache(int maxSize) {
+        this(maxSize, null, MemoryBudget.unlimited());
+    }
+
+    public FifoCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget) {
+        this(maxSize, weigher, budget, null);
+    }
+
+    public FifoCache(int maxSize, Weigher<? super K, ? super V> weigher, MemoryBudget budget,
+                     EvictionListener<? super K, ? super V> listener) {
+        this.maxSize = maxSize;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.listener = listener;
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null ? node.value : null;
+    }
+
+    @Override
+    public V peek(Object key) {
+        return get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int weight = weigher != null ? weigher.weigh(key, value) : 0;
+        Node<K, V> created = new Node<>(key, value);
+        created.weight = weight;
+        Object[] previous = new Object[1];
+        int[] weightDelta = {weight};
+        Node<K, V> node = data.compute(key, (k, existing) -> {
+            if (existing == null) {
+                return created;
+            }
+            previous[0] = existing.value;
+            existing.value = value;
+            weightDelta[0] = weight - existing.weight;
+            existing.weight = weight;
+            return existing;
+        });
+        budget.add(weightDelta[0]);
+        if (node == created) {
+            insertionOrder.offer(created);
+        }
+        if (data.size() > maxSize || budget.getExcessBytes() > 0) {
+            evict(node);
+        }
+        if (node != created) {
+            @SuppressWarnings("unchecked")
+            V replaced = (V) previous[0];
+            return replaced;
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        budget.add(-node.weight);
+        removed();
+        return node.value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Node<K, V> node = data.get(key);
+        if (node == null || !Objects.equals(node.value, value) || !data.remove(key, node)) {
+            return false;
+        }
+        budget.add(-node.weight);
+        removed();
+        return true;
+    }
+
+    private void removed() {
+        if (staleNodes.incrementAndGet() > maxSize && evictionLock.tryLock()) {
+            try {
+                staleNodes.set(0);
+                insertionOrder.removeIf(node -> data.get(node.key) != node);
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    // Stops short of the entry just written, which would otherwise go if the budget's parent is far over
+    private void evict(Node<K, V> written) {
+        evictionLock.lock();
+        try {
+            while (data.size() > maxSize || budget.getExcessBytes() > 0) {
+                // Only polled under the lock, so the head stays the one peeked at
+                Node<K, V> eldest = insertionOrder.peek();
+                if (eldest == null || eldest == written) {
+                    return;
+                }
+                insertionOrder.poll();
+                if (data.remove(eldest.key, eldest)) {
+                    budget.add(-eldest.weight);
+                    budget.recordEviction(eldest.weight);
+                    if (listener != null) {
+                        listener.onEviction(eldest.key, eldest.value);
+                    }
+                } else {
+                    staleNodes.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : data.values()) {
+                if (data.remove(node.key, node)) {
+                    budget.add(-node.weight);
+                }
+            }
+            insertionOrder.clear();
+            staleNodes.set(0);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                return new Iterator<>() {
+                    private Node<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = nodes.next();
+                        return new SimpleImmutableEntry<>(current.key, current.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        FifoCache.this.remove(current.key, current.value);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+}
@@ -0,0 +1,141 @@
+package org.athens.db.eviction;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The estimated bytes a cache may hold, and the bytes it holds now.
+ * <p>
+ * A budget may have a parent, such as one global budget shared by every shard:
+ * usage and evictions are added to the parent as well, and the budget counts as
+ * exceeded when either limit is. While the parent is over its limit, each of its
+ * children is asked to evict only what it holds beyond an equal share of that
+ * limit, so a shard that is written to sheds its own excess rather than its
+ * whole cache for the excess of others. The parent may therefore stay over
+ * its limit until the shards holding the excess are written to.
+ */
+public class MemoryBudget {
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private volatile long maxBytes;
+    private volatile MemoryBudget parent;
+    private final AtomicInteger children = new AtomicInteger();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder evictedBytes = new LongAdder();
+
+    public MemoryBudget(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static MemoryBudget unlimited() {
+        return new MemoryBudget(UNLIMITED);
+    }
+
+    /**
+     * Parses sizes such as {@code 1048576}, {@code 512k}, {@code 256m} or
+     * {@code 2g}.
+     */
+    public static long parseBytes(String size) {
+        String value = size.trim().toLowerCase();
+        long unit = 1;
+        switch (value.charAt(value.length() - 1)) {
+            case 'k' -> unit = 1024L;
+            case 'm' -> unit = 1024L * 1024;
+            case 'g' -> unit = 1024L * 1024 * 1024;
+            default -> {
+                return Long.parseLong(value);
+            }
+        }
+        return Long.parseLong(value.substring(0, value.length() - 1).trim()) * unit;
+    }
+
+    public void add(long bytes) {
+        usedBytes.addAndGet(bytes);
+        MemoryBudget current = parent;
+        if (current != null) {
+            current.add(bytes);
+        }
+    }
+
+    public void recordEviction(long bytes) {
+        evictions.increment();
+        evictedBytes.add(bytes);
+        MemoryBudget current = parent;
+        if (current != null) {
+            current.recordEviction(bytes);
+        }
+    }
+
+    public boolean isExceeded() {
+        if (usedBytes.get() > maxBytes) {
+            return true;
+        }
+        MemoryBudget current = parent;
+        return current != null && current.isExceeded();
+    }
+
+    /**
+     * @return how many bytes a cache using this budget should evict: what it
+     * holds beyond its own limit, or, while the parent is over its limit, as
+     * much of that excess as it holds beyond its share of the parent's limit
+     */
+    public long getExcessBytes() {
+        long used = usedBytes.get();
+        long excess = Math.max(0, used - maxBytes);
+        MemoryBudget current = parent;
+        if (current != null) {
+            long parentExcess = current.getExcessBytes();
+            if (parentExcess > 0) {
+                long share = current.maxBytes / Math.max(1, current.children.get());
+                excess = Math.max(excess, Math.min(parentExcess, used - share));
+            }
+        }
+        return excess;
+    }
+
+    /**
+     * Makes this budget count against {@code parent}, moving its current usage
+     * over from the previous parent. {@code null} detaches it.
+     */
+    public synchronized void setParent(MemoryBudget parent) {
+        long used = usedBytes.get();
+        if (this.parent != null) {
+            this.parent.add(-used);
+            this.parent.children.decrementAndGet();
+        }
+        if (parent != null) {
+            parent.add(used);
+            parent.children.incrementAndGet();
+        }
+        this.parent = parent;
+    }
+
+    public MemoryBudget getParent() {
+        return parent;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Takes effect at the next insertion into a cache using this budget.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    public long getEvictedBytes() {
+        return evictedBytes.sum();
+    }
+}
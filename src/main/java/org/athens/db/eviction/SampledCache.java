@@ -0,0 +1,288 @@
+package org.athens.db.eviction;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link EvictionPolicy#LFU} and {@link EvictionPolicy#RANDOM_SAMPLE}: while
+ * there are more than {@code maxSize} keys or more weight than the budget
+ * allows, a few keys are sampled at random and the one with the fewest hits,
+ * or the oldest last access, is evicted.
+ * <p>
+ * Reads only bump a counter or a timestamp on the entry, without locking, so
+ * counts can be slightly off under contention. Insertions and removals keep an
+ * array of entries for sampling under the eviction lock. For LFU, hit counts
+ * are halved after every {@code 10 * maxSize} insertions.
+ */
+public class SampledCache<K, V> extends AbstractMap<K, V> implements EvictingMap<K, V> {
+    private static final int SAMPLE_SIZE = 5;
+
+    private final int maxSize;
+    private final boolean leastFrequent;
+    private final Weigher<? super K, ? super V> weigher;
+    private final MemoryBudget budget;
+    private final EvictionListener<? super K, ? super V> listener;
+    private final ConcurrentHashMap<K, Node<K, V>> data = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    // Guarded by evictionLock
+    private final List<Node<K, V>> sampleSpace = new ArrayList<>();
+    private long insertionsSinceAging;
+
+    private static final class Node<K, V> {
+        private final K key;
+        private volatile V value;
+        private volatile int weight;
+        private volatile int hits = 1;
+        private volatile long lastAccess = System.nanoTime();
+        // Position in sampleSpace, -1 when not in it; guarded by evictionLock
+        private int index = -1;
+        private boolean removed;
+
+        Node(K key, V value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    public SampledCache(int maxSize, boolean leastFrequent) {
+        this(maxSize, leastFrequent, null, MemoryBudget.unlimited());
+    }
+
+    public SampledCache(int maxSize, boolean leastFrequent, Weigher<? super K, ? super V> weigher, MemoryBudget budget) {
+        this(maxSize, leastFrequent, weigher, budget, null);
+    }
+
+    public SampledCache(int maxSize, boolean leastFrequent, Weigher<? super K, ? super V> weigher, MemoryBudget budget,
+                        EvictionListener<? super K, ? super V> listener) {
+        this.maxSize = maxSize;
+        this.leastFrequent = leastFrequent;
+        this.weigher = weigher;
+        this.budget = budget;
+        this.listener = listener;
+    }
+
+    @Override
+    public V get(Object key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+        recordAccess(node);
+        return node.value;
+    }
+
+    @Override
+    public V peek(Object key) {
+        Node<K, V> node = data.get(key);
+        return node != null ? node.value : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return data.containsKey(key);
+    }
+
+    private void recordAccess(Node<K, V> node) {
+        if (leastFrequent) {
+            int hits = node.hits;
+            if (hits < Integer.MAX_VALUE) {
+                node.hits = hits + 1;
+            }
+        } else {
+            node.lastAccess = System.nanoTime();
+        }
+    }
+
+    @Override
+    public V put(K key, V value) {
+        int weight = weigher != null ? weigher.weigh(key, value) : 0;
+        Node<K, V> created = new Node<>(key, value);
+        created.weight = weight;
+        Object[] previous = new Object[1];
+        int[] weightDelta = {weight};
+        Node<K, V> node = data.compute(key, (k, existing) -> {
+            if (existing == null) {
+                return created;
+            }
+            previous[0] = existing.value;
+            existing.value = value;
+            weightDelta[0] = weight - existing.weight;
+            existing.weight = weight;
+            return existing;
+        });
+        budget.add(weightDelta[0]);
+        if (node != created) {
+            recordAccess(node);
+            if (weightDelta[0] > 0 && budget.getExcessBytes() > 0) {
+                evictionLock.lock();
+                try {
+                    evict(node);
+                } finally {
+                    evictionLock.unlock();
+                }
+            }
+            @SuppressWarnings("unchecked")
+            V replaced = (V) previous[0];
+            return replaced;
+        }
+        evictionLock.lock();
+        try {
+            if (!created.removed) {
+                created.index = sampleSpace.size();
+                sampleSpace.add(created);
+            }
+            if (leastFrequent && ++insertionsSinceAging > 10L * maxSize) {
+                insertionsSinceAging = 0;
+                for (Node<K, V> entry : sampleSpace) {
+                    entry.hits = entry.hits >>> 1;
+                }
+            }
+            evict(created);
+        } finally {
+            evictionLock.unlock();
+        }
+        return null;
+    }
+
+    @Override
+    public V remove(Object key) {
+        Node<K, V> node = data.remove(key);
+        if (node == null) {
+            return null;
+        }
+        budget.add(-node.weight);
+        unlinkRemoved(node);
+        return node.value;
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        Node<K, V> node = data.get(key);
+        if (node == null || !Objects.equals(node.value, value) || !data.remove(key, node)) {
+            return false;
+        }
+        budget.add(-node.weight);
+        unlinkRemoved(node);
+        return true;
+    }
+
+    private void unlinkRemoved(Node<K, V> node) {
+        evictionLock.lock();
+        try {
+            node.removed = true;
+            unlink(node);
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // Called with evictionLock held. Never picks the entry just written, which would
+    // otherwise go if the budget's parent is far over
+    private void evict(Node<K, V> written) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while ((data.size() > maxSize || budget.getExcessBytes() > 0)
+                && sampleSpace.size() > (written.index >= 0 ? 1 : 0)) {
+            Node<K, V> victim = null;
+            for (int i = 0; i < SAMPLE_SIZE; i++) {
+                Node<K, V> candidate = sampleSpace.get(random.nextInt(sampleSpace.size()));
+                if (candidate != written && (victim == null || score(candidate) < score(victim))) {
+                    victim = candidate;
+                }
+            }
+            if (victim == null) {
+                continue;
+            }
+            unlink(victim);
+            victim.removed = true;
+            if (data.remove(victim.key, victim)) {
+                budget.add(-victim.weight);
+                budget.recordEviction(victim.weight);
+                if (listener != null) {
+                    listener.onEviction(victim.key, victim.value);
+                }
+            }
+        }
+    }
+
+    private long score(Node<K, V> node) {
+        return leastFrequent ? node.hits : node.lastAccess;
+    }
+
+    // Swaps the last entry into the hole so sampling stays O(1)
+    private void unlink(Node<K, V> node) {
+        int index = node.index;
+        if (index < 0) {
+            return;
+        }
+        Node<K, V> last = sampleSpace.remove(sampleSpace.size() - 1);
+        if (last != node) {
+            sampleSpace.set(index, last);
+            last.index = index;
+        }
+        node.index = -1;
+    }
+
+    @Override
+    public int size() {
+        return data.size();
+    }
+
+    @Override
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (Node<K, V> node : sampleSpace) {
+                node.index = -1;
+                node.removed = true;
+                if (data.remove(node.key, node)) {
+                    budget.add(-node.weight);
+                }
+            }
+            sampleSpace.clear();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                Iterator<Node<K, V>> nodes = data.values().iterator();
+                return new Iterator<>() {
+                    private Node<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return nodes.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = nodes.next();
+                        return new SimpleImmutableEntry<>(current.key, current.value);
+                    }
+
+                    @Override
+                    public void remove() {
+                        SampledCache.this.remove(current.key, current.value);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return data.size();
+            }
+        };
+    }
+}
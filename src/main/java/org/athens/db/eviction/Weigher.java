@@ -0,0 +1,9 @@
+package org.athens.db.eviction;
+
+/**
+ * Estimates how many bytes an entry takes, to charge it to a {@link MemoryBudget}.
+ */
+@FunctionalInterface
+public interface Weigher<K, V> {
+    int weigh(K key, V value);
+}
@@ -0,0 +1,278 @@
+package org.athens.db.offheap;
+
+import org.athens.db.storage.RecordCodec;
+import org.athens.utils.CacheValue;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Keeps values outside the Java heap, serialized in the record format, so that
+ * a store with tens of millions of entries holds one {@code long} handle per
+ * value instead of a graph of objects the garbage collector has to trace.
+ * <p>
+ * Memory comes in 1 MB slabs from an automatic {@link Arena}; each slab is cut
+ * into slots of one size class, and freed slots go onto a free list of their
+ * class. A value larger than half a slab gets a segment of its own, released
+ * when it is freed. Slabs are never handed back or moved to another class.
+ * <p>
+ * Allocation and freeing are serialized; reads are not. Every slot starts with
+ * a generation that is bumped when it is freed and is part of the handle, so
+ * a read racing with a free notices and returns {@code null} instead of
+ * another value.
+ */
+public class OffHeapValueStore {
+    public static final long SLAB_SIZE = 1L << 20;
+    private static final int HEADER_SIZE = 8;
+    private static final int MIN_SLOT_SIZE = 16;
+    private static final int[] SLOT_SIZES = slotSizes();
+    private static final int LARGE = 63;
+
+    // Handle layout: generation (20 bits) | size class (6) | slab (18) | offset (20)
+    private static final int OFFSET_BITS = 20;
+    private static final int SLAB_BITS = 18;
+    private static final int CLASS_BITS = 6;
+    private static final int GENERATION_BITS = 20;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long SLAB_MASK = (1L << SLAB_BITS) - 1;
+    private static final long CLASS_MASK = (1L << CLASS_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+    private static final int CLASS_SHIFT = OFFSET_BITS + SLAB_BITS;
+    private static final int GENERATION_SHIFT = CLASS_SHIFT + CLASS_BITS;
+
+    private final Arena arena = Arena.ofAuto();
+    private volatile MemorySegment[] slabs = new MemorySegment[16];
+    private int slabCount;
+    // Per size class: the slab being carved up and the next free offset in it
+    private final int[] currentSlab = new int[SLOT_SIZES.length];
+    private final long[] nextOffset = new long[SLOT_SIZES.length];
+    private final long[][] freeSlots = new long[SLOT_SIZES.length][];
+    private final int[] freeCount = new int[SLOT_SIZES.length];
+
+    // Values too large for a slab; the index takes the place of slab and offset
+    private volatile MemorySegment[] large = new MemorySegment[16];
+    private Arena[] largeArenas = new Arena[16];
+    private int[] freeLarge = new int[16];
+    private int freeLargeCount;
+    private int largeCount;
+    private int largeGeneration;
+
+    private long usedBytes;
+    private long reservedBytes;
+
+    public OffHeapValueStore() {
+        Arrays.fill(currentSlab, -1);
+        for (int i = 0; i < SLOT_SIZES.length; i++) {
+            freeSlots[i] = new long[16];
+        }
+    }
+
+    // 16, 24, 32, 48, 64, 96, ... up to half a slab, so at most a third of a slot is wasted
+    private static int[] slotSizes() {
+        int[] sizes = new int[64];
+        int count = 0;
+        for (int size = MIN_SLOT_SIZE; size <= SLAB_SIZE / 2; size *= 2) {
+            sizes[count++] = size;
+            if (size + size / 2 <= SLAB_SIZE / 2) {
+                sizes[count++] = size + size / 2;
+            }
+        }
+        return Arrays.copyOf(sizes, count);
+    }
+
+    /**
+     * Serializes {@code value} into off-heap memory.
+     *
+     * @return the handle to read and free it with; never 0
+     */
+    public long store(CacheValue value) {
+        byte[] bytes = RecordCodec.encodeValue(value);
+        int needed = bytes.length + HEADER_SIZE;
+        int sizeClass = Arrays.binarySearch(SLOT_SIZES, needed);
+        if (sizeClass < 0) {
+            sizeClass = -sizeClass - 1;
+        }
+        synchronized (this) {
+            long handle = sizeClass < SLOT_SIZES.length ? allocateSlot(sizeClass) : allocateLarge(needed);
+            MemorySegment segment = segment(handle);
+            long offset = offset(handle);
+            // The new generation must be visible before the data that replaces the old value
+            VarHandle.releaseFence();
+            segment.set(ValueLayout.JAVA_INT, offset + 4, bytes.length);
+            MemorySegment.copy(bytes, 0, segment, ValueLayout.JAVA_BYTE, offset + HEADER_SIZE, bytes.length);
+            usedBytes += capacity(handle);
+            return handle;
+        }
+    }
+
+    private long allocateSlot(int sizeClass) {
+        int generation;
+        long slot;
+        if (freeCount[sizeClass] > 0) {
+            slot = freeSlots[sizeClass][--freeCount[sizeClass]];
+            generation = slabs[(int) ((slot >>> OFFSET_BITS) & SLAB_MASK)].get(ValueLayout.JAVA_INT, slot & OFFSET_MASK);
+        } else {
+            int slotSize = SLOT_SIZES[sizeClass];
+            if (currentSlab[sizeClass] < 0 || nextOffset[sizeClass] + slotSize > SLAB_SIZE) {
+                currentSlab[sizeClass] = newSlab();
+                nextOffset[sizeClass] = 0;
+            }
+            slot = ((long) currentSlab[sizeClass] << OFFSET_BITS) | nextOffset[sizeClass];
+            nextOffset[sizeClass] += slotSize;
+            generation = 1;
+            slabs[currentSlab[sizeClass]].set(ValueLayout.JAVA_INT, slot & OFFSET_MASK, generation);
+        }
+        return ((long) generation << GENERATION_SHIFT) | ((long) sizeClass << CLASS_SHIFT) | slot;
+    }
+
+    private int newSlab() {
+        if (slabCount > SLAB_MASK) {
+            throw new IllegalStateException("Off-heap store is full");
+        }
+        MemorySegment[] current = slabs;
+        if (slabCount == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[slabCount] = arena.allocate(SLAB_SIZE, Long.BYTES);
+        slabs = current;
+        reservedBytes += SLAB_SIZE;
+        return slabCount++;
+    }
+
+    private long allocateLarge(int size) {
+        int index;
+        if (freeLargeCount > 0) {
+            index = freeLarge[--freeLargeCount];
+        } else {
+            index = largeCount++;
+            if (index >= largeArenas.length) {
+                largeArenas = Arrays.copyOf(largeArenas, largeArenas.length * 2);
+                large = Arrays.copyOf(large, largeArenas.length);
+            }
+        }
+        Arena valueArena = Arena.ofShared();
+        MemorySegment segment = valueArena.allocate(size, Long.BYTES);
+        largeGeneration = nextGeneration(largeGeneration);
+        segment.set(ValueLayout.JAVA_INT, 0, largeGeneration);
+        largeArenas[index] = valueArena;
+        MemorySegment[] current = large;
+        current[index] = segment;
+        large = current;
+        reservedBytes += size;
+        return ((long) largeGeneration << GENERATION_SHIFT) | ((long) LARGE << CLASS_SHIFT) | index;
+    }
+
+    private static int nextGeneration(int generation) {
+        int next = (generation + 1) & GENERATION_MASK;
+        return next == 0 ? 1 : next;
+    }
+
+    /**
+     * @return the value stored under {@code handle}, or {@code null} if it was
+     * freed, possibly while it was being read
+     */
+    public CacheValue read(long handle) {
+        int generation = (int) (handle >>> GENERATION_SHIFT);
+        long offset = offset(handle);
+        try {
+            MemorySegment segment = segment(handle);
+            if (segment == null || segment.get(ValueLayout.JAVA_INT, offset) != generation) {
+                return null;
+            }
+            VarHandle.acquireFence();
+            int length = segment.get(ValueLayout.JAVA_INT, offset + 4);
+            if (length < 0 || length > capacity(handle) - HEADER_SIZE) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + HEADER_SIZE, bytes, 0, length);
+            // Only decode what was not overwritten while we copied it
+            VarHandle.acquireFence();
+            if (segment.get(ValueLayout.JAVA_INT, offset) != generation) {
+                return null;
+            }
+            return RecordCodec.decodeValue(ByteBuffer.wrap(bytes));
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            // A large value whose memory was released under us
+            return null;
+        }
+    }
+
+    /**
+     * Releases the memory of {@code handle}; reads of it return {@code null}
+     * from now on.
+     */
+    public synchronized void free(long handle) {
+        int sizeClass = (int) ((handle >>> CLASS_SHIFT) & CLASS_MASK);
+        int generation = (int) (handle >>> GENERATION_SHIFT);
+        MemorySegment segment = segment(handle);
+        long offset = offset(handle);
+        if (segment == null || segment.get(ValueLayout.JAVA_INT, offset) != generation) {
+            return;
+        }
+        usedBytes -= capacity(handle);
+        segment.set(ValueLayout.JAVA_INT, offset, nextGeneration(generation));
+        if (sizeClass == LARGE) {
+            int index = (int) (handle & ((1L << CLASS_SHIFT) - 1));
+            reservedBytes -= segment.byteSize();
+            large[index] = null;
+            largeArenas[index].close();
+            largeArenas[index] = null;
+            if (freeLargeCount == freeLarge.length) {
+                freeLarge = Arrays.copyOf(freeLarge, freeLarge.length * 2);
+            }
+            freeLarge[freeLargeCount++] = index;
+            return;
+        }
+        long[] free = freeSlots[sizeClass];
+        if (freeCount[sizeClass] == free.length) {
+            free = Arrays.copyOf(free, free.length * 2);
+            freeSlots[sizeClass] = free;
+        }
+        free[freeCount[sizeClass]++] = handle & ((1L << CLASS_SHIFT) - 1);
+    }
+
+    /**
+     * @return the bytes the value under {@code handle} takes, including unused
+     * space at the end of its slot
+     */
+    public long capacity(long handle) {
+        int sizeClass = (int) ((handle >>> CLASS_SHIFT) & CLASS_MASK);
+        if (sizeClass == LARGE) {
+            MemorySegment segment = segment(handle);
+            return segment != null ? segment.byteSize() : 0;
+        }
+        return SLOT_SIZES[sizeClass];
+    }
+
+    private MemorySegment segment(long handle) {
+        int sizeClass = (int) ((handle >>> CLASS_SHIFT) & CLASS_MASK);
+        if (sizeClass == LARGE) {
+            return large[(int) (handle & ((1L << CLASS_SHIFT) - 1))];
+        }
+        return slabs[(int) ((handle >>> OFFSET_BITS) & SLAB_MASK)];
+    }
+
+    private static long offset(long handle) {
+        int sizeClass = (int) ((handle >>> CLASS_SHIFT) & CLASS_MASK);
+        return sizeClass == LARGE ? 0 : handle & OFFSET_MASK;
+    }
+
+    /**
+     * @return the bytes held by live values, counting whole slots
+     */
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    /**
+     * @return the off-heap memory allocated, including free slots
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+}
@@ -6,7 +6,7 @@ import java.util.List;
 import java.util.SortedMap;
 import java.util.TreeMap;
 
-public class ConsistentHashing {
+public final class ConsistentHashing {
     private final SortedMap<Integer, CacheBox> circle = new TreeMap<>();
     private final int numberOfReplicas;
 
@@ -19,7 +19,7 @@ public class ConsistentHashing {
 
     public void add(CacheBox node) {
         for (int i = 0; i < numberOfReplicas; i++) {
-            String nodeKey = node.toString() + i;
+            String nodeKey = nodeKey(node) + i;
             int hash = getHash(nodeKey);
             circle.put(hash, node);
         }
@@ -27,12 +27,17 @@ public class ConsistentHashing {
 
     public void remove(CacheBox node) {
         for (int i = 0; i < numberOfReplicas; i++) {
-            String nodeKey = node.toString() + i;
+            String nodeKey = nodeKey(node) + i;
             int hash = getHash(nodeKey);
             circle.remove(hash);
         }
     }
 
+    // The file name rather than identity, so a key maps to the same shard after a restart
+    private static String nodeKey(CacheBox node) {
+        return node.getDbFile();
+    }
+
     public CacheBox get(String key) {
         if (circle.isEmpty()) {
             return null;
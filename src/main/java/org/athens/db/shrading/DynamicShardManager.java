@@ -1,6 +1,9 @@
 package org.athens.db.shrading;
 
 import org.athens.db.core.CacheBox;
+import org.athens.db.core.TxIdManager;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.storage.CommitDecisionLog;
 import org.athens.utils.CacheQuery;
 import org.athens.utils.CacheValue;
 import org.athens.db.encryption.EncryptionStrategy;
@@ -14,6 +17,8 @@ import java.util.concurrent.ConcurrentHashMap;
 public class DynamicShardManager {
     private final Map<Integer, CacheBox> shards;
     private final ConsistentHashing consistentHashing;
+    private final CommitDecisionLog decisions;
+    private final ShardTransactions transactions;
     private final int initialNumberOfShards;
     private final EncryptionStrategy encryptionStrategy;
     private final boolean encryptionEnabled;
@@ -27,56 +32,72 @@ public class DynamicShardManager {
         this.encryptionEnabled = encryptionEnabled;
         this.encryptionKey = encryptionKey;
         this.maxSize = maxSize;
+        this.decisions = new CommitDecisionLog(dbFilePrefix + ".decisions", this::checkpointLsn);
+        TxIdManager.getInstance().observeTxId(decisions.maxTxId());
+        this.transactions = new ShardTransactions(decisions);
 
         List<CacheBox> initialShards = new ArrayList<>();
         for (int i = 0; i < initialNumberOfShards; i++) {
-            CacheBox shard = new CacheBox(dbFilePrefix + i + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize);
+            CacheBox shard = new CacheBox(dbFilePrefix + i + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize,
+                    EvictionPolicy.LRU, false, decisions::isCommitted);
             shards.put(i, shard);
             initialShards.add(shard);
         }
         this.consistentHashing = new ConsistentHashing(100, initialShards);
     }
 
+    // For dropping commit decisions that no shard's log can replay any more
+    private long checkpointLsn(String dbFile) {
+        for (CacheBox shard : shards.values()) {
+            if (shard.getDbFile().equals(dbFile)) {
+                return shard.getStorage().getCheckpointLsn();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
     public void put(String key, CacheValue value) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         shard.put(key, value);
     }
 
     public CacheValue get(String key) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         return shard.get(key);
     }
 
     public void delete(String key) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         shard.delete(key);
     }
 
+    /**
+     * Commits the shards the transaction wrote to, all or none of them, also
+     * across a crash. A transaction that wrote more than one shard is durable
+     * when this returns, whatever the durability.
+     *
+     * @throws org.athens.exceptions.ConcurrencyException if any of them
+     * conflicts, in which case none is committed
+     */
     public void commit() {
-        for (CacheBox shard : shards.values()) {
-            shard.commit();
-        }
+        transactions.commit();
     }
 
     public void rollback() {
-        for (CacheBox shard : shards.values()) {
-            shard.rollback();
-        }
+        transactions.rollback();
     }
 
     public void beginTransaction() {
-        for (CacheBox shard : shards.values()) {
-            shard.beginTransaction();
-        }
+        transactions.begin(null);
     }
 
     public boolean isTransactionActive() {
-        return shards.values().stream().allMatch(CacheBox::isTransactionActive);
+        return transactions.isActive();
     }
 
     public Map<String, CacheValue> getStagedState() {
         Map<String, CacheValue> stagedState = new HashMap<>();
-        for (CacheBox shard : shards.values()) {
+        for (CacheBox shard : transactions.touchedShards()) {
             stagedState.putAll(shard.getStagedState());
         }
         return stagedState;
@@ -100,7 +121,8 @@ public class DynamicShardManager {
 
     public void addShard() {
         int newShardId = shards.size();
-        CacheBox newShard = new CacheBox("shard" + newShardId + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize);
+        CacheBox newShard = new CacheBox("shard" + newShardId + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize,
+                EvictionPolicy.LRU, false, decisions::isCommitted);
         shards.put(newShardId, newShard);
         consistentHashing.add(newShard);
     }
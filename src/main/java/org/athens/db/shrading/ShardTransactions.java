@@ -0,0 +1,232 @@
+package org.athens.db.shrading;
+
+import org.athens.db.core.CacheBox;
+import org.athens.db.core.TxIdManager;
+import org.athens.db.storage.CommitDecisionLog;
+import org.athens.db.storage.Durability;
+import org.athens.db.storage.WriteAheadLog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * The transactions of a sharded store, one per thread, spanning only the
+ * shards they touch.
+ * <p>
+ * A shard joins the transaction the first time one of its keys is read or
+ * written, which is when its snapshot is taken. Shards that are never touched
+ * take no part in it at all, and shards that were only read are released at
+ * commit without locking or logging anything.
+ * <p>
+ * A transaction that wrote one shard commits there like any other. One that
+ * wrote several is committed in two phases, all or nothing, also across a
+ * crash. Every shard that wrote is locked first, in the order of their file
+ * names so that concurrent commits cannot deadlock. Then all of them are
+ * prepared in parallel: each is validated and its batch logged, marked with
+ * the transaction id, but not installed. Every shard has its own log writer,
+ * so the fsyncs overlap as well. Once all of them are on disk, one record in the {@link CommitDecisionLog} commits the transaction;
+ * recovery replays the marked batches only if it finds that record. The
+ * second phase then installs the batches and appends them to the segments,
+ * which cannot undo the commit: a shard whose append fails stops taking
+ * commits until recovery replays it. Because of the fsyncs, such a
+ * transaction is durable when commit returns, whatever the durability asked.
+ * <p>
+ * Reads are not a snapshot across shards: each shard's snapshot is taken when
+ * the transaction first touches it, so a transaction may see one shard before
+ * a concurrent commit and another after it. Only the keys written are checked
+ * for conflicts.
+ */
+class ShardTransactions {
+    private final ThreadLocal<Active> current = new ThreadLocal<>();
+    private final CommitDecisionLog decisions;
+
+    private static final class Active {
+        private final Durability durability;
+        // Keyed by file name, which fixes the order shards are locked in
+        private final TreeMap<String, CacheBox> shards = new TreeMap<>();
+
+        private Active(Durability durability) {
+            this.durability = durability;
+        }
+    }
+
+    ShardTransactions(CommitDecisionLog decisions) {
+        this.decisions = decisions;
+    }
+
+    void begin(Durability durability) {
+        if (current.get() != null) {
+            throw new IllegalStateException("Transaction already active on this thread");
+        }
+        current.set(new Active(durability));
+    }
+
+    boolean isActive() {
+        return current.get() != null;
+    }
+
+    /**
+     * Makes {@code shard} part of the current transaction.
+     *
+     * @return {@code shard}
+     */
+    CacheBox touch(CacheBox shard) {
+        Active active = active();
+        if (active.shards.putIfAbsent(shard.getDbFile(), shard) == null) {
+            if (active.durability != null) {
+                shard.beginTransaction(active.durability);
+            } else {
+                shard.beginTransaction();
+            }
+        }
+        return shard;
+    }
+
+    Collection<CacheBox> touchedShards() {
+        return active().shards.values();
+    }
+
+    void commit() {
+        Active active = active();
+        current.remove();
+        List<CacheBox> dirty = new ArrayList<>();
+        for (CacheBox shard : active.shards.values()) {
+            if (shard.hasStagedChanges()) {
+                dirty.add(shard);
+            } else {
+                shard.rollback();
+            }
+        }
+
+        if (dirty.isEmpty()) {
+            return;
+        }
+        if (dirty.size() == 1) {
+            commitAlone(dirty.get(0));
+            return;
+        }
+        long txId = TxIdManager.getInstance().getNextTxId();
+
+        // Phase one: lock every shard that wrote, in order, then validate and log them all at once
+        List<CacheBox> prepared = new ArrayList<>();
+        List<Supplier<CompletableFuture<Long>>> steps = new ArrayList<>();
+        try {
+            for (CacheBox shard : dirty) {
+                steps.add(shard.lockForPrepare(txId));
+                prepared.add(shard);
+            }
+        } catch (RuntimeException e) {
+            for (CacheBox shard : prepared) {
+                shard.abortPrepared();
+            }
+            for (CacheBox shard : dirty.subList(prepared.size(), dirty.size())) {
+                shard.rollback();
+            }
+            throw e;
+        }
+        List<CompletableFuture<Long>> logged;
+        try {
+            logged = prepareAll(steps);
+        } catch (RuntimeException e) {
+            for (CacheBox shard : prepared) {
+                shard.abortPrepared();
+            }
+            throw e;
+        }
+        Map<String, Long> participants = new HashMap<>();
+        try {
+            WriteAheadLog.await(CompletableFuture.allOf(logged.toArray(new CompletableFuture<?>[0])));
+            for (int i = 0; i < prepared.size(); i++) {
+                participants.put(prepared.get(i).getDbFile(), logged.get(i).join());
+            }
+        } catch (IOException e) {
+            // Nothing was decided, so recovery skips the batches that did reach disk
+            for (CacheBox shard : prepared) {
+                shard.abortPrepared();
+            }
+            throw new RuntimeException("Error writing transaction log: " + e.getMessage(), e);
+        }
+
+        try {
+            decisions.commit(txId, participants);
+        } catch (IOException e) {
+            // The decision may be on disk anyway, in which case recovery commits the
+            // transaction; until then the shards must not commit anything past it
+            for (CacheBox shard : prepared) {
+                shard.getStorage().fail(e);
+                shard.abortPrepared();
+            }
+            throw new RuntimeException("Error recording commit decision: " + e.getMessage(), e);
+        }
+
+        // Phase two: cannot fail any more
+        for (CacheBox shard : prepared) {
+            shard.commitPrepared();
+        }
+    }
+
+    // Prepares the first shard on the calling thread and the others on the common pool
+    private static List<CompletableFuture<Long>> prepareAll(List<Supplier<CompletableFuture<Long>>> steps) {
+        List<CompletableFuture<CompletableFuture<Long>>> running = new ArrayList<>();
+        for (Supplier<CompletableFuture<Long>> step : steps.subList(1, steps.size())) {
+            running.add(CompletableFuture.supplyAsync(step));
+        }
+        List<CompletableFuture<Long>> logged = new ArrayList<>();
+        RuntimeException failure = null;
+        try {
+            logged.add(steps.get(0).get());
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        // Every step must be over before the caller releases the locks they run under
+        for (CompletableFuture<CompletableFuture<Long>> step : running) {
+            try {
+                logged.add(step.join());
+            } catch (CompletionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException cause ? cause : e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return logged;
+    }
+
+    private static void commitAlone(CacheBox shard) {
+        try {
+            shard.commit();
+        } catch (RuntimeException e) {
+            // Still active unless the commit was installed
+            if (shard.isTransactionActive()) {
+                shard.rollback();
+            }
+            throw e;
+        }
+    }
+
+    void rollback() {
+        Active active = active();
+        current.remove();
+        for (CacheBox shard : active.shards.values()) {
+            shard.rollback();
+        }
+    }
+
+    private Active active() {
+        Active active = current.get();
+        if (active == null) {
+            throw new IllegalStateException("No active transaction");
+        }
+        return active;
+    }
+}
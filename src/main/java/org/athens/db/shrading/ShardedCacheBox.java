@@ -1,80 +1,173 @@
 package org.athens.db.shrading;
 
 import org.athens.db.core.CacheBox;
+import org.athens.db.core.TxIdManager;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
+import org.athens.db.storage.CommitDecisionLog;
+import org.athens.db.storage.Durability;
 import org.athens.utils.CacheQuery;
 import org.athens.utils.CacheValue;
+import org.athens.utils.SearchPage;
 import org.athens.db.encryption.EncryptionStrategy;
 
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ShardedCacheBox {
     private final Map<Integer, CacheBox> shards;
     private final ConsistentHashing consistentHashing;
+    // Decides the transactions that span shards; shards consult it when they recover
+    private final CommitDecisionLog decisions;
+    private final ShardTransactions transactions;
     private final EncryptionStrategy encryptionStrategy;
     private final boolean encryptionEnabled;
     private final byte[] encryptionKey;
     private final int maxSize;
+    private volatile Durability durability = Durability.ALWAYS;
+    private final EvictionPolicy evictionPolicy;
+    private final boolean offHeapValues;
+    private volatile MemoryBudget globalMemoryBudget;
+    private volatile long shardMaxMemory = MemoryBudget.UNLIMITED;
 
     public ShardedCacheBox(int initialNumberOfShards, String dbFilePrefix, EncryptionStrategy encryptionStrategy, boolean encryptionEnabled, byte[] encryptionKey, int maxSize) {
+        this(initialNumberOfShards, dbFilePrefix, encryptionStrategy, encryptionEnabled, encryptionKey, maxSize, EvictionPolicy.LRU);
+    }
+
+    /**
+     * @param evictionPolicy the policy of the initial shards and of shards added
+     * later; {@link #setEvictionPolicy(int, EvictionPolicy)} changes single shards
+     */
+    public ShardedCacheBox(int initialNumberOfShards, String dbFilePrefix, EncryptionStrategy encryptionStrategy, boolean encryptionEnabled, byte[] encryptionKey, int maxSize,
+                           EvictionPolicy evictionPolicy) {
+        this(initialNumberOfShards, dbFilePrefix, encryptionStrategy, encryptionEnabled, encryptionKey, maxSize, evictionPolicy, false);
+    }
+
+    /**
+     * @param offHeapValues whether every shard keeps its values outside the Java heap
+     */
+    public ShardedCacheBox(int initialNumberOfShards, String dbFilePrefix, EncryptionStrategy encryptionStrategy, boolean encryptionEnabled, byte[] encryptionKey, int maxSize,
+                           EvictionPolicy evictionPolicy, boolean offHeapValues) {
         this.shards = new ConcurrentHashMap<>();
+        this.evictionPolicy = evictionPolicy;
+        this.offHeapValues = offHeapValues;
         this.encryptionStrategy = encryptionStrategy;
         this.encryptionEnabled = encryptionEnabled;
         this.encryptionKey = encryptionKey;
         this.maxSize = maxSize;
+        this.decisions = new CommitDecisionLog(dbFilePrefix + ".decisions", this::checkpointLsn);
+        TxIdManager.getInstance().observeTxId(decisions.maxTxId());
+        this.transactions = new ShardTransactions(decisions);
 
-        List<CacheBox> initialShards = new ArrayList<>();
-        for (int i = 0; i < initialNumberOfShards; i++) {
-            CacheBox shard = new CacheBox(dbFilePrefix + i + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize);
-            shards.put(i, shard);
-            initialShards.add(shard);
+        // Every shard has its own files and log, so they recover in parallel
+        List<CacheBox> initialShards = IntStream.range(0, initialNumberOfShards).parallel()
+                .mapToObj(i -> new CacheBox(dbFilePrefix + i + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize, evictionPolicy,
+                        offHeapValues, decisions::isCommitted))
+                .collect(Collectors.toList());
+        for (int i = 0; i < initialShards.size(); i++) {
+            shards.put(i, initialShards.get(i));
         }
         this.consistentHashing = new ConsistentHashing(100, initialShards);
     }
 
+    // For dropping commit decisions that no shard's log can replay any more
+    private long checkpointLsn(String dbFile) {
+        for (CacheBox shard : shards.values()) {
+            if (shard.getDbFile().equals(dbFile)) {
+                return shard.getStorage().getCheckpointLsn();
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
     public void put(String key, CacheValue value) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         shard.put(key, value);
     }
 
     public CacheValue get(String key) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         return shard.get(key);
     }
 
     public void delete(String key) {
-        CacheBox shard = consistentHashing.get(key);
+        CacheBox shard = transactions.touch(consistentHashing.get(key));
         shard.delete(key);
     }
 
+    /**
+     * @return the latest committed value of {@code key}, read from its shard
+     * without a transaction
+     */
+    public CacheValue getCommitted(String key) {
+        return consistentHashing.get(key).getCommitted(key);
+    }
+
+    public boolean isReadableFromMemory(String key) {
+        return consistentHashing.get(key).isReadableFromMemory(key);
+    }
+
+    /**
+     * Writes {@code key} in a transaction of its own on the shard that owns it;
+     * the other shards are not involved.
+     */
+    public void putAndCommit(String key, CacheValue value) {
+        consistentHashing.get(key).putAndCommit(key, value);
+    }
+
+    /**
+     * Deletes {@code key} in a transaction of its own on the shard that owns it.
+     *
+     * @return whether the key existed
+     */
+    public boolean deleteAndCommit(String key) {
+        return consistentHashing.get(key).deleteAndCommit(key);
+    }
+
+    /**
+     * Commits the shards the transaction wrote to, all or none of them, also
+     * across a crash. A transaction that wrote more than one shard is durable
+     * when this returns, whatever the durability.
+     *
+     * @throws org.athens.exceptions.ConcurrencyException if any of them
+     * conflicts, in which case none is committed
+     */
     public void commit() {
-        for (CacheBox shard : shards.values()) {
-            shard.commit();
-        }
+        transactions.commit();
     }
 
     public void rollback() {
-        for (CacheBox shard : shards.values()) {
-            shard.rollback();
-        }
+        transactions.rollback();
     }
 
     public void beginTransaction() {
-        for (CacheBox shard : shards.values()) {
-            shard.beginTransaction();
-        }
+        transactions.begin(null);
+    }
+
+    public void beginTransaction(Durability durability) {
+        transactions.begin(durability);
     }
 
     public boolean isTransactionActive() {
-        return shards.values().stream().allMatch(CacheBox::isTransactionActive);
+        return transactions.isActive();
     }
 
     public Map<String, CacheValue> getStagedState() {
         Map<String, CacheValue> stagedState = new HashMap<>();
-        for (CacheBox shard : shards.values()) {
+        for (CacheBox shard : transactions.touchedShards()) {
             stagedState.putAll(shard.getStagedState());
         }
         return stagedState;
@@ -98,7 +191,7 @@ public class ShardedCacheBox {
 
     public Map<String, CacheValue> searchStaged(CacheQuery query) {
         Map<String, CacheValue> results = new HashMap<>();
-        for (CacheBox shard : shards.values()) {
+        for (CacheBox shard : transactions.touchedShards()) {
             results.putAll(shard.searchStaged(query));
         }
         return results;
@@ -112,9 +205,91 @@ public class ShardedCacheBox {
         return results;
     }
 
+    /**
+     * Streams the committed matches of every shard merged into one ascending
+     * key order, holding one pending entry per shard rather than all results.
+     * Closing the stream closes the shard streams.
+     *
+     * @param after the key to resume after, or {@code null} to start from the
+     * beginning
+     */
+    public Stream<Map.Entry<String, CacheValue>> streamCommitted(CacheQuery query, String after) {
+        List<Stream<Map.Entry<String, CacheValue>>> shardStreams = new ArrayList<>();
+        for (CacheBox shard : shards.values()) {
+            shardStreams.add(shard.streamCommitted(query, after));
+        }
+        Iterator<Map.Entry<String, CacheValue>> merged = new MergingIterator(shardStreams);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> shardStreams.forEach(Stream::close));
+    }
+
+    /**
+     * Returns up to {@code limit} committed matches, resuming from a cursor of
+     * an earlier page. Only the page is held in memory.
+     *
+     * @param cursor the {@link SearchPage#getNextCursor() cursor} of the
+     * previous page, or {@code null} for the first
+     * @param offset the number of matches to skip before the page starts
+     */
+    public SearchPage searchPage(CacheQuery query, String cursor, int offset, int limit) {
+        if (limit <= 0 || offset < 0) {
+            throw new IllegalArgumentException("Invalid page: offset " + offset + ", limit " + limit);
+        }
+        String after = cursor != null ? SearchPage.decodeCursor(cursor) : null;
+        try (Stream<Map.Entry<String, CacheValue>> matches = streamCommitted(query, after)) {
+            // One more than the page tells whether there is a next one
+            List<Map.Entry<String, CacheValue>> entries = matches.skip(offset).limit(limit + 1L)
+                    .collect(Collectors.toCollection(ArrayList::new));
+            if (entries.size() <= limit) {
+                return new SearchPage(entries, null);
+            }
+            entries.remove(limit);
+            return new SearchPage(entries, SearchPage.encodeCursor(entries.get(limit - 1).getKey()));
+        }
+    }
+
+    // A k-way merge of key-ordered streams; every key lives in one shard, so there are no duplicates
+    private static class MergingIterator implements Iterator<Map.Entry<String, CacheValue>> {
+        private final PriorityQueue<Head> heads = new PriorityQueue<>(Comparator.comparing(head -> head.entry.getKey()));
+
+        private record Head(Map.Entry<String, CacheValue> entry, Iterator<Map.Entry<String, CacheValue>> rest) {
+        }
+
+        MergingIterator(List<Stream<Map.Entry<String, CacheValue>>> streams) {
+            for (Stream<Map.Entry<String, CacheValue>> stream : streams) {
+                advance(stream.iterator());
+            }
+        }
+
+        private void advance(Iterator<Map.Entry<String, CacheValue>> iterator) {
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator.next(), iterator));
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !heads.isEmpty();
+        }
+
+        @Override
+        public Map.Entry<String, CacheValue> next() {
+            Head head = heads.poll();
+            if (head == null) {
+                throw new NoSuchElementException();
+            }
+            advance(head.rest);
+            return head.entry;
+        }
+    }
+
     public void addShard() {
         int newShardId = shards.size();
-        CacheBox newShard = new CacheBox("shard" + newShardId + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize);
+        CacheBox newShard = new CacheBox("shard" + newShardId + ".cbx", encryptionEnabled, encryptionKey, encryptionStrategy, maxSize, evictionPolicy,
+                offHeapValues, decisions::isCommitted);
+        newShard.setDurability(durability);
+        newShard.setMaxMemory(shardMaxMemory);
+        newShard.getMemoryBudget().setParent(globalMemoryBudget);
         shards.put(newShardId, newShard);
         consistentHashing.add(newShard);
     }
@@ -123,6 +298,8 @@ public class ShardedCacheBox {
         CacheBox shardToRemove = shards.get(shardId);
         shards.remove(shardId);
         consistentHashing.remove(shardToRemove);
+        // Its entries no longer count against the global budget, nor does it take a share of it
+        shardToRemove.getMemoryBudget().setParent(null);
     }
 
     public void setEncryptionEnabled(boolean encryptionEnabled) {
@@ -147,6 +324,50 @@ public class ShardedCacheBox {
         }
     }
 
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+        for (CacheBox shard : shards.values()) {
+            shard.setDurability(durability);
+        }
+    }
+
+    /**
+     * Limits the estimated footprint of every shard, in bytes.
+     */
+    public void setMaxMemoryPerShard(long maxBytes) {
+        this.shardMaxMemory = maxBytes;
+        for (CacheBox shard : shards.values()) {
+            shard.setMaxMemory(maxBytes);
+        }
+    }
+
+    /**
+     * Charges every shard to {@code budget} as well, which may be shared with
+     * other sharded stores to enforce one limit for the whole process.
+     */
+    public void setGlobalMemoryBudget(MemoryBudget budget) {
+        this.globalMemoryBudget = budget;
+        for (CacheBox shard : shards.values()) {
+            shard.getMemoryBudget().setParent(budget);
+        }
+    }
+
+    public MemoryBudget getGlobalMemoryBudget() {
+        return globalMemoryBudget;
+    }
+
+    public void setEvictionPolicy(int shardId, EvictionPolicy evictionPolicy) {
+        CacheBox shard = shards.get(shardId);
+        if (shard == null) {
+            throw new IllegalArgumentException("No shard " + shardId);
+        }
+        shard.setEvictionPolicy(evictionPolicy);
+    }
+
     public EncryptionStrategy getEncryptionStrategy() {
         return encryptionStrategy;
     }
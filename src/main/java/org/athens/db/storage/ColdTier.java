@@ -0,0 +1,628 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * The on-disk tier of a store: entries evicted from memory are spilled here
+ * and read back on demand, so the size of a store is no longer bounded by
+ * how many keys it may keep in memory.
+ * <p>
+ * Spilled entries collect in a buffer that is written out as a sorted run
+ * file once it holds {@code spillBatch} entries. Each run keeps a sparse index
+ * of its keys and a {@link BloomFilter} in memory, so a lookup of a key that
+ * was never spilled usually touches no file at all, and one that was reads
+ * a single small block per run. Runs are merged in the background so that
+ * there are never many more than {@link #MAX_RUNS}; a merge that includes the
+ * oldest run drops the deletes.
+ * <p>
+ * Everything in the tier is also in the store's segments, so the files are
+ * deleted when the tier is opened and filled again as recovery evicts.
+ */
+public class ColdTier implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ColdTier.class);
+    public static final int DEFAULT_SPILL_BATCH = 4096;
+    public static final int MAX_RUNS = 8;
+    private static final int INDEX_INTERVAL_BYTES = 4096;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final String RUN_SUFFIX = ".cold";
+    // Marks a delete in the buffers; compared by identity
+    private static final CacheValue TOMBSTONE = CacheValue.ofNull(0);
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "cold-tier-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File directory;
+    private final String baseName;
+    private final ValueCodec codec;
+    private final BooleanSupplier encrypted;
+    private final int spillBatch;
+
+    private volatile ConcurrentHashMap<String, CacheValue> buffer = new ConcurrentHashMap<>();
+    // The buffer being written out, if any
+    private volatile Map<String, CacheValue> flushing;
+    private Future<?> pendingFlush;
+    // Newest first; only replaced by the writer thread
+    private volatile List<Run> runs = List.of();
+    // Locks rather than monitors: put may wait for the writer and the files
+    // lock is held over file I/O, neither of which may pin a virtual thread
+    private final ReentrantLock spillLock = new ReentrantLock();
+    private final ReentrantLock filesLock = new ReentrantLock();
+    private long nextRunId = 1;
+    private volatile boolean closed;
+
+    private static final class Run {
+        private final File file;
+        private final FileChannel channel;
+        private final boolean encrypted;
+        private final long entries;
+        // First key and offset of every block
+        private final String[] indexKeys;
+        private final long[] indexOffsets;
+        private final long end;
+        private final BloomFilter bloomFilter;
+
+        Run(File file, boolean encrypted, long entries, String[] indexKeys, long[] indexOffsets, long end,
+            BloomFilter bloomFilter) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.encrypted = encrypted;
+            this.entries = entries;
+            this.indexKeys = indexKeys;
+            this.indexOffsets = indexOffsets;
+            this.end = end;
+            this.bloomFilter = bloomFilter;
+        }
+
+        // Returns the value, TOMBSTONE, or null if the run does not hold the key
+        CacheValue get(String key, ValueCodec codec) throws IOException {
+            if (!bloomFilter.mightContain(key)) {
+                return null;
+            }
+            int block = Arrays.binarySearch(indexKeys, key);
+            if (block < 0) {
+                block = -block - 2;
+                if (block < 0) {
+                    return null;
+                }
+            }
+            long start = indexOffsets[block];
+            long stop = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : end;
+            ByteBuffer data = ByteBuffer.allocate((int) (stop - start));
+            while (data.hasRemaining()) {
+                if (channel.read(data, start + data.position()) < 0) {
+                    break;
+                }
+            }
+            data.flip();
+            RecordCodec.Record record;
+            while ((record = RecordCodec.read(data)) != null) {
+                int order = record.getKey().compareTo(key);
+                if (order == 0) {
+                    return record.getOp() == RecordCodec.OP_DELETE ? TOMBSTONE : codec.decode(record.getPayload(), encrypted);
+                }
+                if (order > 0) {
+                    break;
+                }
+            }
+            return null;
+        }
+
+        void delete() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Could not close {}: {}", file, e.getMessage());
+            }
+            if (!file.delete() && file.exists()) {
+                logger.warn("Could not delete {}", file);
+            }
+        }
+    }
+
+    public ColdTier(String dbFile, ValueCodec codec, BooleanSupplier encrypted) {
+        this(dbFile, codec, encrypted, DEFAULT_SPILL_BATCH);
+    }
+
+    public ColdTier(String dbFile, ValueCodec codec, BooleanSupplier encrypted, int spillBatch) {
+        File file = new File(dbFile);
+        this.directory = file.getAbsoluteFile().getParentFile();
+        this.baseName = file.getName();
+        this.codec = codec;
+        this.encrypted = encrypted;
+        this.spillBatch = spillBatch;
+        deleteRunFiles();
+    }
+
+    private void deleteRunFiles() {
+        String prefix = baseName + ".";
+        File[] stale = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(RUN_SUFFIX));
+        if (stale == null) {
+            return;
+        }
+        for (File file : stale) {
+            if (!file.delete()) {
+                logger.warn("Could not delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * @return the value spilled for {@code key}, or {@code null} if there is
+     * none or it was deleted since
+     */
+    public CacheValue get(String key) {
+        CacheValue value = lookup(key);
+        return value == TOMBSTONE ? null : value;
+    }
+
+    /**
+     * @return whether the tier may hold a value or a delete for {@code key};
+     * {@code false} is certain
+     */
+    public boolean mightContain(String key) {
+        Map<String, CacheValue> pending = flushing;
+        if (buffer.containsKey(key) || pending != null && pending.containsKey(key)) {
+            return true;
+        }
+        for (Run run : runs) {
+            if (run.bloomFilter.mightContain(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private CacheValue lookup(String key) {
+        CacheValue value = buffer.get(key);
+        if (value != null) {
+            return value;
+        }
+        Map<String, CacheValue> pending = flushing;
+        if (pending != null && (value = pending.get(key)) != null) {
+            return value;
+        }
+        while (true) {
+            List<Run> current = runs;
+            try {
+                for (Run run : current) {
+                    value = run.get(key, codec);
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                return null;
+            } catch (ClosedChannelException e) {
+                // A merge replaced the runs while we read them
+                if (runs == current) {
+                    throw new RuntimeException("Error reading cold tier: " + e.getMessage(), e);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading cold tier: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Spills {@code value} as the current value of {@code key}.
+     */
+    public void put(String key, CacheValue value) {
+        spillLock.lock();
+        try {
+            buffer.put(key, value);
+            flushIfFull();
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    /**
+     * Records that {@code key} was deleted, if the tier may still hold a value
+     * for it.
+     */
+    public void delete(String key) {
+        spillLock.lock();
+        try {
+            if (mightContain(key)) {
+                buffer.put(key, TOMBSTONE);
+                flushIfFull();
+            }
+        } finally {
+            spillLock.unlock();
+        }
+    }
+
+    private void flushIfFull() {
+        int size = buffer.size();
+        if (size < spillBatch || closed) {
+            return;
+        }
+        if (pendingFlush != null && !pendingFlush.isDone()) {
+            if (size < 4 * spillBatch) {
+                return;
+            }
+            // The writer fell behind; wait rather than let the buffer grow without bound
+            awaitFlush();
+        }
+        Map<String, CacheValue> full = buffer;
+        flushing = full;
+        buffer = new ConcurrentHashMap<>();
+        pendingFlush = executor.submit(() -> flush(full));
+    }
+
+    private void awaitFlush() {
+        try {
+            pendingFlush.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error spilling to cold tier: " + e.getMessage(), e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Error spilling to cold tier: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    // Runs on the writer thread
+    private void flush(Map<String, CacheValue> entries) {
+        try {
+            writeRun(entries);
+        } catch (IOException | RuntimeException e) {
+            logger.error("Spilling to cold tier failed", e);
+            // Keep the entries in memory rather than lose them; newer spills win
+            ConcurrentHashMap<String, CacheValue> current = buffer;
+            entries.forEach(current::putIfAbsent);
+        }
+        // Readers find the entries in the new run before the buffer goes
+        flushing = null;
+        try {
+            while (runs.size() > MAX_RUNS && !closed) {
+                mergeNewest();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Merging cold tier runs failed", e);
+        }
+    }
+
+    private void writeRun(Map<String, CacheValue> entries) throws IOException {
+        filesLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            TreeMap<String, CacheValue> sorted = new TreeMap<>(entries);
+            boolean encryptRun = encrypted.getAsBoolean();
+            RunWriter writer = new RunWriter(newRunFile(), encryptRun, sorted.size());
+            try {
+                for (Map.Entry<String, CacheValue> entry : sorted.entrySet()) {
+                    CacheValue value = entry.getValue();
+                    writer.write(entry.getKey(), value == TOMBSTONE ? null : codec.encode(value, encryptRun));
+                }
+                List<Run> updated = new ArrayList<>(runs.size() + 1);
+                updated.add(writer.finish());
+                updated.addAll(runs);
+                runs = List.copyOf(updated);
+            } catch (IOException | RuntimeException e) {
+                writer.abort();
+                throw e;
+            }
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    /**
+     * Merges the newest runs, as many as are no more than twice the size of
+     * what is merged already, so that every entry is rewritten only a few
+     * times.
+     */
+    private void mergeNewest() throws IOException {
+        filesLock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            List<Run> current = runs;
+            int count = 2;
+            long mergedSize = current.get(0).end + current.get(1).end;
+            while (count < current.size() && current.get(count).end <= 2 * mergedSize) {
+                mergedSize += current.get(count).end;
+                count++;
+            }
+            List<Run> inputs = current.subList(0, count);
+            boolean dropDeletes = count == current.size();
+            Run merged = merge(inputs, dropDeletes);
+            List<Run> updated = new ArrayList<>(current.size() - count + 1);
+            updated.add(merged);
+            updated.addAll(current.subList(count, current.size()));
+            runs = List.copyOf(updated);
+            for (Run input : inputs) {
+                input.delete();
+            }
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    private Run merge(List<Run> inputs, boolean dropDeletes) throws IOException {
+        boolean encryptRun = encrypted.getAsBoolean();
+        long entries = 0;
+        for (Run input : inputs) {
+            entries += input.entries;
+        }
+        List<RunCursor> cursors = new ArrayList<>(inputs.size());
+        PriorityQueue<RunCursor> queue = new PriorityQueue<>(
+                Comparator.comparing((RunCursor cursor) -> cursor.record.getKey()).thenComparingInt(cursor -> cursor.age));
+        RunWriter writer = new RunWriter(newRunFile(), encryptRun, entries);
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                RunCursor cursor = new RunCursor(inputs.get(i), i);
+                cursors.add(cursor);
+                if (cursor.advance()) {
+                    queue.add(cursor);
+                }
+            }
+            while (!queue.isEmpty()) {
+                // The newest run holding the key comes first
+                RunCursor newest = queue.poll();
+                RecordCodec.Record record = newest.record;
+                String key = record.getKey();
+                if (record.getOp() == RecordCodec.OP_PUT) {
+                    byte[] payload;
+                    if (newest.run.encrypted == encryptRun) {
+                        payload = new byte[record.getPayload().remaining()];
+                        record.getPayload().duplicate().get(payload);
+                    } else {
+                        payload = codec.encode(codec.decode(record.getPayload(), newest.run.encrypted), encryptRun);
+                    }
+                    writer.write(key, payload);
+                } else if (!dropDeletes) {
+                    writer.write(key, null);
+                }
+                if (newest.advance()) {
+                    queue.add(newest);
+                }
+                while (!queue.isEmpty() && queue.peek().record.getKey().equals(key)) {
+                    RunCursor older = queue.poll();
+                    if (older.advance()) {
+                        queue.add(older);
+                    }
+                }
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.close();
+            }
+        }
+    }
+
+    private File newRunFile() {
+        return new File(directory, baseName + "." + nextRunId++ + RUN_SUFFIX);
+    }
+
+    /**
+     * Applies every value and delete in the tier to {@code state}, oldest
+     * first, so that {@code state} ends up with the tier's current view. Merges
+     * wait until it is done.
+     */
+    public void copyTo(Map<String, CacheValue> state) {
+        filesLock.lock();
+        try {
+            List<Run> current = runs;
+            try {
+                for (int i = current.size() - 1; i >= 0; i--) {
+                    try (RunCursor cursor = new RunCursor(current.get(i), i)) {
+                        while (cursor.advance()) {
+                            RecordCodec.Record record = cursor.record;
+                            if (record.getOp() == RecordCodec.OP_DELETE) {
+                                state.remove(record.getKey());
+                            } else {
+                                state.put(record.getKey(), codec.decode(record.getPayload(), cursor.run.encrypted));
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException("Error reading cold tier: " + e.getMessage(), e);
+            }
+            // Entries still waiting for the writer, which we keep from finishing
+            Map<String, CacheValue> pending = flushing;
+            if (pending != null) {
+                apply(pending, state);
+            }
+            apply(buffer, state);
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    private static void apply(Map<String, CacheValue> entries, Map<String, CacheValue> state) {
+        for (Map.Entry<String, CacheValue> entry : entries.entrySet()) {
+            if (entry.getValue() == TOMBSTONE) {
+                state.remove(entry.getKey());
+            } else {
+                state.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public int getRunCount() {
+        return runs.size();
+    }
+
+    public long getDiskUsage() {
+        long usage = 0;
+        for (Run run : runs) {
+            usage += run.end;
+        }
+        return usage;
+    }
+
+    /**
+     * Stops spilling and deletes the runs.
+     */
+    @Override
+    public void close() {
+        spillLock.lock();
+        try {
+            closed = true;
+        } finally {
+            spillLock.unlock();
+        }
+        filesLock.lock();
+        try {
+            for (Run run : runs) {
+                run.delete();
+            }
+            runs = List.of();
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    /**
+     * Writes sorted records to a new run file, indexing the first key of every
+     * block of {@link #INDEX_INTERVAL_BYTES}.
+     */
+    private static final class RunWriter {
+        private final File file;
+        private final boolean encrypted;
+        private final OutputStream out;
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+        private final BloomFilter bloomFilter;
+        private final List<String> indexKeys = new ArrayList<>();
+        private final List<Long> indexOffsets = new ArrayList<>();
+        private long entries;
+        private long offset;
+        private long lastIndexed = -INDEX_INTERVAL_BYTES;
+
+        RunWriter(File file, boolean encrypted, long expectedEntries) throws IOException {
+            this.file = file;
+            this.encrypted = encrypted;
+            this.out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            this.bloomFilter = new BloomFilter(expectedEntries, FALSE_POSITIVE_RATE);
+            byte[] header = RecordCodec.header(encrypted);
+            out.write(header);
+            offset = header.length;
+        }
+
+        // A null payload writes a delete
+        void write(String key, byte[] payload) throws IOException {
+            if (offset - lastIndexed >= INDEX_INTERVAL_BYTES) {
+                indexKeys.add(key);
+                indexOffsets.add(offset);
+                lastIndexed = offset;
+            }
+            record.reset();
+            if (payload != null) {
+                RecordCodec.writePut(record, key, payload);
+            } else {
+                RecordCodec.writeDelete(record, key);
+            }
+            record.writeTo(out);
+            offset += record.size();
+            bloomFilter.add(key);
+            entries++;
+        }
+
+        Run finish() throws IOException {
+            out.close();
+            long[] offsets = new long[indexOffsets.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = indexOffsets.get(i);
+            }
+            return new Run(file, encrypted, entries, indexKeys.toArray(new String[0]), offsets, offset, bloomFilter);
+        }
+
+        void abort() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Deleted below anyway
+            }
+            if (!file.delete() && file.exists()) {
+                logger.warn("Could not delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Reads the records of a run in order, for merges and full scans.
+     */
+    private static final class RunCursor implements Closeable {
+        private final Run run;
+        private final int age;
+        private final DataInputStream in;
+        private RecordCodec.Record record;
+
+        RunCursor(Run run, int age) throws IOException {
+            this.run = run;
+            this.age = age;
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.file), 64 * 1024));
+            in.skipNBytes(RecordCodec.HEADER_SIZE);
+        }
+
+        boolean advance() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                record = null;
+                return false;
+            }
+            if (length <= 0 || length > RecordCodec.MAX_RECORD_SIZE) {
+                throw new IOException("Corrupt record in " + run.file);
+            }
+            ByteBuffer frame = ByteBuffer.allocate(RecordCodec.FRAME_OVERHEAD + length);
+            frame.putInt(length);
+            frame.putInt(in.readInt());
+            in.readFully(frame.array(), RecordCodec.FRAME_OVERHEAD, length);
+            record = RecordCodec.read(frame.rewind());
+            if (record == null) {
+                throw new IOException("Corrupt record in " + run.file);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
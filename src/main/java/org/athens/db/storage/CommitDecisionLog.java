@@ -0,0 +1,232 @@
+package org.athens.db.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToLongFunction;
+
+/**
+ * The commit decisions of transactions that span several stores.
+ * <p>
+ * Such a transaction first logs its batch in every store it wrote, marked with
+ * its id and fsynced, and commits by appending one record here; recovery of a
+ * store replays a marked batch only if its transaction is found here. A crash
+ * before the record is on disk therefore leaves the transaction in none of
+ * the stores, and one after it in all of them. Each record also names the LSN
+ * of the batch in every store, and is dropped once all of those stores have
+ * checkpointed past it, since their logs no longer replay it.
+ * <p>
+ * The file uses the same framing as the transaction logs. The first failed
+ * write stops it: whether that decision reached disk is unknown, so nothing
+ * more is decided until recovery.
+ */
+public class CommitDecisionLog {
+    private static final Logger logger = LoggerFactory.getLogger(CommitDecisionLog.class);
+    private static final int MIN_COMPACTION_SIZE = 1024;
+
+    private final File file;
+    private final ToLongFunction<String> checkpointLsn;
+    // Transaction id to the LSN of its batch in each store's log
+    private final Map<Long, Map<String, Long>> decisions = new ConcurrentHashMap<>();
+    // Held over an fsync by committers, so not a monitor
+    private final ReentrantLock lock = new ReentrantLock();
+    private FileChannel channel;
+    private int compactAt = MIN_COMPACTION_SIZE;
+    private IOException failure;
+
+    /**
+     * @param checkpointLsn the checkpoint LSN of a store by its file name, or
+     * {@link Long#MAX_VALUE} for stores that are gone
+     */
+    public CommitDecisionLog(String file, ToLongFunction<String> checkpointLsn) {
+        this.file = new File(file);
+        this.checkpointLsn = checkpointLsn;
+        try {
+            load();
+        } catch (IOException e) {
+            throw new RuntimeException("Error loading commit decisions: " + e.getMessage(), e);
+        }
+    }
+
+    public boolean isCommitted(long txId) {
+        return decisions.containsKey(txId);
+    }
+
+    /**
+     * Records that {@code txId} committed and forces the record to disk. Once
+     * this returns, recovery completes the transaction in every store.
+     *
+     * @param participants the LSN of the transaction's batch in each store's
+     * log, by file name
+     * @throws IOException if the record could not be written; it may still
+     * have reached disk
+     */
+    public void commit(long txId, Map<String, Long> participants) throws IOException {
+        lock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            RecordCodec.writeDecision(record, encode(txId, participants));
+            try {
+                write(ByteBuffer.wrap(record.toByteArray()));
+            } catch (IOException e) {
+                failure = e;
+                throw e;
+            }
+            decisions.put(txId, Map.copyOf(participants));
+            if (decisions.size() >= compactAt) {
+                compact();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the highest transaction id with a recorded decision, or 0
+     */
+    public long maxTxId() {
+        long max = 0;
+        for (long txId : decisions.keySet()) {
+            max = Math.max(max, txId);
+        }
+        return max;
+    }
+
+    public int size() {
+        return decisions.size();
+    }
+
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        if (channel == null) {
+            boolean created = !file.exists() || file.length() == 0;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            if (created) {
+                channel.write(ByteBuffer.wrap(RecordCodec.header(false)));
+            }
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+
+    private void load() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            RecordCodec.readHeader(buffer);
+            long end = buffer.position();
+            RecordCodec.Record record;
+            while ((record = RecordCodec.read(buffer)) != null) {
+                if (record.getOp() == RecordCodec.OP_DECISION) {
+                    decode(record.getPayload());
+                }
+                end = buffer.position();
+            }
+            if (end < in.size()) {
+                // A torn record was never acknowledged, so its transaction did not commit
+                logger.warn("Commit decision log {} ends with a torn or corrupt frame; dropping it", file.getName());
+                in.truncate(end);
+                in.force(false);
+            }
+        }
+        compactAt = Math.max(MIN_COMPACTION_SIZE, decisions.size() * 2);
+    }
+
+    /**
+     * Drops the decisions that no store can replay any more and rewrites the
+     * file with the rest.
+     */
+    private void compact() throws IOException {
+        int before = decisions.size();
+        Iterator<Map<String, Long>> it = decisions.values().iterator();
+        while (it.hasNext()) {
+            if (isCovered(it.next())) {
+                it.remove();
+            }
+        }
+        compactAt = Math.max(MIN_COMPACTION_SIZE, decisions.size() * 2);
+        if (decisions.size() == before) {
+            return;
+        }
+        File tmpFile = new File(file.getPath() + ".tmp");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(RecordCodec.header(false));
+        for (Map.Entry<Long, Map<String, Long>> decision : decisions.entrySet()) {
+            RecordCodec.writeDecision(out, encode(decision.getKey(), decision.getValue()));
+        }
+        Files.write(tmpFile.toPath(), out.toByteArray());
+        try (FileChannel tmp = FileChannel.open(tmpFile.toPath(), StandardOpenOption.WRITE)) {
+            tmp.force(true);
+        }
+        close();
+        Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean isCovered(Map<String, Long> participants) {
+        for (Map.Entry<String, Long> participant : participants.entrySet()) {
+            if (checkpointLsn.applyAsLong(participant.getKey()) < participant.getValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] encode(long txId, Map<String, Long> participants) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        RecordCodec.writeVarLong(payload, txId);
+        RecordCodec.writeVarInt(payload, participants.size());
+        for (Map.Entry<String, Long> participant : participants.entrySet()) {
+            byte[] name = participant.getKey().getBytes(StandardCharsets.UTF_8);
+            RecordCodec.writeVarInt(payload, name.length);
+            payload.writeBytes(name);
+            RecordCodec.writeVarLong(payload, participant.getValue());
+        }
+        return payload.toByteArray();
+    }
+
+    private void decode(ByteBuffer payload) {
+        long txId = RecordCodec.readVarLong(payload);
+        int count = RecordCodec.readVarInt(payload);
+        Map<String, Long> participants = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            byte[] name = new byte[RecordCodec.readVarInt(payload)];
+            payload.get(name);
+            participants.put(new String(name, StandardCharsets.UTF_8), RecordCodec.readVarLong(payload));
+        }
+        decisions.put(txId, participants);
+    }
+}
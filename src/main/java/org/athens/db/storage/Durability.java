@@ -0,0 +1,32 @@
+package org.athens.db.storage;
+
+/**
+ * How long a commit waits before it is acknowledged, trading latency for the
+ * commits that can be lost in a crash.
+ * <p>
+ * In every mode a commit is visible to readers as soon as it is installed,
+ * which is before its log write reaches disk; the mode only decides how long
+ * the committer waits. Under {@link #NONE} and {@link #PERIODIC}, readers may
+ * therefore see commits that a crash then loses. If writing a commit fails,
+ * it stays visible, the store takes no further commits, and a committer that
+ * waits for the write gets a
+ * {@link org.athens.exceptions.CommitNotDurableException}; one that does not
+ * wait only finds out from its next commit.
+ */
+public enum Durability {
+    /**
+     * The commit is written to the log but never fsynced for its own sake; the
+     * operating system decides when it reaches disk.
+     */
+    NONE,
+    /**
+     * The commit is acknowledged immediately and fsynced by the log writer
+     * within the log's sync interval, so at most that much is lost in a crash.
+     */
+    PERIODIC,
+    /**
+     * The commit is acknowledged only after the log has been fsynced. Concurrent
+     * commits share one fsync.
+     */
+    ALWAYS
+}
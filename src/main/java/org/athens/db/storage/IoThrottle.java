@@ -0,0 +1,39 @@
+package org.athens.db.storage;
+
+/**
+ * Limits background I/O to an average number of bytes per second by sleeping
+ * whenever the bytes acquired so far are ahead of schedule.
+ */
+public class IoThrottle {
+    private final long bytesPerSecond;
+    private final long startNanos = System.nanoTime();
+    private long acquired;
+
+    /**
+     * @param bytesPerSecond the average rate to stay under, or 0 for no limit
+     */
+    public IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public static IoThrottle unlimited() {
+        return new IoThrottle(0);
+    }
+
+    public void acquire(long bytes) {
+        if (bytesPerSecond <= 0) {
+            return;
+        }
+        acquired += bytes;
+        long dueNanos = startNanos + (long) (acquired * 1_000_000_000.0 / bytesPerSecond);
+        long waitNanos = dueNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while throttled", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Reads a {@link RecordCodec} file through memory mappings and decodes it in parallel.
+ * <p>
+ * The file is first split into chunks on record boundaries by hopping over the
+ * length prefixes, which touches only a few bytes per record. Each chunk is then
+ * decoded, and decrypted if needed, on the fork/join pool. Decoded chunks are
+ * handed to the consumer strictly in file order on the calling thread, so the
+ * consumer does not need to be thread-safe and sees records in the order they
+ * were written.
+ */
+public class ParallelRecordReader {
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 64L << 20;
+    private static final long SCAN_WINDOW = 256L << 20;
+
+    private final ForkJoinPool pool;
+
+    public interface DecodedRecordConsumer {
+        /**
+         * @param op    one of the {@code RecordCodec.OP_*} constants
+         * @param key   the record key
+         * @param value the decoded value for puts, otherwise {@code null}
+         * @param lsn   the LSN of commit records, otherwise 0
+         * @param txId  for commit records, the transaction spanning several
+         *              stores that the batch belongs to, otherwise 0
+         */
+        void accept(byte op, String key, CacheValue value, long lsn, long txId);
+    }
+
+    public ParallelRecordReader() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ParallelRecordReader(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Decodes every record of {@code file} and passes it to {@code consumer}.
+     *
+     * @return {@code true} if the whole file was read, {@code false} if reading
+     * stopped at a torn or corrupt record
+     */
+    public boolean read(Path file, ValueCodec codec, DecodedRecordConsumer consumer) throws IOException {
+        List<ForkJoinTask<DecodedChunk>> tasks = new ArrayList<>();
+        boolean scannedToEnd;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < RecordCodec.HEADER_SIZE) {
+                return size == 0;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, RecordCodec.HEADER_SIZE);
+            boolean encrypted = (RecordCodec.readHeader(header) & RecordCodec.FLAG_ENCRYPTED) != 0;
+
+            long scanEnd = RecordCodec.HEADER_SIZE;
+            for (long[] chunk : split(channel, RecordCodec.HEADER_SIZE, size)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1] - chunk[0]);
+                tasks.add(pool.submit(() -> decode(buffer, codec, encrypted)));
+                scanEnd = chunk[1];
+            }
+            scannedToEnd = scanEnd == size;
+        }
+
+        for (int i = 0; i < tasks.size(); i++) {
+            DecodedChunk chunk = tasks.get(i).join();
+            chunk.feed(consumer);
+            if (!chunk.complete) {
+                for (int j = i + 1; j < tasks.size(); j++) {
+                    tasks.get(j).cancel(false);
+                }
+                return false;
+            }
+        }
+        return scannedToEnd;
+    }
+
+    private List<long[]> split(FileChannel channel, long start, long size) throws IOException {
+        List<long[]> chunks = new ArrayList<>();
+        long target = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, (size - start) / (pool.getParallelism() * 4L)));
+        long chunkStart = start;
+        long position = start;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+
+        while (position + RecordCodec.FRAME_OVERHEAD <= size) {
+            if (window == null || position + RecordCodec.FRAME_OVERHEAD > windowStart + window.capacity()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SCAN_WINDOW, size - position));
+            }
+            int length = window.getInt((int) (position - windowStart));
+            if (length <= 0 || length > RecordCodec.MAX_RECORD_SIZE
+                    || position + RecordCodec.FRAME_OVERHEAD + length > size) {
+                break;
+            }
+            position += RecordCodec.FRAME_OVERHEAD + length;
+            if (position - chunkStart >= target) {
+                chunks.add(new long[]{chunkStart, position});
+                chunkStart = position;
+            }
+        }
+        if (position > chunkStart) {
+            chunks.add(new long[]{chunkStart, position});
+        }
+        return chunks;
+    }
+
+    private static DecodedChunk decode(ByteBuffer buffer, ValueCodec codec, boolean encrypted) {
+        DecodedChunk chunk = new DecodedChunk();
+        while (buffer.hasRemaining()) {
+            RecordCodec.Record record = RecordCodec.read(buffer);
+            if (record == null) {
+                chunk.complete = false;
+                break;
+            }
+            if (record.getOp() == RecordCodec.OP_COMMIT) {
+                chunk.addCommit(RecordCodec.commitLsn(record), RecordCodec.commitTxId(record));
+            } else {
+                CacheValue value = record.getOp() == RecordCodec.OP_PUT
+                        ? codec.decode(record.getPayload(), encrypted)
+                        : null;
+                chunk.add(record.getOp(), record.getKey(), value);
+            }
+        }
+        return chunk;
+    }
+
+    private static final class DecodedChunk {
+        private byte[] ops = new byte[256];
+        private final List<String> keys = new ArrayList<>();
+        private final List<CacheValue> values = new ArrayList<>();
+        private long[] commitLsns = new long[16];
+        private long[] commitTxIds = new long[16];
+        private int commitCount;
+        private boolean complete = true;
+
+        void addCommit(long lsn, long txId) {
+            if (commitCount == commitLsns.length) {
+                commitLsns = Arrays.copyOf(commitLsns, commitLsns.length * 2);
+                commitTxIds = Arrays.copyOf(commitTxIds, commitTxIds.length * 2);
+            }
+            commitLsns[commitCount] = lsn;
+            commitTxIds[commitCount++] = txId;
+            add(RecordCodec.OP_COMMIT, "", null);
+        }
+
+        void add(byte op, String key, CacheValue value) {
+            int index = keys.size();
+            if (index == ops.length) {
+                ops = Arrays.copyOf(ops, ops.length * 2);
+            }
+            ops[index] = op;
+            keys.add(key);
+            values.add(value);
+        }
+
+        void feed(DecodedRecordConsumer consumer) {
+            int commit = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (ops[i] == RecordCodec.OP_COMMIT) {
+                    consumer.accept(ops[i], keys.get(i), values.get(i), commitLsns[commit], commitTxIds[commit++]);
+                } else {
+                    consumer.accept(ops[i], keys.get(i), values.get(i), 0, 0);
+                }
+            }
+        }
+    }
+}
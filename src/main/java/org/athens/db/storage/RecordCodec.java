@@ -0,0 +1,381 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Binary encoding shared by database snapshots and segments.
+ * <p>
+ * A file starts with a header of {@code MAGIC}, the format version and a flags
+ * byte. It is followed by records framed as {@code [int length][int crc32c][body]},
+ * where the body is {@code [op][varint keyLength][key bytes][payload]}. A put
+ * payload is the value encoded as {@code [type tag][varint version][type data]},
+ * or, when the file is encrypted, that encoding encrypted and length-prefixed.
+ * A commit payload is the varint LSN of the commit; commit records written
+ * before LSNs existed have no payload and read as LSN 0. A batch a store logs
+ * as its part of a transaction spanning several stores is closed by a commit
+ * record that also carries the varint id of that transaction, and counts only
+ * if the transaction's commit decision was recorded.
+ */
+public final class RecordCodec {
+    public static final int MAGIC = 0x43425846; // "CBXF"
+    public static final byte FORMAT_VERSION = 3;
+    public static final int HEADER_SIZE = 6;
+    public static final byte FLAG_ENCRYPTED = 0x01;
+
+    public static final byte OP_PUT = 1;
+    public static final byte OP_DELETE = 2;
+    public static final byte OP_COMMIT = 3;
+    // Only in a CommitDecisionLog, with a payload of its own
+    public static final byte OP_DECISION = 4;
+
+    public static final int FRAME_OVERHEAD = 8;
+    public static final int MAX_RECORD_SIZE = 256 * 1024 * 1024;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INTEGER = 2;
+    private static final byte TAG_BOOLEAN = 3;
+    private static final byte TAG_LIST = 4;
+    private static final byte TAG_LONG = 5;
+    private static final byte TAG_DOUBLE = 6;
+
+    private RecordCodec() {
+    }
+
+    /**
+     * A decoded record. For puts and commits, {@code payload} is positioned over
+     * the payload bytes inside the source buffer, so nothing is copied until the
+     * value is read.
+     */
+    public static final class Record {
+        private final byte op;
+        private final String key;
+        private final ByteBuffer payload;
+
+        Record(byte op, String key, ByteBuffer payload) {
+            this.op = op;
+            this.key = key;
+            this.payload = payload;
+        }
+
+        public byte getOp() {
+            return op;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public ByteBuffer getPayload() {
+            return payload;
+        }
+    }
+
+    public static byte[] header(boolean encrypted) {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .put(FORMAT_VERSION)
+                .put(encrypted ? FLAG_ENCRYPTED : 0)
+                .array();
+    }
+
+    public static boolean hasHeader(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Reads the file header and returns its flags byte.
+     */
+    public static byte readHeader(ByteBuffer buffer) {
+        if (buffer.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a CacheBox binary file");
+        }
+        byte version = buffer.get();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported format version: " + version);
+        }
+        return buffer.get();
+    }
+
+    public static void writePut(ByteArrayOutputStream out, String key, byte[] payload) {
+        writeRecord(out, OP_PUT, key, payload);
+    }
+
+    public static void writeDelete(ByteArrayOutputStream out, String key) {
+        writeRecord(out, OP_DELETE, key, null);
+    }
+
+    public static void writeCommit(ByteArrayOutputStream out, long lsn) {
+        writeCommit(out, lsn, 0);
+    }
+
+    /**
+     * @param txId the transaction spanning several stores the batch belongs
+     * to, or 0 if it was committed on its own
+     */
+    public static void writeCommit(ByteArrayOutputStream out, long lsn, long txId) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(20);
+        writeVarLong(payload, lsn);
+        if (txId != 0) {
+            writeVarLong(payload, txId);
+        }
+        writeRecord(out, OP_COMMIT, "", payload.toByteArray());
+    }
+
+    public static void writeDecision(ByteArrayOutputStream out, byte[] payload) {
+        writeRecord(out, OP_DECISION, "", payload);
+    }
+
+    /**
+     * Returns the LSN stored in a commit record, or 0 for commit records that
+     * predate LSNs.
+     */
+    public static long commitLsn(Record record) {
+        ByteBuffer payload = record.getPayload();
+        return payload != null && payload.hasRemaining() ? readVarLong(payload.duplicate()) : 0;
+    }
+
+    /**
+     * Returns the transaction id stored in a commit record, or 0 if the batch
+     * it closes was committed on its own.
+     */
+    public static long commitTxId(Record record) {
+        ByteBuffer payload = record.getPayload();
+        if (payload == null || !payload.hasRemaining()) {
+            return 0;
+        }
+        payload = payload.duplicate();
+        readVarLong(payload);
+        return payload.hasRemaining() ? readVarLong(payload) : 0;
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, byte op, String key, byte[] payload) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream body = new ByteArrayOutputStream(16 + keyBytes.length + (payload != null ? payload.length : 0));
+        body.write(op);
+        writeVarInt(body, keyBytes.length);
+        body.write(keyBytes, 0, keyBytes.length);
+        if (payload != null) {
+            body.write(payload, 0, payload.length);
+        }
+        byte[] bodyBytes = body.toByteArray();
+        CRC32C crc = new CRC32C();
+        crc.update(bodyBytes, 0, bodyBytes.length);
+        writeInt(out, bodyBytes.length);
+        writeInt(out, (int) crc.getValue());
+        out.write(bodyBytes, 0, bodyBytes.length);
+    }
+
+    /**
+     * Decodes the next record from {@code buffer}, advancing past it. Returns
+     * {@code null} and leaves the buffer untouched if the remaining bytes do not
+     * hold a complete record with a valid checksum, which marks the end of the
+     * readable data.
+     */
+    public static Record read(ByteBuffer buffer) {
+        int start = buffer.position();
+        if (buffer.remaining() < FRAME_OVERHEAD) {
+            return null;
+        }
+        int length = buffer.getInt(start);
+        int checksum = buffer.getInt(start + 4);
+        if (length <= 0 || length > MAX_RECORD_SIZE || buffer.remaining() - FRAME_OVERHEAD < length) {
+            return null;
+        }
+        ByteBuffer body = buffer.slice(start + FRAME_OVERHEAD, length);
+        CRC32C crc = new CRC32C();
+        crc.update(body.duplicate());
+        if ((int) crc.getValue() != checksum) {
+            return null;
+        }
+        try {
+            byte op = body.get();
+            int keyLength = readVarInt(body);
+            String key = readUtf8(body, keyLength);
+            buffer.position(start + FRAME_OVERHEAD + length);
+            return new Record(op, key, op == OP_PUT || op == OP_COMMIT || op == OP_DECISION ? body.slice() : null);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public static byte[] encodeValue(CacheValue value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        switch (value.getType()) {
+            case NULL -> {
+                out.write(TAG_NULL);
+                writeVarInt(out, value.getVersion());
+            }
+            case STRING -> {
+                out.write(TAG_STRING);
+                writeVarInt(out, value.getVersion());
+                writeString(out, value.asString());
+            }
+            case INTEGER -> {
+                out.write(TAG_INTEGER);
+                writeVarInt(out, value.getVersion());
+                writeVarInt(out, zigZag(value.intValue()));
+            }
+            case BOOLEAN -> {
+                out.write(TAG_BOOLEAN);
+                writeVarInt(out, value.getVersion());
+                out.write(value.booleanValue() ? 1 : 0);
+            }
+            case LONG -> {
+                out.write(TAG_LONG);
+                writeVarInt(out, value.getVersion());
+                writeVarLong(out, zigZag(value.longValue()));
+            }
+            case DOUBLE -> {
+                out.write(TAG_DOUBLE);
+                writeVarInt(out, value.getVersion());
+                long bits = Double.doubleToRawLongBits(value.doubleValue());
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            }
+            case LIST -> {
+                out.write(TAG_LIST);
+                writeVarInt(out, value.getVersion());
+                List<Object> list = value.asList();
+                writeVarInt(out, list.size());
+                for (Object element : list) {
+                    writeString(out, String.valueOf(element));
+                }
+            }
+            default -> throw new IllegalStateException("Unknown type: " + value.getType());
+        }
+        return out.toByteArray();
+    }
+
+    public static CacheValue decodeValue(ByteBuffer buffer) {
+        byte tag = buffer.get();
+        int version = readVarInt(buffer);
+        return switch (tag) {
+            case TAG_NULL -> CacheValue.ofNull(version);
+            case TAG_STRING -> CacheValue.of(version, readUtf8(buffer, readVarInt(buffer)));
+            case TAG_INTEGER -> CacheValue.of(version, unZigZag(readVarInt(buffer)));
+            case TAG_BOOLEAN -> CacheValue.of(version, buffer.get() != 0);
+            case TAG_LONG -> CacheValue.of(version, unZigZag(readVarLong(buffer)));
+            case TAG_DOUBLE -> CacheValue.of(version, Double.longBitsToDouble(buffer.getLong()));
+            case TAG_LIST -> {
+                int size = readVarInt(buffer);
+                List<String> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readUtf8(buffer, readVarInt(buffer)));
+                }
+                yield CacheValue.of(version, list);
+            }
+            default -> throw new IllegalArgumentException("Unknown type tag: " + tag);
+        };
+    }
+
+    /**
+     * Wraps already-encrypted value bytes as a length-prefixed payload.
+     */
+    public static byte[] encryptedPayload(byte[] encrypted) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(encrypted.length + 5);
+        writeVarInt(out, encrypted.length);
+        out.write(encrypted, 0, encrypted.length);
+        return out.toByteArray();
+    }
+
+    public static byte[] readEncryptedPayload(ByteBuffer buffer) {
+        byte[] encrypted = new byte[readVarInt(buffer)];
+        buffer.get(encrypted);
+        return encrypted;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static String readUtf8(ByteBuffer buffer, int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Invalid string length: " + length);
+        }
+        String value;
+        if (buffer.hasArray()) {
+            value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(buffer.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    public static void writeVarInt(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    private static int zigZag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unZigZag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,14 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+
+/**
+ * Receives the records recovered from disk, in the order they must be applied.
+ */
+public interface RecordVisitor {
+    /**
+     * @param key   the record key
+     * @param value the value written, or {@code null} for a deletion
+     */
+    void visit(String key, CacheValue value);
+}
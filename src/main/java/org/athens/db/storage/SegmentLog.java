@@ -0,0 +1,348 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Append-only, log-structured record store for a single database file.
+ * <p>
+ * Every commit is appended to the active segment as a batch of put and delete
+ * records closed by a commit record, so the cost of a commit is proportional to
+ * the keys it changed. Segments are rolled once they reach {@code maxSegmentSize}
+ * and are named {@code <dbFile>.<id>.seg}, next to the database file. Records use
+ * the {@link RecordCodec} binary format; segments written in the earlier text
+ * format are still replayed.
+ */
+public class SegmentLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(SegmentLog.class);
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TEXT_HEADER_PREFIX = "version=3,encryptionEnabled=";
+    private static final char TEXT_PUT = '+';
+    private static final char TEXT_DELETE = '-';
+    private static final String TEXT_COMMIT = ".";
+
+    private final File directory;
+    private final String baseName;
+    private final long maxSegmentSize;
+    private final ValueCodec codec;
+    private final ParallelRecordReader reader;
+    private final List<File> segments = new ArrayList<>();
+    // Held over file I/O by committers, so a lock rather than a monitor that
+    // would pin their virtual threads
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private FileChannel activeChannel;
+    private long activeSize;
+    private boolean activeEncrypted;
+    private long nextSegmentId = 1;
+
+    public SegmentLog(String dbFile, long maxSegmentSize, ValueCodec codec, ParallelRecordReader reader) {
+        File file = new File(dbFile);
+        this.directory = file.getAbsoluteFile().getParentFile();
+        this.baseName = file.getName();
+        this.maxSegmentSize = maxSegmentSize;
+        this.codec = codec;
+        this.reader = reader;
+        discoverSegments();
+    }
+
+    private void discoverSegments() {
+        File[] files = directory.listFiles((dir, name) -> segmentId(name) >= 0);
+        if (files == null) {
+            return;
+        }
+        List<File> found = new ArrayList<>(List.of(files));
+        found.sort((a, b) -> Long.compare(segmentId(a.getName()), segmentId(b.getName())));
+        segments.addAll(found);
+        nextSegmentId = found.isEmpty() ? 1 : segmentId(found.get(found.size() - 1).getName()) + 1;
+    }
+
+    private long segmentId(String name) {
+        String prefix = baseName + ".";
+        if (!name.startsWith(prefix) || !name.endsWith(SEGMENT_SUFFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Replays every committed batch of every segment in order. A trailing batch
+     * without its commit record (a torn write) is ignored.
+     *
+     * @return the highest commit LSN replayed, or 0 if none carried one
+     */
+    public long replay(RecordVisitor visitor) throws IOException {
+        lock.lock();
+        try {
+            long maxLsn = 0;
+            for (File segment : segments) {
+                maxLsn = Math.max(maxLsn, replay(segment, visitor));
+            }
+            return maxLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Replays a single segment. Only sealed segments may be read while commits
+     * are appended.
+     */
+    public long replay(File segment, RecordVisitor visitor) throws IOException {
+        if (segment.length() == 0) {
+            return 0;
+        }
+        if (isBinary(segment)) {
+            return replayBinary(segment, visitor);
+        }
+        replayText(segment, visitor);
+        return 0;
+    }
+
+    private boolean isBinary(File segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RecordCodec.HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) > 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            return RecordCodec.hasHeader(header);
+        }
+    }
+
+    private long replayBinary(File segment, RecordVisitor visitor) throws IOException {
+        List<String> pendingKeys = new ArrayList<>();
+        List<CacheValue> pendingValues = new ArrayList<>();
+        long[] maxLsn = {0};
+        // Batches of transactions spanning several stores are only appended once committed
+        boolean complete = reader.read(segment.toPath(), codec, (op, key, value, lsn, txId) -> {
+            switch (op) {
+                case RecordCodec.OP_COMMIT -> {
+                    maxLsn[0] = Math.max(maxLsn[0], lsn);
+                    for (int i = 0; i < pendingKeys.size(); i++) {
+                        visitor.visit(pendingKeys.get(i), pendingValues.get(i));
+                    }
+                    pendingKeys.clear();
+                    pendingValues.clear();
+                }
+                case RecordCodec.OP_PUT, RecordCodec.OP_DELETE -> {
+                    pendingKeys.add(key);
+                    pendingValues.add(value);
+                }
+                default -> throw new IllegalStateException("Unknown record op: " + op);
+            }
+        });
+        if (!complete) {
+            logger.warn("Segment {} ends with a torn or corrupt record; the rest of it was skipped", segment.getName());
+        }
+        return maxLsn[0];
+    }
+
+    private void replayText(File segment, RecordVisitor visitor) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(segment), StandardCharsets.UTF_8))) {
+            String header = reader.readLine();
+            if (header == null || !header.startsWith(TEXT_HEADER_PREFIX)) {
+                throw new IOException("Invalid segment header in " + segment.getName());
+            }
+            boolean encrypted = Boolean.parseBoolean(header.substring(TEXT_HEADER_PREFIX.length()));
+            List<String> pending = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals(TEXT_COMMIT)) {
+                    for (String record : pending) {
+                        if (record.charAt(0) == TEXT_PUT) {
+                            String[] keyValue = record.substring(1).split("=", 2);
+                            visitor.visit(keyValue[0], codec.decodeLegacy(keyValue[1], encrypted));
+                        } else if (record.charAt(0) == TEXT_DELETE) {
+                            visitor.visit(record.substring(1), null);
+                        }
+                    }
+                    pending.clear();
+                } else if (!line.isEmpty()) {
+                    pending.add(line);
+                }
+            }
+        }
+    }
+
+    public void append(Map<String, CacheValue> puts, Collection<String> deletions, long lsn, boolean encrypted) throws IOException {
+        lock.lock();
+        try {
+            if (puts.isEmpty() && deletions.isEmpty()) {
+                return;
+            }
+            appendBatch(encodeBatch(puts, deletions, lsn, encrypted), encrypted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Encodes one commit as put and delete records closed by a commit record.
+     * The same bytes are written to the transaction log and to the segment.
+     */
+    public byte[] encodeBatch(Map<String, CacheValue> puts, Collection<String> deletions, long lsn, boolean encrypted) {
+        return encodeBatch(puts, deletions, lsn, 0, encrypted);
+    }
+
+    /**
+     * @param txId the transaction spanning several stores the batch belongs
+     * to, or 0
+     */
+    public byte[] encodeBatch(Map<String, CacheValue> puts, Collection<String> deletions, long lsn, long txId,
+                              boolean encrypted) {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        for (Map.Entry<String, CacheValue> entry : puts.entrySet()) {
+            RecordCodec.writePut(batch, entry.getKey(), codec.encode(entry.getValue(), encrypted));
+        }
+        for (String key : deletions) {
+            RecordCodec.writeDelete(batch, key);
+        }
+        RecordCodec.writeCommit(batch, lsn, txId);
+        return batch.toByteArray();
+    }
+
+    /**
+     * Appends one encoded commit batch with a single write. The batch is handed
+     * to the operating system before returning; it becomes visible to
+     * {@link #replay} only once its commit record is written.
+     */
+    public void appendBatch(byte[] batch, boolean encrypted) throws IOException {
+        lock.lock();
+        try {
+            if (activeChannel == null || activeEncrypted != encrypted) {
+                roll(encrypted);
+            }
+            writeFully(ByteBuffer.wrap(batch));
+
+            if (activeSize >= maxSegmentSize) {
+                closeActive();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void roll(boolean encrypted) throws IOException {
+        closeActive();
+        File segment = new File(directory, String.format("%s.%06d%s", baseName, nextSegmentId++, SEGMENT_SUFFIX));
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory.getAbsolutePath());
+        }
+        activeChannel = FileChannel.open(segment.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        activeSize = 0;
+        activeEncrypted = encrypted;
+        segments.add(segment);
+        writeFully(ByteBuffer.wrap(RecordCodec.header(encrypted)));
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            activeSize += activeChannel.write(buffer);
+        }
+    }
+
+    /**
+     * Forces everything appended so far to disk. Rolled segments are forced when
+     * they are closed, so only the active one needs it.
+     */
+    public void sync() throws IOException {
+        lock.lock();
+        try {
+            if (activeChannel != null) {
+                activeChannel.force(false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeActive() throws IOException {
+        if (activeChannel != null) {
+            activeChannel.force(false);
+            activeChannel.close();
+            activeChannel = null;
+        }
+    }
+
+    /**
+     * Closes the active segment and returns every segment, all of which are now
+     * sealed. The next append starts a new segment.
+     */
+    public List<File> sealSegments() throws IOException {
+        lock.lock();
+        try {
+            closeActive();
+            return new ArrayList<>(segments);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops segments whose records were folded into the snapshot.
+     */
+    public void remove(Collection<File> compacted) {
+        lock.lock();
+        try {
+            segments.removeAll(compacted);
+            for (File segment : compacted) {
+                if (!segment.delete()) {
+                    logger.warn("Could not delete compacted segment {}", segment.getName());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getDiskUsage() {
+        lock.lock();
+        try {
+            long total = 0;
+            for (File segment : segments) {
+                total += segment.length();
+            }
+            return total;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getSegmentCount() {
+        lock.lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closeActive();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns values into record payloads and back. Implemented by the owner of the
+ * encryption settings so that files written encrypted can be read back.
+ */
+public interface ValueCodec {
+    byte[] encode(CacheValue value, boolean encrypted);
+
+    CacheValue decode(ByteBuffer payload, boolean encrypted);
+
+    /**
+     * Decodes a value from the pre-binary text format ({@code TYPE:version:value},
+     * Base64 encoded when encrypted).
+     */
+    CacheValue decodeLegacy(String data, boolean encrypted);
+}
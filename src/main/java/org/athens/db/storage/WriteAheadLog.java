@@ -0,0 +1,535 @@
+package org.athens.db.storage;
+
+import org.athens.utils.CacheValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The transaction log of a single store, kept next to its database file as
+ * {@code <dbFile>.wal}.
+ * <p>
+ * The log uses the {@link RecordCodec} format: every commit is one batch of put
+ * and delete records closed by a commit record that carries its 64-bit log
+ * sequence number (LSN), each framed with a CRC32C. Replay stops at the first
+ * torn or corrupt frame, and a batch without its commit record is ignored.
+ * <p>
+ * Batches are queued by committers and written by the log's own writer thread,
+ * which keeps the file open. The writer drains whatever has queued up while the
+ * previous write was in progress and writes it at once. If any batch in it asks
+ * for {@link Durability#ALWAYS}, the write is fsynced before the future returned
+ * by {@link #append} completes for every batch in it (group commit);
+ * {@link Durability#PERIODIC} batches are fsynced within {@code syncIntervalMillis}.
+ * <p>
+ * A checkpoint seals the active file as {@code <dbFile>.wal.<lsn>}, where
+ * {@code lsn} is an upper bound of the LSNs inside, and asks every registered
+ * participant to make its commits durable up to the current LSN. Sealed files
+ * that every participant has checkpointed past are deleted. Checkpoints run on a
+ * fixed schedule and whenever the active file grows past a size threshold, so the
+ * amount of log replayed at startup stays bounded.
+ * <p>
+ * The first failed write stops the log: it and every batch queued after it
+ * fail without being written, so the log never holds a commit behind a lost
+ * one.
+ */
+public final class WriteAheadLog implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+    public static final long DEFAULT_CHECKPOINT_THRESHOLD = 64L * 1024 * 1024;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_SECONDS = 60;
+    public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    private final File activeFile;
+    private final long checkpointThreshold;
+    private final ValueCodec codec;
+    private final ParallelRecordReader reader;
+    private final BlockingQueue<LogRecord> logQueue = new LinkedBlockingQueue<>();
+    private final AtomicLong lastLsn = new AtomicLong();
+    private final List<Participant> participants = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean checkpointPending = new AtomicBoolean();
+    // Guards the sealed files; a lock, since it is held over file I/O
+    private final ReentrantLock filesLock = new ReentrantLock();
+    // Checkpoints of every log share one thread
+    private static final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "wal-checkpoint");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ScheduledFuture<?> checkpointTask;
+    private final Thread writer;
+    private volatile long syncIntervalMillis = DEFAULT_SYNC_INTERVAL_MILLIS;
+    private volatile IOException failure;
+    // Only touched by the writer thread
+    private FileChannel channel;
+    private boolean channelEncrypted;
+    private boolean syncPending;
+    private long lastSyncNanos = System.nanoTime();
+
+    /**
+     * A store whose commits are recorded in this log.
+     */
+    public interface Participant {
+        /**
+         * Makes every commit of this participant up to the current LSN durable in
+         * its own files and records that LSN.
+         *
+         * @return the LSN that is now covered
+         */
+        long checkpoint();
+    }
+
+    /**
+     * Receives one replayed commit.
+     */
+    public interface CommitVisitor {
+        /**
+         * @param txId the transaction spanning several stores the commit was
+         * logged for, which the visitor must check was committed, or 0
+         */
+        void visit(Map<String, CacheValue> puts, Set<String> deletions, long lsn, long txId);
+    }
+
+    /**
+     * A queued batch, or a request to seal the active file when {@code seal} is set.
+     * A {@code null} batch only waits for everything queued before it.
+     */
+    private static final class LogRecord {
+        private final byte[] batch;
+        private final boolean encrypted;
+        private final Durability durability;
+        private final boolean seal;
+        private final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+        LogRecord(byte[] batch, boolean encrypted, Durability durability, boolean seal) {
+            this.batch = batch;
+            this.encrypted = encrypted;
+            this.durability = durability;
+            this.seal = seal;
+        }
+    }
+
+    public WriteAheadLog(String logFile, ValueCodec codec, ParallelRecordReader reader,
+                         long checkpointThreshold, long checkpointIntervalSeconds) {
+        this.activeFile = new File(logFile).getAbsoluteFile();
+        this.codec = codec;
+        this.reader = reader;
+        this.checkpointThreshold = checkpointThreshold;
+        sealLegacyTextLog();
+        for (File sealed : sealedFiles()) {
+            observeLsn(sealedLsn(sealed));
+        }
+        writer = new Thread(this::writeLoop, "wal-writer-" + activeFile.getName());
+        writer.setDaemon(true);
+        writer.start();
+        checkpointTask = checkpointer.scheduleWithFixedDelay(this::checkpointQuietly,
+                checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public WriteAheadLog(String logFile, ValueCodec codec, ParallelRecordReader reader) {
+        this(logFile, codec, reader, DEFAULT_CHECKPOINT_THRESHOLD, DEFAULT_CHECKPOINT_INTERVAL_SECONDS);
+    }
+
+    // Text logs are never appended to; they are sealed at LSN 0 so the next checkpoint drops them
+    private void sealLegacyTextLog() {
+        try {
+            if (activeFile.length() > 0 && !isBinary(activeFile)) {
+                File sealed = sealedFile(0);
+                if (!activeFile.renameTo(sealed)) {
+                    throw new IOException("Failed to seal transaction log " + activeFile);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public long nextLsn() {
+        return lastLsn.incrementAndGet();
+    }
+
+    public long currentLsn() {
+        return lastLsn.get();
+    }
+
+    /**
+     * Ensures LSNs handed out from now on are greater than {@code lsn}, which was
+     * found on disk during recovery.
+     */
+    public void observeLsn(long lsn) {
+        lastLsn.accumulateAndGet(lsn, Math::max);
+    }
+
+    public void register(Participant participant) {
+        participants.add(participant);
+    }
+
+    public void unregister(Participant participant) {
+        participants.remove(participant);
+    }
+
+    /**
+     * Queues one encoded commit batch, as built by {@link SegmentLog#encodeBatch},
+     * for the writer thread.
+     *
+     * @return a future completed once the batch is written, and also fsynced
+     * if {@code durability} is {@link Durability#ALWAYS}
+     */
+    public CompletableFuture<Void> append(byte[] batch, boolean encrypted, Durability durability) {
+        return enqueue(new LogRecord(batch, encrypted, durability, false));
+    }
+
+    /**
+     * Waits until every batch queued so far is on disk.
+     */
+    public void flush() throws IOException {
+        await(enqueue(new LogRecord(null, false, Durability.ALWAYS, false)));
+    }
+
+    /**
+     * @return the error that stopped the log, or {@code null} if it is writing
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public void setSyncIntervalMillis(long syncIntervalMillis) {
+        this.syncIntervalMillis = syncIntervalMillis;
+    }
+
+    private CompletableFuture<Void> enqueue(LogRecord record) {
+        logQueue.offer(record);
+        return record.durable;
+    }
+
+    public static void await(CompletableFuture<Void> durable) throws IOException {
+        try {
+            durable.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    private void writeLoop() {
+        List<LogRecord> batch = new ArrayList<>();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+        while (true) {
+            try {
+                LogRecord first;
+                if (syncPending) {
+                    // Wake up in time for the periodic fsync even if nothing else arrives
+                    long waitNanos = lastSyncNanos + TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis) - System.nanoTime();
+                    first = logQueue.poll(Math.max(waitNanos, 0), TimeUnit.NANOSECONDS);
+                } else {
+                    first = logQueue.take();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    logQueue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                }
+            } catch (InterruptedException e) {
+                closeChannelQuietly();
+                return;
+            }
+            try {
+                if (failure != null) {
+                    throw failure;
+                }
+                writeBatch(batch, buffer);
+                for (LogRecord record : batch) {
+                    record.durable.complete(null);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (failure == null) {
+                    logger.error("Failed to write transaction log; it takes no more writes", e);
+                    failure = e instanceof IOException io ? io : new IOException(e);
+                    closeChannelQuietly();
+                }
+                for (LogRecord record : batch) {
+                    record.durable.completeExceptionally(failure);
+                }
+            }
+            batch.clear();
+            buffer.reset();
+        }
+    }
+
+    private void writeBatch(List<LogRecord> batch, ByteArrayOutputStream buffer) throws IOException {
+        boolean syncNow = false;
+        for (LogRecord record : batch) {
+            if (record.seal) {
+                // Batches queued before the seal request belong to the sealed file
+                write(buffer);
+                seal();
+                continue;
+            }
+            if (record.batch != null) {
+                if (channel == null || channelEncrypted != record.encrypted) {
+                    // The header flags the whole file, so a change of encryption starts a new one
+                    write(buffer);
+                    open(record.encrypted);
+                }
+                buffer.write(record.batch, 0, record.batch.length);
+            }
+            syncNow |= record.durability == Durability.ALWAYS;
+            syncPending |= record.durability == Durability.PERIODIC;
+        }
+        write(buffer);
+        long sinceSync = System.nanoTime() - lastSyncNanos;
+        if (syncNow || (syncPending && sinceSync >= TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis))) {
+            sync();
+        }
+        if (channel != null && channel.size() >= checkpointThreshold && checkpointPending.compareAndSet(false, true)) {
+            checkpointer.execute(this::checkpointQuietly);
+        }
+    }
+
+    private void open(boolean encrypted) throws IOException {
+        if (channel != null) {
+            seal();
+        }
+        if (activeFile.length() > 0 && activeFile.length() < RecordCodec.HEADER_SIZE && !activeFile.delete()) {
+            // A torn header holds no commits
+            throw new IOException("Failed to reset transaction log " + activeFile);
+        }
+        if (activeFile.length() > 0) {
+            try (FileChannel existing = FileChannel.open(activeFile.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = existing.map(FileChannel.MapMode.READ_ONLY, 0, RecordCodec.HEADER_SIZE);
+                if (((RecordCodec.readHeader(header) & RecordCodec.FLAG_ENCRYPTED) != 0) != encrypted) {
+                    seal();
+                }
+            }
+        }
+        channel = FileChannel.open(activeFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        channelEncrypted = encrypted;
+        if (channel.size() == 0) {
+            writeFully(ByteBuffer.wrap(RecordCodec.header(encrypted)));
+        }
+    }
+
+    private void write(ByteArrayOutputStream buffer) throws IOException {
+        if (buffer.size() == 0) {
+            return;
+        }
+        writeFully(ByteBuffer.wrap(buffer.toByteArray()));
+        buffer.reset();
+    }
+
+    private void writeFully(ByteBuffer bytes) throws IOException {
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    private void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+        syncPending = false;
+        lastSyncNanos = System.nanoTime();
+    }
+
+    private void seal() throws IOException {
+        if (channel != null) {
+            sync();
+            channel.close();
+            channel = null;
+        }
+        if (activeFile.exists() && activeFile.length() > 0) {
+            // Every batch in the file was queued after its LSN was taken, so this bounds them all
+            File sealed = sealedFile(currentLsn());
+            if (!activeFile.renameTo(sealed)) {
+                throw new IOException("Failed to seal transaction log " + activeFile);
+            }
+        }
+    }
+
+    private void closeChannelQuietly() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.warn("Failed to close transaction log", e);
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * Replays every commit with an LSN above {@code afterLsn}, oldest first.
+     * Sealed files whose LSNs are all covered are skipped without being read.
+     * Replay stops at the first torn or corrupt frame, since nothing after it
+     * can be trusted to follow the commits before it. The active file is cut
+     * back to its last commit so that new batches are not appended behind a
+     * torn one.
+     *
+     * @return the highest LSN passed to {@code visitor}, or {@code afterLsn} if
+     * none was
+     */
+    public long replay(long afterLsn, CommitVisitor visitor) throws IOException {
+        filesLock.lock();
+        try {
+            List<File> files = new ArrayList<>();
+            for (File sealed : sealedFiles()) {
+                if (sealedLsn(sealed) > afterLsn) {
+                    files.add(sealed);
+                }
+            }
+            files.add(activeFile);
+
+            long[] maxLsn = {afterLsn};
+            for (File file : files) {
+                if (!file.exists() || file.length() == 0) {
+                    continue;
+                }
+                if (!isBinary(file)) {
+                    logger.warn("Skipping transaction log {} written in the old text format", file.getName());
+                    continue;
+                }
+                Map<String, CacheValue> puts = new HashMap<>();
+                Set<String> deletions = new HashSet<>();
+                boolean complete = reader.read(file.toPath(), codec, (op, key, value, lsn, txId) -> {
+                    switch (op) {
+                        case RecordCodec.OP_PUT -> puts.put(key, value);
+                        case RecordCodec.OP_DELETE -> deletions.add(key);
+                        case RecordCodec.OP_COMMIT -> {
+                            if (lsn > afterLsn) {
+                                visitor.visit(new HashMap<>(puts), new HashSet<>(deletions), lsn, txId);
+                                maxLsn[0] = Math.max(maxLsn[0], lsn);
+                            }
+                            puts.clear();
+                            deletions.clear();
+                        }
+                        default -> throw new IllegalStateException("Unknown record op: " + op);
+                    }
+                });
+                if (file.equals(activeFile) && (!complete || !puts.isEmpty() || !deletions.isEmpty())) {
+                    truncateToLastCommit(file);
+                }
+                if (!complete) {
+                    logger.warn("Transaction log {} ends with a torn or corrupt frame; replay stopped there", file.getName());
+                    break;
+                }
+            }
+            return maxLsn[0];
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    private static void truncateToLastCommit(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            RecordCodec.readHeader(buffer);
+            long end = buffer.position();
+            RecordCodec.Record record;
+            while ((record = RecordCodec.read(buffer)) != null) {
+                if (record.getOp() == RecordCodec.OP_COMMIT) {
+                    end = buffer.position();
+                }
+            }
+            channel.truncate(end);
+            channel.force(false);
+        }
+    }
+
+    private static boolean isBinary(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return RecordCodec.hasHeader(ByteBuffer.wrap(in.readNBytes(RecordCodec.HEADER_SIZE)));
+        }
+    }
+
+    /**
+     * Seals the active file, checkpoints every participant and deletes the sealed
+     * files that all of them now cover.
+     */
+    public void checkpoint() throws IOException {
+        await(enqueue(new LogRecord(null, false, Durability.ALWAYS, true)));
+
+        long coveredLsn = Long.MAX_VALUE;
+        for (Participant participant : participants) {
+            coveredLsn = Math.min(coveredLsn, participant.checkpoint());
+        }
+        if (participants.isEmpty()) {
+            return;
+        }
+
+        filesLock.lock();
+        try {
+            for (File sealed : sealedFiles()) {
+                if (sealedLsn(sealed) <= coveredLsn && !sealed.delete()) {
+                    logger.warn("Could not delete checkpointed transaction log {}", sealed);
+                }
+            }
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    private void checkpointQuietly() {
+        checkpointPending.set(false);
+        try {
+            checkpoint();
+        } catch (Exception e) {
+            logger.error("Checkpoint failed", e);
+        }
+    }
+
+    /**
+     * Waits for everything queued so far to reach disk and stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        checkpointTask.cancel(false);
+        try {
+            flush();
+        } finally {
+            writer.interrupt();
+        }
+    }
+
+    public long getDiskUsage() {
+        filesLock.lock();
+        try {
+            long total = activeFile.length();
+            for (File sealed : sealedFiles()) {
+                total += sealed.length();
+            }
+            return total;
+        } finally {
+            filesLock.unlock();
+        }
+    }
+
+    private File sealedFile(long lsn) {
+        return new File(activeFile.getPath() + String.format(".%020d", lsn));
+    }
+
+    private List<File> sealedFiles() {
+        File directory = activeFile.getParentFile();
+        String prefix = activeFile.getName() + ".";
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && sealedLsn(new File(dir, name)) >= 0);
+        List<File> sealed = new ArrayList<>(files == null ? List.of() : List.of(files));
+        sealed.sort((a, b) -> Long.compare(sealedLsn(a), sealedLsn(b)));
+        return sealed;
+    }
+
+    private long sealedLsn(File file) {
+        String suffix = file.getName().substring(activeFile.getName().length() + 1);
+        try {
+            return Long.parseLong(suffix);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.athens.exceptions;
+
+/**
+ * Thrown when writing a commit to disk failed after it was installed. The
+ * commit is visible and stays so, but may be lost in a crash, and the store
+ * takes no further commits.
+ */
+public class CommitNotDurableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public CommitNotDurableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
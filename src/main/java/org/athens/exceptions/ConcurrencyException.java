@@ -1,6 +1,8 @@
 package org.athens.exceptions;
 
 public class ConcurrencyException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public ConcurrencyException(String message) {
         super(message);
     }
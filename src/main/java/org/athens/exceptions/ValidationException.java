@@ -1,6 +1,8 @@
 package org.athens.exceptions;
 
 public  class ValidationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
     public ValidationException(String message) {
         super(message);
     }
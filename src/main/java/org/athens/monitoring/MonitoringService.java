@@ -1,8 +1,10 @@
 package org.athens.monitoring;
 
 import org.athens.db.core.CacheBox;
+import org.athens.db.eviction.MemoryBudget;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.db.storage.ColdTier;
 
-import java.io.File;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -73,17 +75,30 @@ public class MonitoringService {
         long usedMemory = totalMemory - freeMemory;
         shardMetrics.append(String.format("Shard: %s - Memory Usage: %d bytes%n", shard.getDbFile(), usedMemory));
 
-        // Log disk usage (assuming the storage is a file)
-        File dbFile = new File(shard.getDbFile());
-        if (dbFile.exists()) {
-            long diskUsage = dbFile.length();
-            shardMetrics.append(String.format("Shard: %s - Disk Usage: %d bytes%n", shard.getDbFile(), diskUsage));
-        }
+        // Log disk usage (database file plus its segments)
+        long diskUsage = shard.getStorage().getDiskUsage();
+        shardMetrics.append(String.format("Shard: %s - Disk Usage: %d bytes%n", shard.getDbFile(), diskUsage));
 
-        // Log other relevant metrics (e.g., number of entries, cache hits, etc.)
+        // Log other relevant metrics (e.g., number of entries in memory, cache hits, etc.)
         int numberOfEntries = shard.getGlobalStore().size();
         shardMetrics.append(String.format("Shard: %s - Number of Entries: %d%n", shard.getDbFile(), numberOfEntries));
 
+        // Log the estimated footprint against the shard's memory budget, and what was evicted to keep it
+        MemoryBudget budget = shard.getMemoryBudget();
+        String limit = budget.getMaxBytes() == MemoryBudget.UNLIMITED ? "unlimited" : budget.getMaxBytes() + " bytes";
+        shardMetrics.append(String.format("Shard: %s - Estimated Size: %d bytes (limit %s)%n", shard.getDbFile(), budget.getUsedBytes(), limit));
+        shardMetrics.append(String.format("Shard: %s - Evictions: %d (%d bytes)%n", shard.getDbFile(), budget.getEvictionCount(), budget.getEvictedBytes()));
+
+        // Log the on-disk tier that evicted entries were spilled to
+        ColdTier coldTier = shard.getStorage().getColdTier();
+        shardMetrics.append(String.format("Shard: %s - Cold Tier: %d runs, %d bytes%n", shard.getDbFile(), coldTier.getRunCount(), coldTier.getDiskUsage()));
+
+        // Log the off-heap memory behind the values, if they are kept there
+        OffHeapValueStore offHeap = shard.getGlobalStore().getOffHeapStore();
+        if (offHeap != null) {
+            shardMetrics.append(String.format("Shard: %s - Off-Heap Values: %d bytes used, %d bytes reserved%n", shard.getDbFile(), offHeap.getUsedBytes(), offHeap.getReservedBytes()));
+        }
+
         return shardMetrics.toString();
     }
 
@@ -6,4 +6,20 @@ import java.util.List;
 
 public interface CacheCommand {
     String execute(List<String> args, ShardedCacheBox cacheBox) throws Exception;
+
+    /**
+     * @return whether the command can wait on I/O, such as a log flush, and so
+     * should not run on a thread that serves other connections
+     */
+    default boolean mayBlock() {
+        return true;
+    }
+
+    /**
+     * Like {@link #mayBlock()}, for one request, for commands that only wait
+     * on I/O for some of the data they touch.
+     */
+    default boolean mayBlock(List<String> args, ShardedCacheBox cacheBox) {
+        return mayBlock();
+    }
 }
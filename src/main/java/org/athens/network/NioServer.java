@@ -0,0 +1,366 @@
+package org.athens.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A CBSP server that serves every connection from a few selector threads, so
+ * an idle connection costs a socket and a small buffer rather than a thread.
+ * <p>
+ * The first reactor also accepts connections and deals them out to all
+ * reactors in turn. A reactor parses whatever arrived on its connections, runs
+ * commands that cannot block right away and hands the others to the worker
+ * pool. A connection has one command in flight at a time: while a worker runs
+ * it, or while replies are waiting for the client to read them, the reactor
+ * stops reading from that connection. Replies thus go out in request order, and
+ * a client that sends faster than it reads is held back by TCP flow control.
+ */
+public class NioServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NioServer.class);
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+    // How long to stop accepting after accept fails, e.g. when out of file descriptors
+    private static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+    private final int port;
+    private final int backlog;
+    private final Executor workers;
+    private final Reactor[] reactors;
+    private final AtomicInteger connections = new AtomicInteger();
+    private ServerSocketChannel serverChannel;
+    private int nextReactor;
+    private volatile boolean open = true;
+
+    /**
+     * @param port the port to listen on, or 0 for any free one
+     * @param workers runs the commands that may block
+     */
+    public NioServer(int port, int backlog, int reactorThreads, Executor workers) throws IOException {
+        this.port = port;
+        this.backlog = backlog;
+        this.workers = workers;
+        this.reactors = new Reactor[reactorThreads];
+        for (int i = 0; i < reactorThreads; i++) {
+            reactors[i] = new Reactor(i);
+        }
+    }
+
+    /**
+     * Binds the port and starts the reactor threads.
+     */
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(reactors[0].selector, SelectionKey.OP_ACCEPT);
+        for (Reactor reactor : reactors) {
+            reactor.thread.start();
+        }
+        logger.info("Server started on port {}", getPort());
+    }
+
+    /**
+     * Starts the server and serves until it is closed.
+     */
+    public void run() throws IOException {
+        start();
+        try {
+            for (Reactor reactor : reactors) {
+                reactor.thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+        }
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        for (Reactor reactor : reactors) {
+            reactor.selector.wakeup();
+        }
+        if (serverChannel != null) {
+            serverChannel.close();
+        }
+    }
+
+    private void accept(ServerSocketChannel channel) throws IOException {
+        SocketChannel client;
+        while ((client = channel.accept()) != null) {
+            client.configureBlocking(false);
+            client.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            client.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+            Reactor reactor = reactors[nextReactor++ % reactors.length];
+            SocketChannel accepted = client;
+            reactor.execute(() -> reactor.register(accepted));
+        }
+    }
+
+    private final class Reactor implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        // Work for this thread from others: new connections and finished commands
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private SelectionKey pausedAccept;
+        private long acceptResumesAt;
+
+        Reactor(int id) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "cbsp-reactor-" + id);
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                connections.incrementAndGet();
+            } catch (IOException e) {
+                logger.error("Error registering client connection", e);
+                try {
+                    channel.close();
+                } catch (IOException closeError) {
+                    logger.error("Error closing client connection", closeError);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (open) {
+                try {
+                    if (pausedAccept != null) {
+                        selector.select(Math.max(1, acceptResumesAt - System.currentTimeMillis()));
+                        if (System.currentTimeMillis() >= acceptResumesAt) {
+                            pausedAccept.interestOps(SelectionKey.OP_ACCEPT);
+                            pausedAccept = null;
+                        }
+                    } else {
+                        selector.select();
+                    }
+                } catch (IOException e) {
+                    logger.error("Selector failed", e);
+                    break;
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    handle(key);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    connection.close();
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.error("Error closing selector", e);
+            }
+        }
+
+        private void handle(SelectionKey key) {
+            if (key.attachment() == null) {
+                try {
+                    accept((ServerSocketChannel) key.channel());
+                } catch (IOException e) {
+                    // The failure would repeat on every select, so back off instead of spinning
+                    logger.error("Error accepting client connection, pausing for {} ms", ACCEPT_BACKOFF_MILLIS, e);
+                    key.interestOps(0);
+                    pausedAccept = key;
+                    acceptResumesAt = System.currentTimeMillis() + ACCEPT_BACKOFF_MILLIS;
+                }
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            } catch (IOException | CancelledKeyException e) {
+                logger.debug("Connection to client {} lost", connection.clientId, e);
+                connection.close();
+            }
+        }
+    }
+
+    // Only ever touched by its reactor's thread
+    private final class Connection {
+        private final Reactor reactor;
+        private final SocketChannel channel;
+        private final String clientId;
+        private SelectionKey key;
+        // Kept ready for writing into; holds the start of a request that has not fully arrived
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final ArrayDeque<ByteBuffer> replies = new ArrayDeque<>();
+        private boolean busy;
+        private boolean closing;
+
+        Connection(Reactor reactor, SocketChannel channel) throws IOException {
+            this.reactor = reactor;
+            this.channel = channel;
+            this.clientId = channel.getRemoteAddress().toString();
+        }
+
+        void read() throws IOException {
+            if (!readBuffer.hasRemaining()) {
+                if (readBuffer.capacity() >= RequestParser.MAX_REQUEST_SIZE) {
+                    logger.warn("Request from client {} exceeds {} bytes", clientId, RequestParser.MAX_REQUEST_SIZE);
+                    replies.add(encode(RequestParser.encodeError("Request too large")));
+                    closing = true;
+                    flush();
+                    return;
+                }
+                readBuffer = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, RequestParser.MAX_REQUEST_SIZE))
+                        .put(readBuffer.flip());
+            }
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            process();
+        }
+
+        // Runs the buffered requests until one is incomplete or goes to a worker
+        private void process() throws IOException {
+            readBuffer.flip();
+            try {
+                while (!busy && !closing) {
+                    List<String> request;
+                    try {
+                        request = RequestParser.parseRequest(readBuffer);
+                    } catch (IOException e) {
+                        logger.warn("Invalid request from client {}: {}", clientId, e.getMessage());
+                        replies.add(encode(RequestParser.encodeError("Internal server error")));
+                        closing = true;
+                        break;
+                    }
+                    if (request == null) {
+                        break;
+                    }
+                    if (Server.mayBlock(request)) {
+                        dispatch(request);
+                    } else {
+                        replies.add(encode(Server.processCommand(request, clientId)));
+                    }
+                }
+            } finally {
+                readBuffer.compact();
+            }
+            if (readBuffer.position() == 0 && readBuffer.capacity() > READ_BUFFER_SIZE) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            flush();
+        }
+
+        private void dispatch(List<String> request) {
+            busy = true;
+            try {
+                workers.execute(() -> {
+                    String reply = Server.processCommand(request, clientId);
+                    reactor.execute(() -> completed(reply));
+                });
+            } catch (RejectedExecutionException e) {
+                busy = false;
+                replies.add(encode(RequestParser.encodeError("Server busy")));
+            }
+        }
+
+        private void completed(String reply) {
+            if (!channel.isOpen()) {
+                return;
+            }
+            busy = false;
+            replies.add(encode(reply));
+            try {
+                process();
+            } catch (IOException | CancelledKeyException e) {
+                logger.debug("Connection to client {} lost", clientId, e);
+                close();
+            }
+        }
+
+        // Writes what the socket takes now and waits for the rest before reading anything else
+        void flush() throws IOException {
+            if (!replies.isEmpty()) {
+                // One gathering write for all the replies to a pipelined batch
+                channel.write(replies.toArray(new ByteBuffer[0]));
+                while (!replies.isEmpty() && !replies.peek().hasRemaining()) {
+                    replies.poll();
+                }
+            }
+            if (replies.isEmpty() && closing) {
+                close();
+                return;
+            }
+            int ops;
+            if (!replies.isEmpty()) {
+                ops = SelectionKey.OP_WRITE;
+            } else {
+                ops = busy || closing ? 0 : SelectionKey.OP_READ;
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            if (!channel.isOpen()) {
+                return;
+            }
+            connections.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Error closing connection for client {}", clientId, e);
+            }
+            logger.debug("Cleaned up resources for client {}", clientId);
+        }
+
+        private ByteBuffer encode(String reply) {
+            return ByteBuffer.wrap(reply.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.athens.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Reads CBSP requests from one connection's blocking stream, keeping whatever
+ * arrived after a request for the next one, so that a client can pipeline
+ * requests without waiting for each reply.
+ */
+public class RequestDecoder {
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream inputStream;
+    // Kept ready for reading from; holds the bytes not parsed yet
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+
+    public RequestDecoder(InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /**
+     * Waits for the next request.
+     *
+     * @return the request, or {@code null} if the client closed the connection
+     * between requests
+     * @throws IOException if the connection fails, closes within a request or
+     * sends something that is not a request
+     */
+    public List<String> read() throws IOException {
+        while (true) {
+            List<String> request = RequestParser.parseRequest(buffer);
+            if (request != null) {
+                return request;
+            }
+            if (fill(true) < 0) {
+                if (buffer.hasRemaining()) {
+                    throw new IOException("Premature end of stream within a request");
+                }
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Returns the next request if all of it has already arrived, reading only
+     * what the stream has without blocking.
+     *
+     * @return the request, or {@code null} if it has not fully arrived
+     */
+    public List<String> poll() throws IOException {
+        while (true) {
+            List<String> request = RequestParser.parseRequest(buffer);
+            if (request != null || inputStream.available() <= 0 || fill(false) <= 0) {
+                return request;
+            }
+        }
+    }
+
+    // Appends what the stream has, or at least one byte if it may block
+    private int fill(boolean block) throws IOException {
+        if (!buffer.hasRemaining() && buffer.capacity() > BUFFER_SIZE) {
+            // Give back what a large request needed
+            buffer = ByteBuffer.allocate(BUFFER_SIZE).flip();
+        }
+        buffer.compact();
+        try {
+            if (!buffer.hasRemaining()) {
+                if (buffer.capacity() >= RequestParser.MAX_REQUEST_SIZE) {
+                    throw new IOException("Request exceeds " + RequestParser.MAX_REQUEST_SIZE + " bytes");
+                }
+                buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2, RequestParser.MAX_REQUEST_SIZE))
+                        .put(buffer.flip());
+            }
+            int length = block ? buffer.remaining() : Math.min(buffer.remaining(), inputStream.available());
+            int read = inputStream.read(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            if (read > 0) {
+                buffer.position(buffer.position() + read);
+            }
+            return read;
+        } finally {
+            buffer.flip();
+        }
+    }
+}
@@ -4,15 +4,22 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 public class RequestParser {
 
     private static final Logger logger = LoggerFactory.getLogger(RequestParser.class);
+    // A request larger than this is refused rather than buffered
+    public static final int MAX_REQUEST_SIZE = 64 * 1024 * 1024;
 
     /**
      * Parses a CBSP request from an InputStream.
+     * <p>
+     * Bytes read ahead of the request are lost, so this cannot serve a client
+     * that pipelines requests; a {@link RequestDecoder} kept per connection can.
      *
      * @param inputStream The input stream connected to the client.
      * @return A list of strings representing the parsed CBSP command.
@@ -80,6 +87,82 @@ public class RequestParser {
         return elements;
     }
 
+    /**
+     * Parses a CBSP request from the bytes between the position and the limit
+     * of {@code buffer}, for callers that read without blocking and may hold
+     * part of a request.
+     *
+     * @return the request, with the position moved past it, or {@code null} if
+     * the buffer does not hold all of it yet, with the position unchanged
+     * @throws IOException if the bytes are not a CBSP request
+     */
+    public static List<String> parseRequest(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        String firstLine = readLine(buffer);
+        if (firstLine == null) {
+            return null;
+        }
+        if (firstLine.isEmpty() || firstLine.charAt(0) != '*') {
+            throw new IOException("Invalid CBSP format: Expected array header '*', got: " + firstLine);
+        }
+        int numElements = parseLength(firstLine);
+
+        List<String> elements = new ArrayList<>(Math.min(numElements, 16));
+        for (int i = 0; i < numElements; i++) {
+            String lengthLine = readLine(buffer);
+            if (lengthLine == null) {
+                buffer.position(start);
+                return null;
+            }
+            if (lengthLine.isEmpty() || lengthLine.charAt(0) != '$') {
+                throw new IOException("Invalid CBSP format: Expected bulk string header '$', got: " + lengthLine);
+            }
+            int length = parseLength(lengthLine);
+            if (buffer.remaining() < length) {
+                buffer.position(start);
+                return null;
+            }
+            byte[] data = new byte[length];
+            buffer.get(data);
+            String terminator = readLine(buffer);
+            if (terminator == null) {
+                buffer.position(start);
+                return null;
+            }
+            if (!terminator.isEmpty()) {
+                throw new IOException("Expected empty line after bulk string data, got: " + terminator);
+            }
+            elements.add(new String(data, StandardCharsets.UTF_8));
+        }
+        return elements;
+    }
+
+    private static int parseLength(String line) throws IOException {
+        try {
+            int length = Integer.parseInt(line.substring(1).trim());
+            if (length < 0) {
+                throw new IOException("Negative length: " + line.substring(1));
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid length: " + line.substring(1));
+        }
+    }
+
+    // A line ends with \n, optionally preceded by \r; null if the buffer holds no line end
+    private static String readLine(ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                int end = i > buffer.position() && buffer.get(i - 1) == '\r' ? i - 1 : i;
+                byte[] line = new byte[end - buffer.position()];
+                buffer.get(line);
+                buffer.position(i + 1);
+                return new String(line, StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
     // CBSP Encoding Helpers
     public static String encodeSimpleString(String message) {
         return "+" + message + "\r\n";
@@ -90,10 +173,22 @@ public class RequestParser {
     }
 
     public static String encodeBulkString(String data) {
-        return "$" + data.length() + "\r\n" + data + "\r\n";
+        // The length counts bytes as sent, not characters
+        return "$" + data.getBytes(StandardCharsets.UTF_8).length + "\r\n" + data + "\r\n";
     }
 
     public static String encodeInteger(long value) {
         return ":" + value + "\r\n";
     }
+
+    /**
+     * @param elements elements that are already encoded
+     */
+    public static String encodeArray(List<String> elements) {
+        StringBuilder array = new StringBuilder("*").append(elements.size()).append("\r\n");
+        for (String element : elements) {
+            array.append(element);
+        }
+        return array.toString();
+    }
 }
\ No newline at end of file
@@ -2,8 +2,11 @@ package org.athens.network;
 
 import org.athens.db.encryption.AESEncryptionStrategy;
 import org.athens.db.encryption.EncryptionStrategy;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
 import org.athens.db.shrading.LoadBalancer;
 import org.athens.db.shrading.ShardedCacheBox;
+import org.athens.db.storage.Durability;
 import org.athens.network.commands.CommandFactory;
 import org.athens.utils.KeyManager;
 import org.slf4j.Logger;
@@ -13,6 +16,7 @@ import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.Executor;
@@ -27,15 +31,50 @@ public class Server {
     private static final int MAX_POOL_SIZE = CORE_POOL_SIZE * 4;
     private static final int KEEP_ALIVE_TIME = 60;
     private static final int CONNECTION_BACKLOG = 50;
+    // Commit durability for every shard, e.g. -Dcachebox.durability=PERIODIC
+    private static final Durability DURABILITY = Durability.valueOf(
+            System.getProperty("cachebox.durability", Durability.ALWAYS.name()).toUpperCase());
+    // Eviction policy for every shard, e.g. -Dcachebox.eviction=W_TINY_LFU
+    private static final EvictionPolicy EVICTION_POLICY = EvictionPolicy.valueOf(
+            System.getProperty("cachebox.eviction", EvictionPolicy.LRU.name()).toUpperCase());
+    // Estimated memory for all shards together and for each one, e.g. -Dcachebox.maxmemory=2g
+    private static final String MAX_MEMORY = System.getProperty("cachebox.maxmemory");
+    private static final String SHARD_MAX_MEMORY = System.getProperty("cachebox.shard.maxmemory");
+    // Keep values outside the Java heap, -Dcachebox.offheap=true
+    private static final boolean OFF_HEAP_VALUES = Boolean.getBoolean("cachebox.offheap");
+
+    // NIO serves every connection from a few selector threads; BLOCKING gives each a thread from
+    // a fixed pool, VIRTUAL a virtual thread of its own
+    private static final String IO_MODE = System.getProperty("cachebox.io", "NIO").toUpperCase();
+    private static final int REACTOR_THREADS = Integer.getInteger("cachebox.reactors",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
 
     private static final Executor connectionPool = Executors.newFixedThreadPool(CORE_POOL_SIZE);
 
     public static void main() {
         initializeCacheBox();
-        logger.info("Starting Cache Box server on port {} with {} core threads", PORT, CORE_POOL_SIZE);
-
         setupShutdownHook();
 
+        if (IO_MODE.equals("NIO")) {
+            logger.info("Starting Cache Box server on port {} with {} reactor and {} worker threads", PORT, REACTOR_THREADS, CORE_POOL_SIZE);
+            try {
+                startMetricsReporter();
+                new NioServer(PORT, CONNECTION_BACKLOG, REACTOR_THREADS, connectionPool).run();
+            } catch (IOException e) {
+                logger.error("Server startup failed", e);
+            }
+            return;
+        }
+
+        Executor handlers;
+        if (IO_MODE.equals("VIRTUAL")) {
+            // No cap on concurrent clients: a connection waiting on its socket unmounts from its carrier
+            handlers = Executors.newVirtualThreadPerTaskExecutor();
+            logger.info("Starting Cache Box server on port {} with a virtual thread per connection", PORT);
+        } else {
+            handlers = connectionPool;
+            logger.info("Starting Cache Box server on port {} with {} core threads", PORT, CORE_POOL_SIZE);
+        }
         try (ServerSocket serverSocket = new ServerSocket(PORT, CONNECTION_BACKLOG)) {
             logger.info("Server started on port {}", PORT);
             startMetricsReporter();
@@ -43,7 +82,7 @@ public class Server {
             while (!Thread.currentThread().isInterrupted()) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    connectionPool.execute(new ClientHandler(clientSocket));
+                    handlers.execute(new ClientHandler(clientSocket));
                 } catch (IOException e) {
                     logger.error("Error accepting client connection", e);
                 }
@@ -65,9 +104,45 @@ public class Server {
         // Implement metrics reporting if necessary
     }
 
+    static String processCommand(List<String> commandParts, String clientId) {
+        if (commandParts == null || commandParts.isEmpty()) {
+            return RequestParser.encodeError("Empty command");
+        }
+
+        try {
+            String action = commandParts.get(0).toUpperCase();
+            if(action.equals("PING")) return RequestParser.encodeSimpleString("PONG");
+            CacheCommand cmd = CommandFactory.getCommand(action);
+
+            if (cmd == null) {
+                logger.warn("Unknown command from client {}: {}", clientId, action);
+                return RequestParser.encodeError("Unknown command: " + action);
+            }
+
+            return cmd.execute(commandParts.subList(1, commandParts.size()), cacheBox);
+        } catch (Exception e) {
+            logger.error("Error processing command from client {}: {}", clientId, commandParts, e);
+            return RequestParser.encodeError("Server error: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return whether {@link #processCommand} may wait on I/O for this command;
+     * PING and commands that fail without running never do
+     */
+    static boolean mayBlock(List<String> commandParts) {
+        if (commandParts == null || commandParts.isEmpty()) {
+            return false;
+        }
+        CacheCommand cmd = CommandFactory.getCommand(commandParts.get(0));
+        return cmd != null && cmd.mayBlock(commandParts.subList(1, commandParts.size()), cacheBox);
+    }
+
     private static class ClientHandler implements Runnable {
         private static final Logger logger = LoggerFactory.getLogger(ClientHandler.class);
         private static final int SOCKET_TIMEOUT = 30000;
+        // Replies to a pipelined batch collect here and go out in one write when it is done or full
+        private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
         private final Socket clientSocket;
         private final String clientId;
 
@@ -86,7 +161,7 @@ public class Server {
         @Override
         public void run() {
             try (InputStream inputStream = new BufferedInputStream(clientSocket.getInputStream());
-                 OutputStream outputStream = new BufferedOutputStream(clientSocket.getOutputStream())) {
+                 OutputStream outputStream = new BufferedOutputStream(clientSocket.getOutputStream(), OUTPUT_BUFFER_SIZE)) {
                 logger.debug("Started handling client {}", clientId);
                 processClientRequests(inputStream, outputStream);
             } catch (IOException e) {
@@ -97,14 +172,22 @@ public class Server {
         }
 
         private void processClientRequests(InputStream inputStream, OutputStream outputStream) throws IOException {
+            RequestDecoder decoder = new RequestDecoder(inputStream);
             while (!Thread.currentThread().isInterrupted() && !clientSocket.isClosed()) {
                 try {
-                    List<String> command = parseClientRequest(inputStream);
-                    String response = processCommand(command);
-                    synchronized (outputStream) {
-                        outputStream.write(response.getBytes());
-                        outputStream.flush();
+                    List<String> command = decoder.read();
+                    if (command == null) {
+                        logger.debug("Client {} closed the connection", clientId);
+                        break;
                     }
+                    // Answer everything pipelined behind it that has arrived, then flush once
+                    do {
+                        String response = processCommand(command, clientId);
+                        // Only this handler writes to the stream, so no lock; a monitor would pin a virtual thread
+                        outputStream.write(response.getBytes(StandardCharsets.UTF_8));
+                        command = decoder.poll();
+                    } while (command != null);
+                    outputStream.flush();
                 } catch (SocketTimeoutException e) {
                     logger.warn("Idle connection timed out for client {}", clientId, e);
                     break;
@@ -118,32 +201,6 @@ public class Server {
             }
         }
 
-        private List<String> parseClientRequest(InputStream inputStream) throws IOException {
-            return RequestParser.parseRequest(inputStream);
-        }
-
-        private String processCommand(List<String> commandParts) {
-            if (commandParts == null || commandParts.isEmpty()) {
-                return RequestParser.encodeError("Empty command");
-            }
-
-            try {
-                String action = commandParts.get(0).toUpperCase();
-                if(action.equals("PING")) return RequestParser.encodeSimpleString("PONG");
-                CacheCommand cmd = CommandFactory.getCommand(action);
-
-                if (cmd == null) {
-                    logger.warn("Unknown command from client {}: {}", clientId, action);
-                    return RequestParser.encodeError("Unknown command: " + action);
-                }
-
-                return cmd.execute(commandParts.subList(1, commandParts.size()), cacheBox);
-            } catch (Exception e) {
-                logger.error("Error processing command from client {}: {}", clientId, commandParts, e);
-                return RequestParser.encodeError("Server error: " + e.getMessage());
-            }
-        }
-
         private void handleRequestError(Exception e, OutputStream outputStream) {
             String errorResponse;
             if (e instanceof TimeoutException) {
@@ -154,10 +211,8 @@ public class Server {
                 logger.error("Error processing request for client {}", clientId, e);
             }
             try {
-                synchronized (outputStream) {
-                    outputStream.write(errorResponse.getBytes());
-                    outputStream.flush();
-                }
+                outputStream.write(errorResponse.getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
             } catch (IOException writeError) {
                 logger.error("Error sending error response to client {}", clientId, writeError);
             }
@@ -179,16 +234,28 @@ public class Server {
         byte[] encryptionKey = KeyManager.getOrCreateEncryptionKey();
         EncryptionStrategy encryptionStrategy = new AESEncryptionStrategy();
         boolean encryptionEnabled = true;
-        int maxSize = 1000;
+        // With a memory budget the entry count no longer needs to stand in for size
+        int maxSize = MAX_MEMORY != null || SHARD_MAX_MEMORY != null ? Integer.MAX_VALUE : 1000;
 
         List<ShardedCacheBox> cacheBoxes = Arrays.asList(
-                new ShardedCacheBox(4, "db_files/shard1_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize),
-                new ShardedCacheBox(4, "db_files/shard2_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize),
-                new ShardedCacheBox(4, "db_files/shard3_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize)
+                new ShardedCacheBox(4, "db_files/shard1_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize, EVICTION_POLICY, OFF_HEAP_VALUES),
+                new ShardedCacheBox(4, "db_files/shard2_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize, EVICTION_POLICY, OFF_HEAP_VALUES),
+                new ShardedCacheBox(4, "db_files/shard3_", encryptionStrategy, encryptionEnabled, encryptionKey, maxSize, EVICTION_POLICY, OFF_HEAP_VALUES)
         );
 
+        MemoryBudget globalBudget = MAX_MEMORY != null ? new MemoryBudget(MemoryBudget.parseBytes(MAX_MEMORY)) : null;
+        for (ShardedCacheBox shardedCacheBox : cacheBoxes) {
+            shardedCacheBox.setDurability(DURABILITY);
+            if (SHARD_MAX_MEMORY != null) {
+                shardedCacheBox.setMaxMemoryPerShard(MemoryBudget.parseBytes(SHARD_MAX_MEMORY));
+            }
+            if (globalBudget != null) {
+                shardedCacheBox.setGlobalMemoryBudget(globalBudget);
+            }
+        }
+
         LoadBalancer loadBalancer = new LoadBalancer(cacheBoxes, Arrays.asList(1, 1, 1));
         cacheBox = loadBalancer.getNextCacheBox();
-        logger.info("CacheBox initialized with shards");
+        logger.info("CacheBox initialized with shards, durability {}, eviction {}", DURABILITY, EVICTION_POLICY);
     }
 }
\ No newline at end of file
@@ -11,6 +11,7 @@ public class CommandFactory {
         commandMap.put("DELETE", new DeleteCommand());
         commandMap.put("PUT", new PutCommand());
         commandMap.put("GET", new GetCommand());
+        commandMap.put("SCAN", new ScanCommand());
     }
 
     public static CacheCommand getCommand(String action) {
@@ -15,14 +15,8 @@ public class DeleteCommand implements CacheCommand {
             return RequestParser.encodeError("DELETE command has insufficient arguments");
         }
 
-        cacheBox.beginTransaction();
-        if (!cacheBox.isTransactionActive()) {
-            logger.warn("No transaction active for DELETE command");
-            return RequestParser.encodeError("No transaction active. Start with 'begin'.");
-        }
-
-        cacheBox.delete(args.get(0));
-        cacheBox.commit();
+        // Committed on the owning shard alone
+        cacheBox.deleteAndCommit(args.get(0));
         return RequestParser.encodeSimpleString("OK");
     }
 }
\ No newline at end of file
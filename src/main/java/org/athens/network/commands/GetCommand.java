@@ -20,17 +20,11 @@ public class GetCommand implements CacheCommand {
             return RequestParser.encodeError("GET requires a key");
         }
 
-        cacheBox.beginTransaction();
-        if (!cacheBox.isTransactionActive()) {
-            logger.warn("No transaction active for GET command");
-            return RequestParser.encodeError("No transaction active. Start with 'begin'.");
-        }
-
         String key = args.get(0);
         logger.debug("GET command for key: {}", key);
 
-        CacheValue getValue = cacheBox.get(key);
-        cacheBox.commit();
+        // A single read needs no transaction; it sees the latest commit of the key's shard
+        CacheValue getValue = cacheBox.getCommitted(key);
 
         if (getValue != null) {
             logger.info("GET command successful. Key: {}, Value: {}", key, getValue.asString());
@@ -40,4 +34,12 @@ public class GetCommand implements CacheCommand {
             return RequestParser.encodeSimpleString("NULL");
         }
     }
+
+    // Reading a key spilled to the cold tier goes to disk and takes the shard's lock, so
+    // only keys held in memory are read on the calling thread; one evicted in between
+    // is still read correctly, just on that thread
+    @Override
+    public boolean mayBlock(List<String> args, ShardedCacheBox cacheBox) {
+        return !args.isEmpty() && !cacheBox.isReadableFromMemory(args.get(0));
+    }
 }
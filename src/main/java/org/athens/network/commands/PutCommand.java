@@ -21,36 +21,38 @@ public class PutCommand implements CacheCommand {
             return RequestParser.encodeError("PUT requires type, key, and value");
         }
 
-        cacheBox.beginTransaction();
-        if (!cacheBox.isTransactionActive()) {
-            logger.warn("No transaction active for PUT command");
-            return RequestParser.encodeError("No transaction active. Start with 'begin'.");
-        }
-
         String inputType = args.get(0).toLowerCase();
         String inputKey = args.get(1);
         String inputValue = args.get(2);
         logger.debug("PUT command details: type={}, key={}, value={}", inputType, inputKey, inputValue);
 
+        CacheValue value;
         switch (inputType) {
             case "string":
-                cacheBox.put(inputKey, CacheValue.of(0, inputValue));
+                value = CacheValue.of(0, inputValue);
                 break;
             case "int":
-                cacheBox.put(inputKey, CacheValue.of(0, Integer.parseInt(inputValue)));
+                value = CacheValue.of(0, Integer.parseInt(inputValue));
                 break;
             case "bool":
-                cacheBox.put(inputKey, CacheValue.of(0, Boolean.parseBoolean(inputValue)));
+                value = CacheValue.of(0, Boolean.parseBoolean(inputValue));
+                break;
+            case "long":
+                value = CacheValue.of(0, Long.parseLong(inputValue));
+                break;
+            case "double":
+                value = CacheValue.of(0, Double.parseDouble(inputValue));
                 break;
             case "list":
-                cacheBox.put(inputKey, CacheValue.of(0, Arrays.asList(inputValue.split(","))));
+                value = CacheValue.of(0, Arrays.asList(inputValue.split(",")));
                 break;
             default:
                 logger.warn("Unsupported type for PUT command: {}", inputType);
-                return RequestParser.encodeError("Unknown type. Supported types: string, int, bool, list");
+                return RequestParser.encodeError("Unknown type. Supported types: string, int, long, double, bool, list");
         }
 
-        cacheBox.commit();
+        // Committed on the owning shard alone
+        cacheBox.putAndCommit(inputKey, value);
         logger.info("PUT command successful for key: {}", inputKey);
         return RequestParser.encodeSimpleString("OK");
     }
@@ -0,0 +1,88 @@
+package org.athens.network.commands;
+
+import org.athens.db.shrading.ShardedCacheBox;
+import org.athens.network.CacheCommand;
+import org.athens.network.RequestParser;
+import org.athens.utils.CacheQuery;
+import org.athens.utils.CacheValue;
+import org.athens.utils.SearchPage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.athens.network.Server.logger;
+
+/**
+ * {@code SCAN cursor [MATCH pattern] [RANGE min max] [COUNT count] [OFFSET offset]}
+ * <p>
+ * Pages through committed entries in key order. The first call passes cursor
+ * {@code 0}; the reply is the cursor of the next page, {@code 0} after the
+ * last, and the page as alternating keys and values.
+ */
+public class ScanCommand implements CacheCommand {
+    private static final String START = "0";
+    private static final int DEFAULT_COUNT = 10;
+    // Bounds what a single reply can hold in memory
+    private static final int MAX_COUNT = 1000;
+
+    @Override
+    public String execute(List<String> args, ShardedCacheBox cacheBox) throws Exception {
+        if (args.isEmpty()) {
+            logger.warn("SCAN command has insufficient arguments");
+            return RequestParser.encodeError("SCAN requires a cursor");
+        }
+
+        String cursor = args.get(0).equals(START) ? null : args.get(0);
+        CacheQuery.Builder queryBuilder = new CacheQuery.Builder();
+        boolean filtered = false;
+        int count = DEFAULT_COUNT;
+        int offset = 0;
+        try {
+            for (int i = 1; i < args.size(); i++) {
+                switch (args.get(i).toUpperCase()) {
+                    case "MATCH":
+                        queryBuilder.withPattern(args.get(++i));
+                        filtered = true;
+                        break;
+                    case "RANGE":
+                        queryBuilder.withRange(Integer.parseInt(args.get(++i)), Integer.parseInt(args.get(++i)));
+                        filtered = true;
+                        break;
+                    case "COUNT":
+                        count = Integer.parseInt(args.get(++i));
+                        break;
+                    case "OFFSET":
+                        offset = Integer.parseInt(args.get(++i));
+                        break;
+                    default:
+                        return RequestParser.encodeError("Unknown SCAN option: " + args.get(i));
+                }
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            return RequestParser.encodeError("Invalid SCAN arguments: " + e.getMessage());
+        }
+        if (count <= 0 || count > MAX_COUNT || offset < 0) {
+            return RequestParser.encodeError("COUNT must be between 1 and " + MAX_COUNT + " and OFFSET not negative");
+        }
+        if (!filtered) {
+            queryBuilder.withPattern(".*");
+        }
+
+        SearchPage page;
+        try {
+            page = cacheBox.searchPage(queryBuilder.build(), cursor, offset, count);
+        } catch (IllegalArgumentException e) {
+            return RequestParser.encodeError("Invalid SCAN request: " + e.getMessage());
+        }
+
+        List<String> entries = new ArrayList<>(page.getEntries().size() * 2);
+        for (Map.Entry<String, CacheValue> entry : page.getEntries()) {
+            entries.add(RequestParser.encodeBulkString(entry.getKey()));
+            entries.add(RequestParser.encodeBulkString(entry.getValue().asString()));
+        }
+        String nextCursor = page.getNextCursor() != null ? page.getNextCursor() : START;
+        logger.debug("SCAN returned {} entries", page.getEntries().size());
+        return RequestParser.encodeArray(List.of(RequestParser.encodeBulkString(nextCursor), RequestParser.encodeArray(entries)));
+    }
+}
@@ -1,7 +1,12 @@
 package org.athens.utils;
 
+import java.util.regex.Pattern;
+
 public class CacheQuery {
     private final String pattern;
+    // Compiled once here rather than by String.matches for every key searched
+    private final Pattern compiledPattern;
+    private final String literalPrefix;
     private final Integer minValue;
     private  final Integer maxValue;
     private final CacheValue.Type typeFilter;
@@ -28,13 +33,15 @@ public class CacheQuery {
         }
 
         public CacheQuery build() {
-            if (pattern == null && typeFilter == null) {
-                throw new IllegalArgumentException("Pattern or TypeFilter must be provided");
+            if (pattern == null && typeFilter == null && minValue == null && maxValue == null) {
+                throw new IllegalArgumentException("Pattern, range or TypeFilter must be provided");
             }
             return new CacheQuery(this);        }
     }
     private CacheQuery(Builder builder) {
         this.pattern = builder.pattern;
+        this.compiledPattern = pattern != null ? Pattern.compile(pattern) : null;
+        this.literalPrefix = pattern != null ? literalPrefix(pattern) : "";
         this.minValue = builder.minValue;
         this.maxValue = builder.maxValue;
         this.typeFilter = builder.typeFilter;
@@ -44,6 +51,45 @@ public class CacheQuery {
         return pattern;
     }
 
+    public Pattern getCompiledPattern() {
+        return compiledPattern;
+    }
+
+    /**
+     * @return the text every string matching the whole pattern starts with,
+     * or an empty string if there is none
+     */
+    public String getLiteralPrefix() {
+        return literalPrefix;
+    }
+
+    // Reads literal characters from the start up to the first construct that is not one
+    static String literalPrefix(String pattern) {
+        if (pattern.indexOf('|') >= 0) {
+            return ""; // An alternative could start with anything
+        }
+        StringBuilder prefix = new StringBuilder();
+        int i = pattern.startsWith("^") ? 1 : 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i);
+            int next = i + 1;
+            if (c == '\\') {
+                if (next >= pattern.length() || Character.isLetterOrDigit(pattern.charAt(next))) {
+                    break; // A character class, back reference or quote, not a literal
+                }
+                c = pattern.charAt(next++);
+            } else if (".[](){}*+?^$".indexOf(c) >= 0) {
+                break;
+            }
+            if (next < pattern.length() && "*?{".indexOf(pattern.charAt(next)) >= 0) {
+                break; // The character may occur zero times
+            }
+            prefix.append(c);
+            i = next;
+        }
+        return prefix.toString();
+    }
+
     public Integer getMinValue() {
         return minValue;
     }
@@ -8,27 +8,79 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
+/**
+ * A typed value with its version. Numbers and booleans are kept unboxed in a
+ * single {@code long}, so they cost no object beyond the value itself; strings
+ * and lists are kept as objects.
+ */
 public class CacheValue implements Serializable {
     public enum Type {
         STRING,
         INTEGER,
         BOOLEAN,
         LIST,
-        NULL
+        NULL,
+        LONG,
+        DOUBLE
     }
+    private static final long serialVersionUID = 1L;
     private final Type type;
+    // Strings and lists; null for the primitive types
+    @SuppressWarnings("serial")
     private final Object value;
+    // Ints, longs and booleans (1 or 0) as they are, doubles as their raw bits
+    private final long bits;
     private final int version;
+    private static final long SHALLOW_BYTES = MemoryEstimator.align(12 + 4 + 4 + 8 + 4);
 
 
     public CacheValue(int version, Type type, Object value) {
         this.version = version;
         this.type = type;
-        this.value = value;
+        switch (type) {
+            case INTEGER, LONG -> {
+                this.value = null;
+                this.bits = ((Number) value).longValue();
+            }
+            case DOUBLE -> {
+                this.value = null;
+                this.bits = Double.doubleToRawLongBits(((Number) value).doubleValue());
+            }
+            case BOOLEAN -> {
+                this.value = null;
+                this.bits = (Boolean) value ? 1 : 0;
+            }
+            default -> {
+                this.value = value;
+                this.bits = 0;
+            }
+        }
+    }
+
+    private CacheValue(int version, Type type, long bits) {
+        this.version = version;
+        this.type = type;
+        this.value = null;
+        this.bits = bits;
     }
+
+    private CacheValue(int version, CacheValue other) {
+        this.version = version;
+        this.type = other.type;
+        this.value = other.value;
+        this.bits = other.bits;
+    }
+
     public int getVersion() {
         return version;
     }
+
+    /**
+     * @return this value under another version, sharing its payload
+     */
+    public CacheValue withVersion(int version) {
+        return version == this.version ? this : new CacheValue(version, this);
+    }
     public static CacheValue of(int version, String value) {
         if (version < 0) {
             throw new IllegalArgumentException("Version cannot be negative.");
@@ -36,12 +88,28 @@ public class CacheValue implements Serializable {
         return new CacheValue(version, Type.STRING, value);
     }
 
-    public static CacheValue of(int version, Integer value) {
+    public static CacheValue of(int version, int value) {
         return new CacheValue(version, Type.INTEGER, value);
     }
 
+    public static CacheValue of(int version, Integer value) {
+        return value != null ? of(version, value.intValue()) : ofNull(version);
+    }
+
+    public static CacheValue of(int version, long value) {
+        return new CacheValue(version, Type.LONG, value);
+    }
+
+    public static CacheValue of(int version, double value) {
+        return new CacheValue(version, Type.DOUBLE, Double.doubleToRawLongBits(value));
+    }
+
+    public static CacheValue of(int version, boolean value) {
+        return new CacheValue(version, Type.BOOLEAN, value ? 1 : 0);
+    }
+
     public static CacheValue of(int version, Boolean value) {
-        return new CacheValue(version, Type.BOOLEAN, value);
+        return value != null ? of(version, value.booleanValue()) : ofNull(version);
     }
 
     public static CacheValue of(int version, List<?> value) {
@@ -53,14 +121,43 @@ public class CacheValue implements Serializable {
     }
 
     public String asString() {
-        return value != null ? value.toString() : null;
+        return switch (type) {
+            case INTEGER -> Integer.toString(intValue());
+            case LONG -> Long.toString(bits);
+            case DOUBLE -> Double.toString(doubleValue());
+            case BOOLEAN -> Boolean.toString(booleanValue());
+            default -> value != null ? value.toString() : null;
+        };
     }
     public Integer asInteger() {
-        return (Integer) value;
+        return type == Type.INTEGER ? intValue() : (Integer) value;
     }
 
     public Boolean asBoolean() {
-        return (Boolean) value;
+        return type == Type.BOOLEAN ? booleanValue() : (Boolean) value;
+    }
+
+    public int intValue() {
+        return (int) bits;
+    }
+
+    public long longValue() {
+        return type == Type.DOUBLE ? (long) doubleValue() : bits;
+    }
+
+    public double doubleValue() {
+        return type == Type.DOUBLE ? Double.longBitsToDouble(bits) : bits;
+    }
+
+    public boolean booleanValue() {
+        return bits != 0;
+    }
+
+    /**
+     * @return whether this is an int, long or double
+     */
+    public boolean isNumeric() {
+        return type == Type.INTEGER || type == Type.LONG || type == Type.DOUBLE;
     }
 
     @SuppressWarnings("unchecked")
@@ -77,7 +174,7 @@ public class CacheValue implements Serializable {
 
     public String serialize() {
         if (isNull()) return "NULL:" + version + ":null";
-        String encodedValue = URLEncoder.encode(value.toString(), StandardCharsets.UTF_8);
+        String encodedValue = URLEncoder.encode(asString(), StandardCharsets.UTF_8);
         switch (type) {
             case STRING:
                 return "STRING:" + version + ":" + encodedValue;
@@ -87,6 +184,10 @@ public class CacheValue implements Serializable {
                 return "BOOLEAN:" + version + ":" + encodedValue;
             case LIST:
                 return "LIST:" + version + ":" + encodedValue;
+            case LONG:
+                return "LONG:" + version + ":" + encodedValue;
+            case DOUBLE:
+                return "DOUBLE:" + version + ":" + encodedValue;
             default:
                 throw new IllegalStateException("Unknown type: " + type);
         }
@@ -113,11 +214,31 @@ public class CacheValue implements Serializable {
             case INTEGER -> of(version, Integer.parseInt(value));
             case BOOLEAN -> of(version, Boolean.parseBoolean(value));
             case LIST -> of(version, Arrays.asList(value.split(",")));
+            case LONG -> of(version, Long.parseLong(value));
+            case DOUBLE -> of(version, Double.parseDouble(value));
             default -> throw new IllegalStateException("Unknown type: " + type);
         };
     }
+    /**
+     * @return the payload, boxing numbers and booleans; prefer the primitive
+     * accessors for those
+     */
     public Object getValue() {
-        return value;
+        return switch (type) {
+            case INTEGER -> intValue();
+            case LONG -> bits;
+            case DOUBLE -> doubleValue();
+            case BOOLEAN -> booleanValue();
+            default -> value;
+        };
+    }
+
+    /**
+     * @return the estimated heap footprint of this value, including its payload
+     * and list elements
+     */
+    public long estimatedBytes() {
+        return value != null ? SHALLOW_BYTES + MemoryEstimator.ofObject(value) : SHALLOW_BYTES;
     }
 
 }
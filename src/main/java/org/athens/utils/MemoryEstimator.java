@@ -0,0 +1,61 @@
+package org.athens.utils;
+
+import java.util.List;
+
+/**
+ * Rough heap footprints for a 64-bit JVM with compressed references, used to
+ * weigh entries against a memory budget. Strings are assumed to be compact
+ * (one byte per character); shared instances such as {@code Boolean.TRUE}
+ * count as free.
+ */
+public final class MemoryEstimator {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    private static final long STRING_SHALLOW = align(OBJECT_HEADER + REFERENCE + 4 + 1 + 1);
+    private static final long BOXED_INT = align(OBJECT_HEADER + 4);
+    private static final long BOXED_LONG = align(OBJECT_HEADER + 8);
+    private static final long ARRAY_LIST_SHALLOW = align(OBJECT_HEADER + 4 + 4 + REFERENCE);
+
+    private MemoryEstimator() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public static long ofString(String value) {
+        return STRING_SHALLOW + align(ARRAY_HEADER + value.length());
+    }
+
+    public static long ofList(List<?> list) {
+        long bytes = ARRAY_LIST_SHALLOW + align(ARRAY_HEADER + (long) REFERENCE * list.size());
+        for (Object element : list) {
+            bytes += ofObject(element);
+        }
+        return bytes;
+    }
+
+    public static long ofObject(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 0;
+        }
+        if (value instanceof String string) {
+            return ofString(string);
+        }
+        if (value instanceof Integer || value instanceof Float || value instanceof Short
+                || value instanceof Byte || value instanceof Character) {
+            return BOXED_INT;
+        }
+        if (value instanceof Long || value instanceof Double) {
+            return BOXED_LONG;
+        }
+        if (value instanceof List<?> list) {
+            return ofList(list);
+        }
+        if (value instanceof CacheValue cacheValue) {
+            return cacheValue.estimatedBytes();
+        }
+        return align(OBJECT_HEADER + REFERENCE);
+    }
+}
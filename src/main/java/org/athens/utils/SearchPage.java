@@ -0,0 +1,49 @@
+package org.athens.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of search results in ascending key order, with the cursor to pass
+ * back for the page after it.
+ * <p>
+ * A cursor is the last key of its page, encoded so that callers treat it as
+ * opaque. Resuming from it continues after that key whatever was written or
+ * deleted in between, so no page repeats a key and none is skipped that
+ * existed throughout.
+ */
+public class SearchPage {
+    private final List<Map.Entry<String, CacheValue>> entries;
+    private final String nextCursor;
+
+    public SearchPage(List<Map.Entry<String, CacheValue>> entries, String nextCursor) {
+        this.entries = entries;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<Map.Entry<String, CacheValue>> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the cursor of the next page, or {@code null} if this is the last
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public static String encodeCursor(String lastKey) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(lastKey.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the key the cursor resumes after
+     * @throws IllegalArgumentException if {@code cursor} was not made by
+     * {@link #encodeCursor}
+     */
+    public static String decodeCursor(String cursor) {
+        return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+    }
+}
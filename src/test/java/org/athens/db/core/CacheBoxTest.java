@@ -1,8 +1,68 @@
 package org.athens.db.core;
 
+import org.athens.db.encryption.EncryptionStrategy;
+import org.athens.exceptions.CommitNotDurableException;
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class CacheBoxTest {
 
+    @TempDir
+    Path dir;
+
+    private CacheBox cacheBox;
+
+    @AfterEach
+    public void tearDown() {
+        if (cacheBox != null) {
+            cacheBox.getStorage().close();
+        }
+    }
+
+    // Passes data through until told to fail, standing in for a write that fails
+    private static class FailingEncryption implements EncryptionStrategy {
+        private volatile boolean failing;
+
+        @Override
+        public byte[] encrypt(byte[] data, byte[] key) {
+            if (failing) {
+                throw new IllegalStateException("encryption failed");
+            }
+            return data;
+        }
+
+        @Override
+        public byte[] decrypt(byte[] encryptedData, byte[] key) {
+            return encryptedData;
+        }
+    }
+
+    @Test
+    public void testWriteFailureAfterInstallStopsTheStore() {
+        FailingEncryption encryption = new FailingEncryption();
+        cacheBox = new CacheBox(dir.resolve("db.cbx").toString(), true, new byte[16], encryption, 100);
+        cacheBox.putAndCommit("before", CacheValue.of(0, "v"));
 
+        encryption.failing = true;
+        assertThrows(CommitNotDurableException.class, () -> cacheBox.putAndCommit("failed", CacheValue.of(0, "v")));
+        // Installed before the write failed, so it stays visible
+        assertEquals("v", cacheBox.getCommitted("failed").getValue());
 
+        encryption.failing = false;
+        assertThrows(IllegalStateException.class, () -> cacheBox.putAndCommit("after", CacheValue.of(0, "v")));
+        assertNull(cacheBox.getCommitted("after"));
 
+        cacheBox.beginTransaction();
+        cacheBox.put("after", CacheValue.of(0, "v"));
+        assertThrows(IllegalStateException.class, () -> cacheBox.commit());
+        cacheBox.rollback();
+        assertNull(cacheBox.getCommitted("after"));
+        assertThrows(IllegalStateException.class, () -> cacheBox.getStorage().checkpoint());
+    }
 }
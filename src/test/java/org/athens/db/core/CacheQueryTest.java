@@ -0,0 +1,56 @@
+package org.athens.db.core;
+
+import org.athens.utils.CacheQuery;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CacheQueryTest {
+
+    private static String prefix(String pattern) {
+        return new CacheQuery.Builder().withPattern(pattern).build().getLiteralPrefix();
+    }
+
+    @Test
+    public void testLiteralPrefixStopsAtFirstConstruct() {
+        assertEquals("user:", prefix("user:.*"));
+        assertEquals("user:", prefix("^user:[0-9]+"));
+        assertEquals("order", prefix("order(s)?"));
+        assertEquals("exact", prefix("exact"));
+        assertEquals("a", prefix("a$"));
+    }
+
+    @Test
+    public void testLiteralPrefixDropsOptionalCharacters() {
+        // The character before a quantifier may be missing from a match
+        assertEquals("use", prefix("user*"));
+        assertEquals("use", prefix("user?:x"));
+        assertEquals("use", prefix("user{0,2}"));
+        assertEquals("user", prefix("user+"));
+    }
+
+    @Test
+    public void testLiteralPrefixReadsEscapedCharacters() {
+        assertEquals("a.b", prefix("a\\.b.*"));
+        assertEquals("a*", prefix("a\\*"));
+        // Escaped letters are classes or quotes, not literals
+        assertEquals("a", prefix("a\\d+"));
+        assertEquals("a", prefix("a\\Qb\\E"));
+    }
+
+    @Test
+    public void testNoLiteralPrefix() {
+        assertEquals("", prefix(".*"));
+        // Any alternation gives up, even one inside a group
+        assertEquals("", prefix("user:1|admin:1"));
+        assertEquals("", prefix("order(s|z)"));
+        assertEquals("", prefix("[ab]c"));
+        assertEquals("", prefix("x?y"));
+        assertEquals("", new CacheQuery.Builder().withRange(1, 2).build().getLiteralPrefix());
+    }
+
+    @Test
+    public void testQueryNeedsACondition() {
+        assertThrows(IllegalArgumentException.class, () -> new CacheQuery.Builder().build());
+    }
+}
@@ -1,4 +1,114 @@
 package org.athens.db.core;
 
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class CacheValueTest {
+
+    @Test
+    public void testPrimitivesReadBackThroughEveryAccessor() {
+        CacheValue integer = CacheValue.of(1, Integer.MIN_VALUE);
+        assertEquals(CacheValue.Type.INTEGER, integer.getType());
+        assertEquals(Integer.MIN_VALUE, integer.intValue());
+        assertEquals(Integer.MIN_VALUE, (int) integer.asInteger());
+        assertEquals(Integer.MIN_VALUE, integer.getValue());
+        assertEquals((double) Integer.MIN_VALUE, integer.doubleValue());
+
+        CacheValue longValue = CacheValue.of(1, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, longValue.longValue());
+        assertEquals(Long.MAX_VALUE, longValue.getValue());
+        assertEquals(Long.toString(Long.MAX_VALUE), longValue.asString());
+
+        CacheValue doubleValue = CacheValue.of(1, -2.5);
+        assertEquals(-2.5, doubleValue.doubleValue());
+        assertEquals(-2, doubleValue.longValue());
+        assertEquals(-2.5, doubleValue.getValue());
+        assertTrue(doubleValue.isNumeric());
+
+        CacheValue bool = CacheValue.of(1, true);
+        assertTrue(bool.booleanValue());
+        assertEquals(Boolean.TRUE, bool.asBoolean());
+        assertFalse(bool.isNumeric());
+        assertFalse(CacheValue.of(1, false).booleanValue());
+    }
+
+    @Test
+    public void testDoubleBitsArePreserved() {
+        CacheValue negativeZero = CacheValue.of(1, -0.0);
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(negativeZero.doubleValue()));
+        assertTrue(Double.isNaN(CacheValue.of(1, Double.NaN).doubleValue()));
+        assertEquals(Double.NEGATIVE_INFINITY, CacheValue.of(1, Double.NEGATIVE_INFINITY).doubleValue());
+    }
+
+    @Test
+    public void testBoxedFactoriesAndConstructorAgree() {
+        assertEquals(CacheValue.Type.NULL, CacheValue.of(1, (Integer) null).getType());
+        assertEquals(CacheValue.Type.NULL, CacheValue.of(1, (Boolean) null).getType());
+        assertEquals(7, new CacheValue(1, CacheValue.Type.INTEGER, 7).intValue());
+        assertEquals(7L, new CacheValue(1, CacheValue.Type.LONG, 7).longValue());
+        assertEquals(0.5, new CacheValue(1, CacheValue.Type.DOUBLE, 0.5f).doubleValue());
+        assertTrue(new CacheValue(1, CacheValue.Type.BOOLEAN, true).booleanValue());
+        assertEquals("s", new CacheValue(1, CacheValue.Type.STRING, "s").getValue());
+    }
+
+    @Test
+    public void testWithVersionKeepsThePayload() {
+        CacheValue value = CacheValue.of(1, 3.25);
+        assertSame(value, value.withVersion(1));
+        CacheValue next = value.withVersion(2);
+        assertEquals(2, next.getVersion());
+        assertEquals(CacheValue.Type.DOUBLE, next.getType());
+        assertEquals(3.25, next.doubleValue());
+        CacheValue list = CacheValue.of(1, List.of("a", "b"));
+        assertSame(list.asList(), list.withVersion(5).asList());
+    }
+
+    @Test
+    public void testSerializedFormRoundTrips() {
+        List<CacheValue> values = List.of(
+                CacheValue.of(1, 42),
+                CacheValue.of(2, -7L),
+                CacheValue.of(3, 1e300),
+                CacheValue.of(4, false),
+                CacheValue.of(5, "a:b c"),
+                CacheValue.ofNull(6));
+        for (CacheValue value : values) {
+            CacheValue decoded = CacheValue.deserialize(value.serialize());
+            assertEquals(value.getType(), decoded.getType());
+            assertEquals(value.getVersion(), decoded.getVersion());
+            assertEquals(value.getValue(), decoded.getValue());
+        }
+    }
+
+    @Test
+    public void testJavaSerializationRoundTrips() throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(CacheValue.of(3, 9_000_000_000L));
+            out.writeObject(CacheValue.of(4, "text"));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            CacheValue number = (CacheValue) in.readObject();
+            assertEquals(9_000_000_000L, number.longValue());
+            assertEquals(3, number.getVersion());
+            assertEquals("text", ((CacheValue) in.readObject()).getValue());
+        }
+    }
+
+    @Test
+    public void testPrimitivesCostNoPayloadObject() {
+        long primitive = CacheValue.of(1, 123456789L).estimatedBytes();
+        assertEquals(primitive, CacheValue.of(1, 1.5).estimatedBytes());
+        assertEquals(primitive, CacheValue.of(1, true).estimatedBytes());
+        assertTrue(CacheValue.of(1, "123456789").estimatedBytes() > primitive);
+    }
 }
@@ -0,0 +1,112 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.EvictingMap;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvictionPolicyTest {
+
+    @Test
+    public void testFrequentlyReadKeysSurviveAScan() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            EvictingMap<String, Integer> map = policy.newMap(100);
+            for (int i = 0; i < 10; i++) {
+                map.put("hot" + i, i);
+            }
+            for (int i = 0; i < 1000; i++) {
+                map.put("scan" + i, i);
+                for (int h = 0; h < 10; h++) {
+                    map.get("hot" + h);
+                }
+            }
+            long hot = map.keySet().stream().filter(key -> key.startsWith("hot")).count();
+            assertTrue(map.size() <= 100, policy.name());
+            if (policy == EvictionPolicy.FIFO) {
+                // Reads do not count, so the oldest keys go first
+                assertEquals(0, hot, policy.name());
+            } else {
+                assertTrue(hot >= 9, policy + " kept " + hot + " hot keys");
+            }
+        }
+    }
+
+    @Test
+    public void testEvictedEntriesAreReportedOnce() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            Set<Integer> evicted = new HashSet<>();
+            Set<Integer> removed = new HashSet<>();
+            AtomicInteger duplicates = new AtomicInteger();
+            EvictingMap<Integer, Integer> map = policy.newMap(50, null, MemoryBudget.unlimited(), (key, value) -> {
+                assertEquals(key, value);
+                if (!evicted.add(key)) {
+                    duplicates.incrementAndGet();
+                }
+            });
+            for (int i = 0; i < 500; i++) {
+                map.put(i, i);
+                if (i % 7 == 0 && map.remove(i / 2) != null) {
+                    removed.add(i / 2);
+                }
+            }
+            assertEquals(0, duplicates.get(), policy.name());
+            assertEquals(50, map.size(), policy.name());
+            assertEquals(500, evicted.size() + removed.size() + map.size(), policy.name());
+            for (int key : map.keySet()) {
+                assertFalse(evicted.contains(key), policy + ": evicted key " + key + " still present");
+            }
+            // Every key is still present, was evicted, or was removed
+            for (int i = 0; i < 500; i++) {
+                assertTrue(map.containsKey(i) || evicted.contains(i) || removed.contains(i),
+                        policy + ": lost key " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testEvictionsRunOnlyOnTheWritingThread() throws InterruptedException {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            AtomicInteger elsewhere = new AtomicInteger();
+            AtomicInteger evictions = new AtomicInteger();
+            Thread[] writer = new Thread[1];
+            EvictingMap<Integer, Integer> map = policy.newMap(64, null, MemoryBudget.unlimited(), (key, value) -> {
+                evictions.incrementAndGet();
+                if (Thread.currentThread() != writer[0]) {
+                    elsewhere.incrementAndGet();
+                }
+            });
+            AtomicBoolean done = new AtomicBoolean();
+            writer[0] = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    map.put(i, i);
+                }
+                done.set(true);
+            });
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; r++) {
+                readers[r] = new Thread(() -> {
+                    while (!done.get()) {
+                        map.get(ThreadLocalRandom.current().nextInt(100_000));
+                    }
+                });
+                readers[r].start();
+            }
+            writer[0].start();
+            writer[0].join();
+            for (Thread reader : readers) {
+                reader.join();
+            }
+            assertTrue(evictions.get() > 0, policy.name());
+            assertEquals(0, elsewhere.get(), policy + ": evictions on reader threads");
+            assertTrue(map.size() <= 64, policy.name());
+        }
+    }
+}
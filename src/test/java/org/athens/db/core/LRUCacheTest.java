@@ -0,0 +1,109 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.MemoryBudget;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LRUCacheTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LRUCache<String, Integer> cache = new LRUCache<>(3);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        // Reads are buffered and applied by the next insertion
+        cache.get("a");
+        cache.put("d", 4);
+        assertFalse(cache.containsKey("b"));
+        assertEquals(List.of("a", "c", "d"), cache.keySet().stream().sorted().toList());
+
+        // Replacing a value counts as a use as well
+        cache.put("c", 30);
+        cache.put("e", 5);
+        assertFalse(cache.containsKey("a"));
+        assertEquals(30, (int) cache.get("c"));
+    }
+
+    @Test
+    public void testPeekDoesNotCountAsAUse() {
+        LRUCache<String, Integer> cache = new LRUCache<>(3);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        assertEquals(1, (int) cache.peek("a"));
+        cache.put("d", 4);
+        assertFalse(cache.containsKey("a"));
+        assertNull(cache.peek("a"));
+    }
+
+    @Test
+    public void testEvictedAndRemovedEntriesLeaveTheListAndBudget() {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        AtomicInteger evicted = new AtomicInteger();
+        LRUCache<String, Integer> cache = new LRUCache<>(2, (key, value) -> value, budget,
+                (key, value) -> evicted.addAndGet(value));
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 3);
+        assertEquals(1, evicted.get());
+        assertEquals(5, budget.getUsedBytes());
+        assertEquals(2, (int) cache.remove("b"));
+        assertFalse(cache.remove("c", 4));
+        assertEquals(3, budget.getUsedBytes());
+        cache.put("d", 4);
+        cache.put("e", 5);
+        // Only "c" was left to evict; removals are not reported
+        assertEquals(4, evicted.get());
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testConcurrentUseKeepsSizeAndBudgetConsistent() throws InterruptedException {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        LRUCache<Integer, Integer> cache = new LRUCache<>(100, (key, value) -> value, budget);
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 100_000; i++) {
+                    int key = random.nextInt(1000);
+                    switch (random.nextInt(4)) {
+                        case 0 -> cache.put(key, random.nextInt(1, 10));
+                        case 1 -> cache.remove(key);
+                        default -> cache.get(key);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(cache.size() <= 100, "size " + cache.size());
+        long weight = 0;
+        int entries = 0;
+        for (Map.Entry<Integer, Integer> entry : cache.entrySet()) {
+            assertEquals(entry.getValue(), cache.peek(entry.getKey()));
+            weight += entry.getValue();
+            entries++;
+        }
+        assertEquals(cache.size(), entries);
+        assertEquals(weight, budget.getUsedBytes());
+
+        // The list still holds exactly the entries: filling up evicts all of them
+        for (int key = 1000; key < 1100; key++) {
+            cache.put(key, 1);
+        }
+        assertEquals(100, cache.size());
+        assertEquals(100, budget.getUsedBytes());
+    }
+}
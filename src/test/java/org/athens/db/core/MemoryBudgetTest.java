@@ -0,0 +1,111 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.EvictingMap;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.eviction.MemoryBudget;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MemoryBudgetTest {
+
+    private static EvictingMap<String, Integer> newMap(EvictionPolicy policy, MemoryBudget budget) {
+        // Every entry weighs its value
+        return policy.newMap(1000, (key, value) -> value, budget);
+    }
+
+    private static MemoryBudget child(MemoryBudget parent) {
+        MemoryBudget budget = MemoryBudget.unlimited();
+        budget.setParent(parent);
+        return budget;
+    }
+
+    @Test
+    public void testMapsEvictByWeightBeforeReachingTheirSize() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            MemoryBudget budget = new MemoryBudget(1000);
+            EvictingMap<String, Integer> map = newMap(policy, budget);
+            for (int i = 0; i < 20; i++) {
+                map.put("k" + i, 100);
+            }
+            assertEquals(10, map.size(), policy.name());
+            assertEquals(1000, budget.getUsedBytes(), policy.name());
+
+            // Growing a value in place sheds others to make room
+            map.put("k19", 500);
+            assertEquals(500, (int) map.get("k19"), policy.name());
+            assertTrue(budget.getUsedBytes() <= 1000, policy.name());
+            assertEquals(6, map.size(), policy.name());
+
+            map.remove("k19");
+            assertEquals(100L * map.size(), budget.getUsedBytes(), policy.name());
+        }
+    }
+
+    @Test
+    public void testMapsShedOnlyTheirOwnExcessOfASharedParent() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            MemoryBudget global = new MemoryBudget(1000);
+            MemoryBudget budgetA = child(global);
+            MemoryBudget budgetB = child(global);
+            EvictingMap<String, Integer> a = newMap(policy, budgetA);
+            EvictingMap<String, Integer> b = newMap(policy, budgetB);
+            for (int i = 0; i < 9; i++) {
+                a.put("a" + i, 100);
+            }
+
+            // The excess is a's, which holds more than its half of the limit
+            b.put("b0", 100);
+            b.put("b1", 100);
+            assertEquals(2, b.size(), policy.name());
+            assertEquals(9, a.size(), policy.name());
+            assertEquals(1100, global.getUsedBytes(), policy.name());
+
+            a.put("a9", 100);
+            assertEquals(8, a.size(), policy.name());
+            assertEquals(100, (int) a.get("a9"), policy.name());
+            assertEquals(1000, global.getUsedBytes(), policy.name());
+            assertEquals(2, b.size(), policy.name());
+        }
+    }
+
+    @Test
+    public void testWrittenEntryIsKeptWhenTheParentIsFarOver() {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            MemoryBudget global = new MemoryBudget(1000);
+            EvictingMap<String, Integer> a = newMap(policy, child(global));
+            EvictingMap<String, Integer> b = newMap(policy, child(global));
+            b.put("b0", 400);
+            a.put("a0", 100);
+            a.put("a1", 100);
+
+            a.put("huge", 2000);
+            assertEquals(2000, (int) a.get("huge"), policy.name());
+            assertEquals(1, a.size(), policy.name());
+            assertEquals(400, (int) b.get("b0"), policy.name());
+
+            // Growing an entry in place keeps it as well
+            a.put("huge", 3000);
+            assertEquals(3000, (int) a.get("huge"), policy.name());
+        }
+    }
+
+    @Test
+    public void testDetachedBudgetNoLongerCounts() {
+        MemoryBudget global = new MemoryBudget(1000);
+        MemoryBudget budget = child(global);
+        budget.add(300);
+        assertEquals(300, global.getUsedBytes());
+        budget.setParent(null);
+        assertEquals(0, global.getUsedBytes());
+        assertEquals(300, budget.getUsedBytes());
+    }
+
+    @Test
+    public void testParseBytes() {
+        assertEquals(1048576, MemoryBudget.parseBytes("1048576"));
+        assertEquals(512 * 1024, MemoryBudget.parseBytes("512k"));
+        assertEquals(256L * 1024 * 1024, MemoryBudget.parseBytes(" 256M "));
+        assertEquals(2L * 1024 * 1024 * 1024, MemoryBudget.parseBytes("2g"));
+    }
+}
@@ -0,0 +1,305 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.db.storage.ColdTier;
+import org.athens.db.storage.RecordCodec;
+import org.athens.db.storage.ValueCodec;
+import org.athens.exceptions.ConcurrencyException;
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MvccStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private static final ValueCodec CODEC = new ValueCodec() {
+        @Override
+        public byte[] encode(CacheValue value, boolean encrypted) {
+            return RecordCodec.encodeValue(value);
+        }
+
+        @Override
+        public CacheValue decode(ByteBuffer payload, boolean encrypted) {
+            return RecordCodec.decodeValue(payload);
+        }
+
+        @Override
+        public CacheValue decodeLegacy(String data, boolean encrypted) {
+            return CacheValue.deserialize(data);
+        }
+    };
+
+    private static void put(MvccStore store, String key, String value) {
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            store.commit(snapshot, Map.of(key, CacheValue.of(0, value)), List.of());
+        }
+    }
+
+    private static void delete(MvccStore store, String key) {
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            store.commit(snapshot, Map.of(), List.of(key));
+        }
+    }
+
+    @Test
+    public void testSnapshotSeesStateAsOfOpening() {
+        MvccStore store = new MvccStore(100);
+        put(store, "a", "v1");
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            put(store, "a", "v2");
+            put(store, "b", "new");
+            delete(store, "a");
+
+            assertEquals("v1", snapshot.get("a").getValue());
+            assertNull(snapshot.get("b"));
+            assertNull(store.get("a"));
+            assertEquals("new", store.get("b").getValue());
+        }
+    }
+
+    @Test
+    public void testCommitStampsVersions() {
+        MvccStore store = new MvccStore(100);
+        put(store, "a", "v1");
+        put(store, "a", "v2");
+        assertEquals(2, store.get("a").getVersion());
+    }
+
+    @Test
+    public void testFirstCommitterWins() {
+        MvccStore store = new MvccStore(100);
+        put(store, "a", "v1");
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            put(store, "a", "other");
+            assertThrows(ConcurrencyException.class,
+                    () -> store.commit(snapshot, Map.of("a", CacheValue.of(0, "mine")), List.of()));
+            assertThrows(ConcurrencyException.class, () -> store.validate(snapshot, List.of(), List.of("a")));
+            // Keys nobody else wrote still commit
+            store.validate(snapshot, List.of("b"), List.of());
+        }
+        assertEquals("other", store.get("a").getValue());
+    }
+
+    @Test
+    public void testPreparedCommitIsInvisibleUntilInstalled() {
+        MvccStore store = new MvccStore(100);
+        put(store, "a", "v1");
+        MvccStore.Prepared prepared;
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            prepared = store.prepare(snapshot, Map.of("a", CacheValue.of(0, "v2"), "b", CacheValue.of(0, "new")),
+                    List.of());
+        }
+        assertEquals(2, prepared.puts().get("a").getVersion());
+        assertEquals(1, prepared.created());
+        assertEquals("v1", store.get("a").getValue());
+        assertNull(store.get("b"));
+        assertEquals(1, store.getLiveKeyCount());
+
+        try (MvccStore.Snapshot before = store.openSnapshot()) {
+            store.install(prepared);
+            assertEquals("v1", before.get("a").getValue());
+            assertNull(before.get("b"));
+        }
+        assertEquals("v2", store.get("a").getValue());
+        assertEquals("new", store.get("b").getValue());
+        assertEquals(2, store.getLiveKeyCount());
+    }
+
+    @Test
+    public void testGarbageCollectionKeepsVersionsOfOpenSnapshots() {
+        MvccStore store = new MvccStore(100);
+        put(store, "a", "v1");
+        MvccStore.Snapshot snapshot = store.openSnapshot();
+        for (int i = 2; i <= 10; i++) {
+            put(store, "a", "v" + i);
+        }
+        assertEquals("v1", snapshot.get("a").getValue());
+        snapshot.close();
+
+        delete(store, "a");
+        put(store, "b", "v1");
+        // Nothing can see the delete's predecessor any more, so the key is dropped
+        assertEquals(1, store.size());
+        assertNull(store.get("a"));
+    }
+
+    @Test
+    public void testLiveKeyCountFollowsCommitsAndRecovery() {
+        MvccStore store = new MvccStore(100);
+        store.load("a", CacheValue.of(1, "v1"));
+        store.load("a", CacheValue.of(2, "v2"));
+        store.load("b", CacheValue.of(1, "v1"));
+        store.load("b", null);
+        store.load("c", null);
+        assertEquals(1, store.getLiveKeyCount());
+
+        put(store, "a", "v3");
+        put(store, "b", "v1");
+        put(store, "c", "v1");
+        assertEquals(3, store.getLiveKeyCount());
+
+        delete(store, "a");
+        delete(store, "b");
+        assertEquals(1, store.getLiveKeyCount());
+    }
+
+    @Test
+    public void testLatestReadsNeverMissACommittedKey() throws InterruptedException {
+        assertLatestReadsNeverMiss(new MvccStore(100));
+    }
+
+    @Test
+    public void testLatestReadsNeverMissACommittedKeyOffHeap() throws InterruptedException {
+        assertLatestReadsNeverMiss(new MvccStore(100, EvictionPolicy.LRU, null, new OffHeapValueStore()));
+    }
+
+    // Commits reclaim the versions that latest reads started from while they run
+    private static void assertLatestReadsNeverMiss(MvccStore store) throws InterruptedException {
+        put(store, "key", "0");
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger misses = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= 200_000; i++) {
+                put(store, "key", Integer.toString(i));
+            }
+            done.set(true);
+        });
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            boolean peek = r % 2 == 0;
+            readers[r] = new Thread(() -> {
+                while (!done.get()) {
+                    CacheValue value = peek ? store.peek("key") : store.get("key");
+                    if (value == null || value.getValue() == null) {
+                        misses.incrementAndGet();
+                    }
+                }
+            });
+        }
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, misses.get(), "reads that found no value");
+        assertEquals("200000", store.get("key").getValue());
+    }
+
+    @Test
+    public void testSpilledKeysReadBackAndStayWritable() {
+        ColdTier coldTier = new ColdTier(dir.resolve("spill.cbx").toString(), CODEC, () -> false, 4);
+        MvccStore store = new MvccStore(3, EvictionPolicy.LRU, coldTier);
+        for (int i = 0; i < 20; i++) {
+            put(store, "k" + i, "v" + i);
+        }
+        assertEquals(3, store.size());
+        assertEquals(20, store.getLiveKeyCount());
+        assertEquals("v0", coldTier.get("k0").getValue());
+        assertEquals(20, store.toMap().size());
+
+        // Reading a spilled key brings it back, spilling another
+        assertEquals("v0", store.get("k0").getValue());
+        assertTrue(store.isReadableFromMemory("k0"));
+        assertEquals(3, store.size());
+
+        put(store, "k1", "updated");
+        assertEquals("updated", store.get("k1").getValue());
+        assertEquals(2, store.get("k1").getVersion());
+        delete(store, "k2");
+        for (int i = 3; i < 10; i++) {
+            store.get("k" + i);
+        }
+        assertNull(store.get("k2"));
+        assertNull(store.peek("k2"));
+        assertEquals(19, store.getLiveKeyCount());
+        Map<String, CacheValue> state = store.toMap();
+        assertEquals(19, state.size());
+        assertEquals("updated", state.get("k1").getValue());
+        coldTier.close();
+    }
+
+    @Test
+    public void testWriteSpilledSinceSnapshotConflicts() {
+        ColdTier coldTier = new ColdTier(dir.resolve("conflict.cbx").toString(), CODEC, () -> false, 4);
+        MvccStore store = new MvccStore(2, EvictionPolicy.LRU, coldTier);
+        put(store, "a", "v1");
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            put(store, "a", "v2");
+            put(store, "b", "v1");
+            put(store, "c", "v1");
+            assertFalse(store.isReadableFromMemory("a"));
+            // Which version was spilled is no longer known, so the write must not win
+            assertThrows(ConcurrencyException.class,
+                    () -> store.commit(snapshot, Map.of("a", CacheValue.of(0, "mine")), List.of()));
+        }
+        assertEquals("v2", store.get("a").getValue());
+        coldTier.close();
+    }
+
+    @Test
+    public void testReadsNeverMissWhileOffHeapChainsSpill() throws InterruptedException {
+        for (EvictionPolicy policy : EvictionPolicy.values()) {
+            ColdTier coldTier = new ColdTier(dir.resolve(policy + ".cbx").toString(), CODEC, () -> false, 16);
+            MvccStore store = new MvccStore(20, policy, coldTier, new OffHeapValueStore());
+            int keys = 200;
+            for (int k = 0; k < keys; k++) {
+                put(store, "key" + k, "key" + k + ":0");
+            }
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicInteger misses = new AtomicInteger();
+            Thread writer = new Thread(() -> {
+                for (int i = 1; i <= 5_000; i++) {
+                    String key = "key" + ThreadLocalRandom.current().nextInt(keys);
+                    put(store, key, key + ":" + i);
+                }
+                done.set(true);
+            });
+            Thread[] readers = new Thread[4];
+            for (int r = 0; r < readers.length; r++) {
+                boolean peek = r % 2 == 0;
+                readers[r] = new Thread(() -> {
+                    while (!done.get()) {
+                        String key = "key" + ThreadLocalRandom.current().nextInt(keys);
+                        CacheValue value = peek ? store.peek(key) : store.get(key);
+                        if (value == null || !((String) value.getValue()).startsWith(key + ":")) {
+                            misses.incrementAndGet();
+                        }
+                    }
+                });
+            }
+            writer.start();
+            for (Thread reader : readers) {
+                reader.start();
+            }
+            writer.join(60_000);
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join(10_000);
+                assertFalse(reader.isAlive(), policy + ": reader stuck");
+            }
+            assertFalse(writer.isAlive(), policy + ": writer stuck");
+            assertEquals(0, misses.get(), policy + ": reads that found no or another key's value");
+            assertTrue(store.size() <= 20, policy.name());
+            for (int k = 0; k < keys; k++) {
+                assertNotNull(store.get("key" + k), policy.name());
+            }
+            coldTier.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.athens.db.core;
+
+import org.athens.network.NioServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NioServerTest {
+
+    // PING runs on the reactor; PUT may block, so it goes to a worker even when,
+    // short of arguments, it only replies with an error
+    private static final String PING = "*1\r\n$4\r\nPING\r\n";
+    private static final String PUT = "*1\r\n$3\r\nPUT\r\n";
+    private static final String PONG = "+PONG";
+    private static final String PUT_ERROR = "-PUT requires type, key, and value";
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final AtomicInteger dispatched = new AtomicInteger();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private NioServer server;
+
+    private NioServer start(int reactors) throws IOException {
+        server = new NioServer(0, 50, reactors, task -> {
+            dispatched.incrementAndGet();
+            pool.execute(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                task.run();
+            });
+        });
+        server.start();
+        return server;
+    }
+
+    @AfterEach
+    public void stop() throws IOException {
+        gate.countDown();
+        if (server != null) {
+            server.close();
+        }
+        pool.shutdownNow();
+    }
+
+    private static final class Client implements AutoCloseable {
+        private final Socket socket;
+        private final OutputStream out;
+        private final BufferedReader in;
+
+        Client(NioServer server) throws IOException {
+            socket = new Socket("localhost", server.getPort());
+            socket.setSoTimeout(10_000);
+            out = socket.getOutputStream();
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        void send(String requests) throws IOException {
+            out.write(requests.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        }
+
+        String reply() throws IOException {
+            return in.readLine();
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testOnlyCommandsThatMayBlockGoToWorkers() throws IOException {
+        start(1);
+        try (Client client = new Client(server)) {
+            client.send(PING);
+            assertEquals(PONG, client.reply());
+            assertEquals(0, dispatched.get());
+            client.send(PUT);
+            assertEquals(PUT_ERROR, client.reply());
+            assertEquals(1, dispatched.get());
+        }
+    }
+
+    @Test
+    public void testRepliesFollowRequestOrderAcrossWorkers() throws IOException {
+        start(2);
+        try (Client client = new Client(server)) {
+            StringBuilder requests = new StringBuilder();
+            for (int i = 0; i < 50; i++) {
+                requests.append(i % 3 == 0 ? PUT : PING);
+            }
+            client.send(requests.toString());
+            for (int i = 0; i < 50; i++) {
+                assertEquals(i % 3 == 0 ? PUT_ERROR : PONG, client.reply(), "reply " + i);
+            }
+            assertEquals(17, dispatched.get());
+        }
+    }
+
+    @Test
+    public void testBlockedCommandHoldsBackOnlyItsOwnConnection() throws Exception {
+        start(1);
+        gate = new CountDownLatch(1);
+        try (Client blocked = new Client(server); Client other = new Client(server)) {
+            blocked.send(PUT + PING);
+            // The reactor keeps serving other connections while a worker holds the command
+            for (int i = 0; i < 10; i++) {
+                other.send(PING);
+                assertEquals(PONG, other.reply());
+            }
+            assertFalse(blocked.in.ready(), "the PING behind the blocked PUT must wait for it");
+            gate.countDown();
+            assertEquals(PUT_ERROR, blocked.reply());
+            assertEquals(PONG, blocked.reply());
+        }
+        assertEquals(1, dispatched.get());
+    }
+
+    @Test
+    public void testBadRequestClosesOnlyThatConnection() throws IOException {
+        start(1);
+        try (Client bad = new Client(server); Client good = new Client(server)) {
+            bad.send("hello\r\n");
+            assertTrue(bad.reply().startsWith("-"));
+            assertNull(bad.reply());
+            good.send(PING);
+            assertEquals(PONG, good.reply());
+        }
+    }
+}
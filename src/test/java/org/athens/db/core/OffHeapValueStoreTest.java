@@ -0,0 +1,138 @@
+package org.athens.db.core;
+
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.db.storage.RecordCodec;
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OffHeapValueStoreTest {
+
+    @Test
+    public void testValuesRoundTrip() {
+        OffHeapValueStore store = new OffHeapValueStore();
+        String large = "x".repeat((int) OffHeapValueStore.SLAB_SIZE);
+        List<CacheValue> values = List.of(
+                CacheValue.of(1, "small"),
+                CacheValue.of(2, 42L),
+                CacheValue.of(3, 2.5),
+                CacheValue.of(4, "y".repeat(1000)),
+                CacheValue.of(5, large),
+                CacheValue.ofNull(6));
+        for (CacheValue value : values) {
+            long handle = store.store(value);
+            assertNotEquals(0, handle);
+            CacheValue read = store.read(handle);
+            assertEquals(value.getType(), read.getType());
+            assertEquals(value.getVersion(), read.getVersion());
+            assertEquals(value.getValue(), read.getValue());
+            assertTrue(store.capacity(handle) >= RecordCodec.encodeValue(value).length);
+        }
+        assertTrue(store.getReservedBytes() >= store.getUsedBytes());
+        assertTrue(store.getUsedBytes() > OffHeapValueStore.SLAB_SIZE);
+    }
+
+    @Test
+    public void testFreedHandlesReadNullEvenOnceTheSlotIsReused() {
+        OffHeapValueStore store = new OffHeapValueStore();
+        long first = store.store(CacheValue.of(1, "first"));
+        long used = store.getUsedBytes();
+        store.free(first);
+        assertNull(store.read(first));
+        assertEquals(0, store.getUsedBytes());
+
+        long second = store.store(CacheValue.of(2, "other"));
+        assertEquals(used, store.getUsedBytes());
+        assertNull(store.read(first));
+        assertEquals("other", store.read(second).getValue());
+        // Freeing a stale handle again must not free the slot's new value
+        store.free(first);
+        assertEquals("other", store.read(second).getValue());
+        assertEquals(used, store.getUsedBytes());
+    }
+
+    @Test
+    public void testFreeingLargeValuesReleasesTheirMemory() {
+        OffHeapValueStore store = new OffHeapValueStore();
+        long handle = store.store(CacheValue.of(1, "z".repeat((int) OffHeapValueStore.SLAB_SIZE)));
+        long reserved = store.getReservedBytes();
+        assertTrue(reserved > OffHeapValueStore.SLAB_SIZE);
+        store.free(handle);
+        assertNull(store.read(handle));
+        assertEquals(0, store.getReservedBytes());
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testReadsRacingFreesNeverSeeAnotherValue() throws InterruptedException {
+        OffHeapValueStore store = new OffHeapValueStore();
+        int slots = 64;
+        AtomicLongArray handles = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++) {
+            handles.set(i, store.store(CacheValue.of(1, i + ":0")));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger wrong = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            for (int n = 1; n <= 200_000; n++) {
+                int i = ThreadLocalRandom.current().nextInt(slots);
+                long old = handles.get(i);
+                handles.set(i, store.store(CacheValue.of(1, i + ":" + n)));
+                store.free(old);
+            }
+            done.set(true);
+        });
+        Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                while (!done.get()) {
+                    int i = ThreadLocalRandom.current().nextInt(slots);
+                    CacheValue value = store.read(handles.get(i));
+                    if (value != null && !((String) value.getValue()).startsWith(i + ":")) {
+                        wrong.incrementAndGet();
+                    }
+                }
+            });
+            readers[r].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, wrong.get(), "reads that returned another slot's value");
+    }
+
+    @Test
+    public void testStoreFreesValuesItNoLongerNeeds() {
+        OffHeapValueStore offHeap = new OffHeapValueStore();
+        MvccStore store = new MvccStore(1000, EvictionPolicy.LRU, null, offHeap);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < 100; i++) {
+                try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+                    store.commit(snapshot, Map.of("k" + i, CacheValue.of(0, "v" + round)), List.of());
+                }
+            }
+        }
+        assertEquals("v9", store.get("k5").getValue());
+        long live = offHeap.getUsedBytes();
+        for (int i = 0; i < 100; i++) {
+            try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+                store.commit(snapshot, Map.of(), List.of("k" + i));
+            }
+        }
+        try (MvccStore.Snapshot snapshot = store.openSnapshot()) {
+            store.commit(snapshot, Map.of("last", CacheValue.of(0, "v")), List.of());
+        }
+        assertTrue(offHeap.getUsedBytes() < live / 10, offHeap.getUsedBytes() + " bytes still used of " + live);
+    }
+}
@@ -0,0 +1,211 @@
+package org.athens.db.core;
+
+import org.athens.db.encryption.XOREncryptionStrategy;
+import org.athens.db.storage.RecordCodec;
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RecordCodecTest {
+
+    private static ByteBuffer putThenCommit() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writePut(out, "key", RecordCodec.encodeValue(CacheValue.of(1, "value")));
+        RecordCodec.writeCommit(out, 7);
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    // Frames a body the way RecordCodec does, for records it no longer writes
+    private static byte[] frame(byte[] body) {
+        CRC32C crc = new CRC32C();
+        crc.update(body);
+        return ByteBuffer.allocate(RecordCodec.FRAME_OVERHEAD + body.length)
+                .putInt(body.length)
+                .putInt((int) crc.getValue())
+                .put(body)
+                .array();
+    }
+
+    @Test
+    public void testVarIntEdges() {
+        int[] values = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for (int value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RecordCodec.writeVarInt(out, value);
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(value, RecordCodec.readVarInt(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writeVarInt(out, 127);
+        assertEquals(1, out.size());
+        out.reset();
+        RecordCodec.writeVarInt(out, 128);
+        assertEquals(2, out.size());
+        out.reset();
+        RecordCodec.writeVarInt(out, -1);
+        assertEquals(5, out.size());
+    }
+
+    @Test
+    public void testVarLongEdges() {
+        long[] values = {0, 1, 127, 128, Integer.MAX_VALUE + 1L, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for (long value : values) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            RecordCodec.writeVarLong(out, value);
+            ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+            assertEquals(value, RecordCodec.readVarLong(buffer));
+            assertFalse(buffer.hasRemaining());
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writeVarLong(out, -1);
+        assertEquals(10, out.size());
+    }
+
+    @Test
+    public void testMalformedVarIntIsRejected() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0});
+        assertThrows(IllegalArgumentException.class, () -> RecordCodec.readVarInt(buffer));
+    }
+
+    @Test
+    public void testValuesRoundTrip() {
+        List<CacheValue> values = List.of(
+                CacheValue.of(1, Integer.MIN_VALUE),
+                CacheValue.of(2, Integer.MAX_VALUE),
+                CacheValue.of(3, -1),
+                CacheValue.of(4, 0),
+                CacheValue.of(5, Long.MIN_VALUE),
+                CacheValue.of(6, Long.MAX_VALUE),
+                CacheValue.of(7, -0.0),
+                CacheValue.of(8, Double.NaN),
+                CacheValue.of(9, "héllo"),
+                CacheValue.of(10, true),
+                CacheValue.of(11, List.of("a", "b")),
+                CacheValue.ofNull(12));
+        for (CacheValue value : values) {
+            CacheValue decoded = RecordCodec.decodeValue(ByteBuffer.wrap(RecordCodec.encodeValue(value)));
+            assertEquals(value.getType(), decoded.getType());
+            assertEquals(value.getVersion(), decoded.getVersion());
+            assertEquals(value.getValue(), decoded.getValue());
+        }
+        // ZigZag keeps small negative numbers as short as small positive ones
+        assertEquals(3, RecordCodec.encodeValue(CacheValue.of(1, -1)).length);
+        double negativeZero = RecordCodec.decodeValue(
+                ByteBuffer.wrap(RecordCodec.encodeValue(CacheValue.of(1, -0.0)))).doubleValue();
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(negativeZero));
+    }
+
+    @Test
+    public void testReadsCompleteRecords() {
+        ByteBuffer buffer = putThenCommit();
+        RecordCodec.Record put = RecordCodec.read(buffer);
+        assertEquals(RecordCodec.OP_PUT, put.getOp());
+        assertEquals("key", put.getKey());
+        assertEquals("value", RecordCodec.decodeValue(put.getPayload()).getValue());
+        RecordCodec.Record commit = RecordCodec.read(buffer);
+        assertEquals(RecordCodec.OP_COMMIT, commit.getOp());
+        assertEquals(7, RecordCodec.commitLsn(commit));
+        assertNull(RecordCodec.read(buffer));
+    }
+
+    @Test
+    public void testTornFrameEndsReading() {
+        ByteBuffer whole = putThenCommit();
+        for (int cut = 1; cut < RecordCodec.FRAME_OVERHEAD + 4; cut++) {
+            ByteBuffer buffer = whole.duplicate().limit(whole.limit() - cut);
+            assertNotNull(RecordCodec.read(buffer));
+            int position = buffer.position();
+            assertNull(RecordCodec.read(buffer));
+            assertEquals(position, buffer.position(), "a torn frame must leave the buffer untouched");
+        }
+    }
+
+    @Test
+    public void testCorruptFrameEndsReading() {
+        byte[] bytes = putThenCommit().array();
+        // The last byte of the put's body
+        int corrupt = RecordCodec.FRAME_OVERHEAD + ByteBuffer.wrap(bytes).getInt(0) - 1;
+        bytes[corrupt] ^= 0x01;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertNull(RecordCodec.read(buffer));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void testImpossibleLengthsEndReading() {
+        for (int length : new int[]{0, -1, RecordCodec.MAX_RECORD_SIZE + 1}) {
+            ByteBuffer buffer = ByteBuffer.allocate(64).putInt(0, length);
+            assertNull(RecordCodec.read(buffer));
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void testCommitRecordsWithoutLsnReadAsLsnZero() {
+        ByteBuffer legacy = ByteBuffer.wrap(frame(new byte[]{RecordCodec.OP_COMMIT, 0}));
+        RecordCodec.Record record = RecordCodec.read(legacy);
+        assertEquals(RecordCodec.OP_COMMIT, record.getOp());
+        assertEquals(0, RecordCodec.commitLsn(record));
+        assertEquals(0, RecordCodec.commitTxId(record));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writeCommit(out, 0);
+        record = RecordCodec.read(ByteBuffer.wrap(out.toByteArray()));
+        assertEquals(0, RecordCodec.commitLsn(record));
+        assertEquals(0, RecordCodec.commitTxId(record));
+    }
+
+    @Test
+    public void testCommitRecordsCarryTransactionIds() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writeCommit(out, 5);
+        RecordCodec.writeCommit(out, Long.MAX_VALUE, 42);
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+        RecordCodec.Record alone = RecordCodec.read(buffer);
+        assertEquals(5, RecordCodec.commitLsn(alone));
+        assertEquals(0, RecordCodec.commitTxId(alone));
+        RecordCodec.Record spanning = RecordCodec.read(buffer);
+        assertEquals(Long.MAX_VALUE, RecordCodec.commitLsn(spanning));
+        assertEquals(42, RecordCodec.commitTxId(spanning));
+        // Reading the ids does not consume the payload
+        assertEquals(Long.MAX_VALUE, RecordCodec.commitLsn(spanning));
+    }
+
+    @Test
+    public void testEncryptedPayloadRoundTrips() {
+        XOREncryptionStrategy encryption = new XOREncryptionStrategy();
+        byte[] key = "secret".getBytes(StandardCharsets.UTF_8);
+        CacheValue value = CacheValue.of(3, "classified");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(RecordCodec.header(true));
+        byte[] encrypted = encryption.encrypt(RecordCodec.encodeValue(value), key);
+        RecordCodec.writePut(out, "key", RecordCodec.encryptedPayload(encrypted));
+        ByteBuffer buffer = ByteBuffer.wrap(out.toByteArray());
+
+        assertEquals(RecordCodec.FLAG_ENCRYPTED, RecordCodec.readHeader(buffer) & RecordCodec.FLAG_ENCRYPTED);
+        RecordCodec.Record record = RecordCodec.read(buffer);
+        byte[] payload = RecordCodec.readEncryptedPayload(record.getPayload());
+        assertArrayEquals(encrypted, payload);
+        CacheValue decoded = RecordCodec.decodeValue(ByteBuffer.wrap(encryption.decrypt(payload, key)));
+        assertEquals(3, decoded.getVersion());
+        assertEquals("classified", decoded.getValue());
+    }
+
+    @Test
+    public void testForeignHeaderIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> RecordCodec.readHeader(ByteBuffer.allocate(RecordCodec.HEADER_SIZE)));
+        ByteBuffer newer = ByteBuffer.wrap(RecordCodec.header(false));
+        newer.put(4, (byte) (RecordCodec.FORMAT_VERSION + 1));
+        assertThrows(IllegalArgumentException.class, () -> RecordCodec.readHeader(newer));
+    }
+}
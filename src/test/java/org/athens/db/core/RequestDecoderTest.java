@@ -0,0 +1,113 @@
+package org.athens.db.core;
+
+import org.athens.network.RequestDecoder;
+import org.athens.network.RequestParser;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RequestDecoderTest {
+
+    private static String request(String... parts) {
+        StringBuilder request = new StringBuilder("*").append(parts.length).append("\r\n");
+        for (String part : parts) {
+            request.append(RequestParser.encodeBulkString(part));
+        }
+        return request.toString();
+    }
+
+    private static InputStream stream(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Hands out one byte per read, however much was asked for
+    private static InputStream trickle(String data) {
+        return new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+
+            @Override
+            public synchronized int available() {
+                return Math.min(super.available(), 1);
+            }
+        };
+    }
+
+    @Test
+    public void testPipelinedRequestsArePolledWithoutWaiting() throws IOException {
+        RequestDecoder decoder = new RequestDecoder(stream(
+                request("PING") + request("GET", "a") + request("PUT", "string", "k", "v")));
+        assertEquals(List.of("PING"), decoder.read());
+        assertEquals(List.of("GET", "a"), decoder.poll());
+        assertEquals(List.of("PUT", "string", "k", "v"), decoder.poll());
+        assertNull(decoder.poll());
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void testPollLeavesAPartialRequestForTheNextRead() throws Exception {
+        PipedOutputStream client = new PipedOutputStream();
+        RequestDecoder decoder = new RequestDecoder(new PipedInputStream(client, 1024));
+        String second = request("GET", "key");
+        client.write((request("PING") + second.substring(0, 9)).getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of("PING"), decoder.read());
+        assertNull(decoder.poll());
+
+        client.write(second.substring(9).getBytes(StandardCharsets.UTF_8));
+        assertEquals(List.of("GET", "key"), decoder.read());
+        client.close();
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void testRequestsArrivingByteByByte() throws IOException {
+        RequestDecoder decoder = new RequestDecoder(trickle(request("PUT", "string", "é", "ü") + request("PING")));
+        assertEquals(List.of("PUT", "string", "é", "ü"), decoder.read());
+        assertEquals(List.of("PING"), decoder.read());
+        assertNull(decoder.read());
+    }
+
+    @Test
+    public void testRequestsLargerThanTheBuffer() throws IOException {
+        String large = "x".repeat(100_000);
+        RequestDecoder decoder = new RequestDecoder(stream(request("PUT", "string", "k", large) + request("PING")));
+        assertEquals(large, decoder.read().get(3));
+        assertEquals(List.of("PING"), decoder.poll());
+    }
+
+    @Test
+    public void testStreamEndingWithinARequestFails() throws IOException {
+        String whole = request("GET", "key");
+        RequestDecoder decoder = new RequestDecoder(stream(request("PING") + whole.substring(0, whole.length() - 3)));
+        assertEquals(List.of("PING"), decoder.read());
+        assertThrows(IOException.class, decoder::read);
+        assertThrows(IOException.class, () -> new RequestDecoder(stream("hello\r\n")).read());
+    }
+
+    @Test
+    public void testParserLeavesIncompleteRequestsInPlace() throws IOException {
+        byte[] bytes = (request("GET", "key") + request("PING")).getBytes(StandardCharsets.UTF_8);
+        int first = request("GET", "key").length();
+        for (int cut = 0; cut < first; cut++) {
+            ByteBuffer partial = ByteBuffer.wrap(bytes, 0, cut);
+            assertNull(RequestParser.parseRequest(partial), "cut at " + cut);
+            assertEquals(0, partial.position());
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        assertEquals(List.of("GET", "key"), RequestParser.parseRequest(buffer));
+        assertEquals(first, buffer.position());
+        assertEquals(List.of("PING"), RequestParser.parseRequest(buffer));
+        assertFalse(buffer.hasRemaining());
+    }
+}
@@ -1,4 +1,266 @@
 package org.athens.db.core;
 
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.shrading.ShardedCacheBox;
+import org.athens.db.storage.CommitDecisionLog;
+import org.athens.exceptions.ConcurrencyException;
+import org.athens.utils.CacheQuery;
+import org.athens.utils.CacheValue;
+import org.athens.utils.SearchPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class ShradedCacheBoxTest {
+
+    @TempDir
+    Path dir;
+
+    private static void close(ShardedCacheBox store) {
+        for (CacheBox shard : store.getShards().values()) {
+            shard.getStorage().close();
+        }
+    }
+
+    private CacheBox open(String name, CommitDecisionLog decisions) {
+        return new CacheBox(dir.resolve(name).toString(), false, null, null, 100, EvictionPolicy.LRU, false,
+                decisions::isCommitted);
+    }
+
+    @Test
+    public void testTransactionSpanningShardsCommitsEverywhere() {
+        String prefix = dir.resolve("shard").toString();
+        ShardedCacheBox store = new ShardedCacheBox(4, prefix, null, false, null, 100);
+        store.beginTransaction();
+        for (int i = 0; i < 20; i++) {
+            store.put("k" + i, CacheValue.of(0, "v" + i));
+        }
+        store.commit();
+        close(store);
+
+        ShardedCacheBox reopened = new ShardedCacheBox(4, prefix, null, false, null, 100);
+        for (int i = 0; i < 20; i++) {
+            assertEquals("v" + i, reopened.getCommitted("k" + i).getValue());
+        }
+        close(reopened);
+    }
+
+    @Test
+    public void testConflictOnOneShardCommitsNothing() {
+        ShardedCacheBox store = new ShardedCacheBox(4, dir.resolve("shard").toString(), null, false, null, 100);
+        store.beginTransaction();
+        for (int i = 0; i < 20; i++) {
+            store.put("k" + i, CacheValue.of(0, "v" + i));
+        }
+        store.putAndCommit("k7", CacheValue.of(0, "other"));
+
+        assertThrows(ConcurrencyException.class, store::commit);
+        for (int i = 0; i < 20; i++) {
+            if (i != 7) {
+                assertNull(store.getCommitted("k" + i));
+            }
+        }
+        assertEquals("other", store.getCommitted("k7").getValue());
+        close(store);
+    }
+
+    @Test
+    public void testConcurrentTransactionsSpanningShardsStayAtomic() throws InterruptedException {
+        ShardedCacheBox store = new ShardedCacheBox(4, dir.resolve("shard").toString(), null, false, null, 1000);
+        AtomicInteger committed = new AtomicInteger();
+        Thread[] writers = new Thread[4];
+        for (int w = 0; w < writers.length; w++) {
+            int id = w;
+            writers[w] = new Thread(() -> {
+                for (int round = 0; round < 200; round++) {
+                    store.beginTransaction();
+                    // Half of the writers touch the keys in reverse order
+                    for (int i = 0; i < 10; i++) {
+                        store.put("k" + (id % 2 == 0 ? i : 9 - i), CacheValue.of(0, id));
+                    }
+                    try {
+                        store.commit();
+                        committed.incrementAndGet();
+                    } catch (ConcurrencyException e) {
+                        // Lost to another writer; nothing of it may show
+                    }
+                }
+            });
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        assertTrue(committed.get() > 0);
+        Object owner = store.getCommitted("k0").getValue();
+        for (int i = 1; i < 10; i++) {
+            assertEquals(owner, store.getCommitted("k" + i).getValue());
+        }
+        // Every shard's commit lock was released, whichever way each commit ended
+        store.beginTransaction();
+        for (int i = 0; i < 10; i++) {
+            store.put("k" + i, CacheValue.of(0, 99));
+        }
+        store.commit();
+        assertEquals(99, store.getCommitted("k9").intValue());
+        close(store);
+    }
+
+    @Test
+    public void testRecoveryDiscardsPreparedTransactionWithoutDecision() throws IOException {
+        assertRecoveredAfterPrepare(false);
+    }
+
+    @Test
+    public void testRecoveryCompletesPreparedTransactionWithDecision() throws IOException {
+        assertRecoveredAfterPrepare(true);
+    }
+
+    @Test
+    public void testRecoveryKeepsTransactionIdsAboveThoseOnDisk() throws IOException {
+        String prefix = dir.resolve("shard").toString();
+        // As if last_txid.txt had been lost: the ids on disk are ahead of the allocator
+        long prepared = TxIdManager.getInstance().getNextTxId() + 3 * TxIdManager.BLOCK_SIZE;
+        long decided = prepared + 3 * TxIdManager.BLOCK_SIZE;
+        CommitDecisionLog decisions = new CommitDecisionLog(prefix + ".decisions", dbFile -> 0);
+        decisions.commit(decided, Map.of(prefix + "9.cbx", 1L));
+        decisions.close();
+        CacheBox shard = open("shard0.cbx", decisions);
+        shard.beginTransaction();
+        shard.put("x", CacheValue.of(0, "x"));
+        shard.prepareCommit(prepared).join();
+        shard.getStorage().close();
+
+        CacheBox reopened = open("shard0.cbx", new CommitDecisionLog(prefix + ".decisions", dbFile -> 0));
+        assertTrue(TxIdManager.getInstance().getNextTxId() > prepared);
+        assertNull(reopened.getCommitted("x"));
+        reopened.getStorage().close();
+
+        ShardedCacheBox store = new ShardedCacheBox(1, prefix, null, false, null, 100);
+        assertTrue(TxIdManager.getInstance().getNextTxId() > decided);
+        close(store);
+    }
+
+    // Crashes after both shards are prepared, before the second phase
+    private void assertRecoveredAfterPrepare(boolean decided) throws IOException {
+        String decisionFile = dir.resolve("shard.decisions").toString();
+        CommitDecisionLog decisions = new CommitDecisionLog(decisionFile, dbFile -> 0);
+        CacheBox a = open("a.cbx", decisions);
+        CacheBox b = open("b.cbx", decisions);
+        a.putAndCommit("before", CacheValue.of(0, "v"));
+        a.beginTransaction();
+        a.put("x", CacheValue.of(0, "x"));
+        b.beginTransaction();
+        b.put("y", CacheValue.of(0, "y"));
+        long lsnA = a.prepareCommit(42).join();
+        long lsnB = b.prepareCommit(42).join();
+        if (decided) {
+            decisions.commit(42, Map.of(a.getDbFile(), lsnA, b.getDbFile(), lsnB));
+        }
+        assertNull(a.getCommitted("x"));
+        a.getStorage().close();
+        b.getStorage().close();
+
+        CommitDecisionLog recovered = new CommitDecisionLog(decisionFile, dbFile -> 0);
+        assertEquals(decided, recovered.isCommitted(42));
+        CacheBox a2 = open("a.cbx", recovered);
+        CacheBox b2 = open("b.cbx", recovered);
+        assertEquals("v", a2.getCommitted("before").getValue());
+        if (decided) {
+            assertEquals("x", a2.getCommitted("x").getValue());
+            assertEquals("y", b2.getCommitted("y").getValue());
+        } else {
+            assertNull(a2.getCommitted("x"));
+            assertNull(b2.getCommitted("y"));
+        }
+        // The skipped entry's LSN is not handed out again
+        a2.putAndCommit("after", CacheValue.of(0, "v"));
+        a2.getStorage().close();
+        b2.getStorage().close();
+
+        CacheBox a3 = open("a.cbx", recovered);
+        assertEquals("v", a3.getCommitted("after").getValue());
+        assertEquals(decided, a3.getCommitted("x") != null);
+        a3.getStorage().close();
+    }
+
+    // Pages through every match, limit at a time, running between after each page
+    private static List<String> pageKeys(ShardedCacheBox store, CacheQuery query, int limit, Runnable between) {
+        List<String> keys = new ArrayList<>();
+        String cursor = null;
+        do {
+            SearchPage page = store.searchPage(query, cursor, 0, limit);
+            assertTrue(page.getEntries().size() <= limit);
+            for (Map.Entry<String, CacheValue> entry : page.getEntries()) {
+                keys.add(entry.getKey());
+            }
+            cursor = page.getNextCursor();
+            between.run();
+        } while (cursor != null);
+        return keys;
+    }
+
+    @Test
+    public void testSearchPagesCoverEveryMatchOnceInKeyOrder() {
+        // Small enough that most keys are read back from the cold tier
+        ShardedCacheBox store = new ShardedCacheBox(4, dir.resolve("shard").toString(), null, false, null, 20);
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            String key = String.format("k%03d", i);
+            store.putAndCommit(key, CacheValue.of(0, i));
+            expected.add(key);
+        }
+        store.putAndCommit("other", CacheValue.of(0, 1));
+
+        CacheQuery pattern = new CacheQuery.Builder().withPattern("k.*").build();
+        assertEquals(expected, pageKeys(store, pattern, 30, () -> { }));
+        assertEquals(expected, pageKeys(store, pattern, 250, () -> { }));
+
+        CacheQuery range = new CacheQuery.Builder().withRange(100, 149).build();
+        assertEquals(expected.subList(100, 150), pageKeys(store, range, 7, () -> { }));
+
+        SearchPage skipped = store.searchPage(pattern, null, 245, 10);
+        assertEquals(expected.subList(245, 250), skipped.getEntries().stream().map(Map.Entry::getKey).toList());
+        assertNull(skipped.getNextCursor());
+        assertEquals(249, skipped.getEntries().get(4).getValue().intValue());
+        close(store);
+    }
+
+    @Test
+    public void testSearchPagesResumeAfterTheirCursorDespiteWrites() {
+        ShardedCacheBox store = new ShardedCacheBox(4, dir.resolve("shard").toString(), null, false, null, 1000);
+        for (int i = 0; i < 100; i += 2) {
+            store.putAndCommit(String.format("k%03d", i), CacheValue.of(0, i));
+        }
+        AtomicInteger page = new AtomicInteger();
+        List<String> keys = pageKeys(store, new CacheQuery.Builder().withPattern("k.*").build(), 10, () -> {
+            int p = page.getAndIncrement();
+            // An odd key in a page already read, one in a page still to come, and a delete
+            store.putAndCommit(String.format("k%03d", p * 20 + 1), CacheValue.of(0, 0));
+            store.putAndCommit(String.format("k%03d", 99 - p), CacheValue.of(0, 0));
+            store.deleteAndCommit(String.format("k%03d", 98 - 2 * p));
+        });
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0, "out of order or repeated: " + keys);
+        }
+        // Every even key that was never deleted is seen
+        for (int i = 0; i < 100; i += 2) {
+            String key = String.format("k%03d", i);
+            if (store.getCommitted(key) != null) {
+                assertTrue(keys.contains(key), key + " skipped");
+            }
+        }
+        assertThrows(IllegalArgumentException.class, () -> store.searchPage(
+                new CacheQuery.Builder().withPattern("k.*").build(), "not base64!", 0, 10));
+        close(store);
+    }
 }
@@ -0,0 +1,77 @@
+package org.athens.db.core;
+
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SortedValueIndexTest {
+
+    private static SortedValueIndex index(Object... keysAndValues) {
+        SortedValueIndex index = new SortedValueIndex();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            Object value = keysAndValues[i + 1];
+            index.put((String) keysAndValues[i], value instanceof Double d ? CacheValue.of(0, d)
+                    : value instanceof Long l ? CacheValue.of(0, l) : CacheValue.of(0, (Integer) value));
+        }
+        return index;
+    }
+
+    @Test
+    public void testBoundsAreInclusive() {
+        SortedValueIndex index = index("a", 1, "b", 2, "c", 3, "d", 4);
+        assertEquals(List.of("b", "c"), index.keysBetween(2, 3));
+        assertEquals(List.of("a", "b", "c", "d"), index.keysBetween(1, 4));
+        assertEquals(List.of("c"), index.keysBetween(3, 3));
+        assertEquals(List.of(), index.keysBetween(2.5, 2.75));
+    }
+
+    @Test
+    public void testEqualValuesAreOrderedByKey() {
+        SortedValueIndex index = index("c", 5, "a", 5, "b", 5, "z", 4);
+        assertEquals(List.of("z", "a", "b", "c"), index.keysBetween(4, 5));
+        assertEquals(List.of("a", "b", "c"), index.keysBetween(5, 5));
+    }
+
+    @Test
+    public void testEmptyAndInvalidRanges() {
+        SortedValueIndex index = index("a", 1, "b", 2);
+        assertEquals(List.of(), index.keysBetween(2, 1));
+        assertEquals(List.of(), index.keysBetween(Double.NaN, 2));
+        assertEquals(List.of(), index.keysBetween(1, Double.NaN));
+        assertEquals(List.of("a", "b"), index.keysBetween(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY));
+        assertEquals(List.of(), new SortedValueIndex().keysBetween(0, 10));
+    }
+
+    @Test
+    public void testNegativeZeroEqualsZero() {
+        SortedValueIndex index = index("neg", -0.0, "pos", 0.0, "int", 0);
+        assertEquals(List.of("int", "neg", "pos"), index.keysBetween(0, 0));
+        assertEquals(List.of("int", "neg", "pos"), index.keysBetween(-0.0, -0.0));
+        assertEquals(List.of("int", "neg", "pos"), index.keysBetween(-0.0, 0.0));
+        assertEquals(List.of(), index.keysBetween(Double.MIN_VALUE, 1));
+        assertEquals(List.of(), index.keysBetween(-1, -Double.MIN_VALUE));
+    }
+
+    @Test
+    public void testExtremeValues() {
+        SortedValueIndex index = index("min", Long.MIN_VALUE, "max", Long.MAX_VALUE, "inf", Double.POSITIVE_INFINITY);
+        assertEquals(List.of("min"), index.keysBetween(Double.NEGATIVE_INFINITY, 0));
+        assertEquals(List.of("max", "inf"), index.keysBetween(0, Double.POSITIVE_INFINITY));
+    }
+
+    @Test
+    public void testUpdatesMoveKeys() {
+        SortedValueIndex index = index("a", 1, "b", 2);
+        index.put("a", CacheValue.of(1, 3));
+        assertEquals(List.of("b", "a"), index.keysBetween(0, 10));
+        index.put("b", CacheValue.of(1, "text"));
+        assertEquals(List.of("a"), index.keysBetween(0, 10));
+        index.remove("a");
+        index.remove("missing");
+        assertEquals(List.of(), index.keysBetween(0, 10));
+        assertEquals(0, index.size());
+    }
+}
@@ -0,0 +1,64 @@
+package org.athens.db.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TxIdManagerTest {
+
+    private static long highWaterMark() throws IOException {
+        return Long.parseLong(Files.readString(Path.of("last_txid.txt")).trim());
+    }
+
+    @Test
+    public void testConcurrentIdsAreUniqueAndReservedAcrossBlocks() throws Exception {
+        TxIdManager manager = TxIdManager.getInstance();
+        int threads = 8;
+        int perThread = (int) TxIdManager.BLOCK_SIZE / 2;
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        AtomicInteger unordered = new AtomicInteger();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                long previous = 0;
+                for (int i = 0; i < perThread; i++) {
+                    long txId = manager.getNextTxId();
+                    if (txId <= previous) {
+                        unordered.incrementAndGet();
+                    }
+                    previous = txId;
+                    ids.add(txId);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        assertEquals(threads * perThread, ids.size(), "duplicate ids");
+        assertEquals(0, unordered.get(), "ids going backwards on one thread");
+        // Every id handed out is covered by the persisted reservation
+        long highest = ids.stream().mapToLong(Long::longValue).max().orElseThrow();
+        assertTrue(highWaterMark() >= highest);
+    }
+
+    @Test
+    public void testObservedIdsOnlyRaiseAllocation() throws IOException {
+        TxIdManager manager = TxIdManager.getInstance();
+        long current = manager.getNextTxId();
+        manager.observeTxId(current - 10);
+        assertEquals(current + 1, manager.getNextTxId());
+
+        long observed = current + 2 * TxIdManager.BLOCK_SIZE + 5;
+        manager.observeTxId(observed);
+        assertEquals(observed + 1, manager.getNextTxId());
+        assertTrue(highWaterMark() > observed);
+    }
+}
@@ -0,0 +1,170 @@
+package org.athens.db.core;
+
+import org.athens.db.storage.Durability;
+import org.athens.db.storage.ParallelRecordReader;
+import org.athens.db.storage.RecordCodec;
+import org.athens.db.storage.ValueCodec;
+import org.athens.db.storage.WriteAheadLog;
+import org.athens.utils.CacheValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static final ValueCodec CODEC = new ValueCodec() {
+        @Override
+        public byte[] encode(CacheValue value, boolean encrypted) {
+            return RecordCodec.encodeValue(value);
+        }
+
+        @Override
+        public CacheValue decode(ByteBuffer payload, boolean encrypted) {
+            return RecordCodec.decodeValue(payload);
+        }
+
+        @Override
+        public CacheValue decodeLegacy(String data, boolean encrypted) {
+            return CacheValue.deserialize(data);
+        }
+    };
+
+    private Path logFile() {
+        return dir.resolve("db.cbx.wal");
+    }
+
+    private WriteAheadLog open() {
+        return new WriteAheadLog(logFile().toString(), CODEC, new ParallelRecordReader(), Long.MAX_VALUE, 3600);
+    }
+
+    private static byte[] batch(String key, long lsn) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RecordCodec.writePut(out, key, RecordCodec.encodeValue(CacheValue.of(1, key)));
+        RecordCodec.writeDelete(out, "gone");
+        RecordCodec.writeCommit(out, lsn);
+        return out.toByteArray();
+    }
+
+    private static void append(WriteAheadLog log, String key, long lsn) throws IOException {
+        WriteAheadLog.await(log.append(batch(key, lsn), false, Durability.ALWAYS));
+    }
+
+    // Replays everything after afterLsn into "key@lsn" entries
+    private static List<String> replay(WriteAheadLog log, long afterLsn) throws IOException {
+        List<String> commits = new ArrayList<>();
+        log.replay(afterLsn, (puts, deletions, lsn, txId) -> {
+            assertEquals(List.of("gone"), List.copyOf(deletions));
+            for (String key : puts.keySet()) {
+                commits.add(key + "@" + lsn);
+            }
+        });
+        return commits;
+    }
+
+    @Test
+    public void testReplaysCommitsAfterTheGivenLsn() throws IOException {
+        WriteAheadLog log = open();
+        append(log, "a", 1);
+        append(log, "b", 2);
+        append(log, "c", 3);
+        log.close();
+
+        WriteAheadLog reopened = open();
+        assertEquals(List.of("a@1", "b@2", "c@3"), replay(reopened, 0));
+        assertEquals(List.of("c@3"), replay(reopened, 2));
+        assertEquals(3, reopened.replay(0, (puts, deletions, lsn, txId) -> { }));
+        assertEquals(5, reopened.replay(5, (puts, deletions, lsn, txId) -> { }));
+        reopened.close();
+    }
+
+    @Test
+    public void testTornTailIsCutBackToTheLastCommit() throws IOException {
+        WriteAheadLog log = open();
+        append(log, "a", 1);
+        append(log, "b", 2);
+        log.close();
+        long committed = Files.size(logFile());
+        byte[] third = batch("c", 3);
+        Files.write(logFile(), Arrays.copyOf(third, third.length - 1), StandardOpenOption.APPEND);
+
+        WriteAheadLog reopened = open();
+        assertEquals(List.of("a@1", "b@2"), replay(reopened, 0));
+        assertEquals(committed, Files.size(logFile()));
+        // New batches follow the last commit rather than the torn one
+        append(reopened, "d", 3);
+        reopened.close();
+
+        WriteAheadLog again = open();
+        assertEquals(List.of("a@1", "b@2", "d@3"), replay(again, 0));
+        again.close();
+    }
+
+    @Test
+    public void testBatchWithoutCommitRecordIsDropped() throws IOException {
+        WriteAheadLog log = open();
+        append(log, "a", 1);
+        log.close();
+        long committed = Files.size(logFile());
+        ByteArrayOutputStream uncommitted = new ByteArrayOutputStream();
+        RecordCodec.writePut(uncommitted, "b", RecordCodec.encodeValue(CacheValue.of(1, "b")));
+        Files.write(logFile(), uncommitted.toByteArray(), StandardOpenOption.APPEND);
+
+        WriteAheadLog reopened = open();
+        assertEquals(List.of("a@1"), replay(reopened, 0));
+        assertEquals(committed, Files.size(logFile()));
+        reopened.close();
+    }
+
+    @Test
+    public void testReplayStopsAtCorruptFrame() throws IOException {
+        WriteAheadLog log = open();
+        append(log, "a", 1);
+        append(log, "b", 2);
+        append(log, "c", 3);
+        log.close();
+        byte[] bytes = Files.readAllBytes(logFile());
+        // The last byte of the second batch's put
+        int second = RecordCodec.HEADER_SIZE + batch("a", 1).length;
+        int corrupt = second + RecordCodec.FRAME_OVERHEAD + ByteBuffer.wrap(bytes).getInt(second) - 1;
+        bytes[corrupt] ^= 0x01;
+        Files.write(logFile(), bytes);
+
+        WriteAheadLog reopened = open();
+        assertEquals(List.of("a@1"), replay(reopened, 0));
+        assertEquals(second, Files.size(logFile()));
+        reopened.close();
+    }
+
+    @Test
+    public void testCheckpointDeletesCoveredFiles() throws IOException {
+        WriteAheadLog log = open();
+        log.register(log::currentLsn);
+        log.observeLsn(2);
+        append(log, "a", 1);
+        append(log, "b", 2);
+        log.checkpoint();
+        assertEquals(0, log.getDiskUsage());
+
+        log.observeLsn(3);
+        append(log, "c", 3);
+        log.close();
+
+        WriteAheadLog reopened = open();
+        assertEquals(List.of("c@3"), replay(reopened, 2));
+        reopened.close();
+    }
+}
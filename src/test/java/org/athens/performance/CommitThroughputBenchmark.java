@@ -0,0 +1,100 @@
+package org.athens.performance;
+
+import org.athens.db.core.CacheBox;
+import org.athens.db.storage.Durability;
+import org.athens.utils.CacheValue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures commits per second with 1, 16 and 256 concurrent clients committing
+ * single-key transactions to one store. With {@link Durability#ALWAYS} every
+ * commit waits for the transaction log fsync, so throughput beyond one client
+ * comes from group commit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CommitThroughputBenchmark {
+
+    @Param({"ALWAYS", "PERIODIC", "NONE"})
+    private Durability durability;
+
+    private CacheBox cacheBox;
+    private String dbFile;
+    private final AtomicInteger clientIds = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Client {
+        private String prefix;
+        private int counter;
+
+        @Setup
+        public void setup(CommitThroughputBenchmark benchmark) {
+            prefix = "client-" + benchmark.clientIds.incrementAndGet() + "-";
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dbFile = "benchmark_commit_" + System.nanoTime() + ".cbx";
+        cacheBox = new CacheBox(dbFile, 100_000);
+        cacheBox.setDurability(durability);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cacheBox.getStorage().close();
+        File directory = new File(dbFile).getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(dbFile));
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private void commitOne(Client client) {
+        cacheBox.beginTransaction();
+        cacheBox.put(client.prefix + (client.counter++ % 1000), CacheValue.of(0, client.counter));
+        cacheBox.commit();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void commits1Client(Client client) {
+        commitOne(client);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void commits16Clients(Client client) {
+        commitOne(client);
+    }
+
+    @Benchmark
+    @Threads(256)
+    public void commits256Clients(Client client) {
+        commitOne(client);
+    }
+
+    // Method to run the benchmark from IDE
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CommitThroughputBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
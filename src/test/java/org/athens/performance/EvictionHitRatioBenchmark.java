@@ -0,0 +1,131 @@
+package org.athens.performance;
+
+import org.athens.db.eviction.EvictingMap;
+import org.athens.db.eviction.EvictionPolicy;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays a key-access trace against every {@link EvictionPolicy} and reports
+ * the hit ratio, next to the time each replay takes.
+ * <p>
+ * The default trace is synthetic: Zipf-distributed (s = 0.99) requests over
+ * 100,000 keys, interrupted every 100,000 requests by a scan over 20,000 keys
+ * that are never requested again, like a walk over the whole store. A real
+ * trace, one key per line, can be replayed instead with {@code -Dtrace.file=}.
+ * A miss is followed by a put, as a read-through cache would do.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class EvictionHitRatioBenchmark {
+    private static final int KEYS = 100_000;
+    private static final int REQUESTS = 1_000_000;
+    private static final int SCAN_INTERVAL = 100_000;
+    private static final int SCAN_LENGTH = 20_000;
+
+    @Param({"LRU", "LFU", "FIFO", "RANDOM_SAMPLE", "W_TINY_LFU"})
+    private EvictionPolicy policy;
+
+    @Param({"1000", "10000"})
+    private int cacheSize;
+
+    private String[] trace;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class HitCounters {
+        public long hits;
+        public long misses;
+
+        public double hitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        trace = loadTrace();
+    }
+
+    static String[] loadTrace() throws IOException {
+        String traceFile = System.getProperty("trace.file");
+        if (traceFile != null) {
+            List<String> lines = Files.readAllLines(Path.of(traceFile));
+            return lines.toArray(new String[0]);
+        }
+        return syntheticTrace();
+    }
+
+    private static String[] syntheticTrace() {
+        double[] cumulative = new double[KEYS];
+        double sum = 0;
+        for (int i = 0; i < KEYS; i++) {
+            sum += 1 / Math.pow(i + 1, 0.99);
+            cumulative[i] = sum;
+        }
+        Random random = new Random(42); // Fixed seed for reproducibility
+        String[] trace = new String[REQUESTS];
+        int scanKey = KEYS;
+        for (int i = 0; i < REQUESTS; i++) {
+            if (i % SCAN_INTERVAL >= SCAN_INTERVAL - SCAN_LENGTH) {
+                trace[i] = "key-" + scanKey++;
+                continue;
+            }
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * sum);
+            trace[i] = "key-" + (rank >= 0 ? rank : -rank - 1);
+        }
+        return trace;
+    }
+
+    static double replay(String[] trace, EvictingMap<String, String> cache, HitCounters counters) {
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                counters.hits++;
+            } else {
+                counters.misses++;
+                cache.put(key, key);
+            }
+        }
+        return counters.hitRatio();
+    }
+
+    @Benchmark
+    public double replayTrace(HitCounters counters) {
+        return replay(trace, policy.newMap(cacheSize), counters);
+    }
+
+    // Prints the hit ratio of every policy without running JMH
+    public static void main(String[] args) throws RunnerException, IOException {
+        if (args.length > 0 && args[0].equals("--hit-ratio")) {
+            String[] trace = loadTrace();
+            for (int cacheSize : new int[]{1000, 10000}) {
+                for (EvictionPolicy policy : EvictionPolicy.values()) {
+                    double hitRatio = replay(trace, policy.newMap(cacheSize), new HitCounters());
+                    System.out.printf("%-14s size=%-6d hit ratio %.4f%n", policy, cacheSize, hitRatio);
+                }
+            }
+            return;
+        }
+        Options opt = new OptionsBuilder()
+                .include(EvictionHitRatioBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -1,85 +1,137 @@
-//package org.athens.performance;
-//
-//
-//import org.athens.db.core.LRUCache;
-//import org.openjdk.jmh.annotations.*;
-//import org.openjdk.jmh.runner.Runner;
-//import org.openjdk.jmh.runner.RunnerException;
-//import org.openjdk.jmh.runner.options.Options;
-//import org.openjdk.jmh.runner.options.OptionsBuilder;
-//
-//import java.util.Random;
-//import java.util.concurrent.TimeUnit;
-//
-//@BenchmarkMode(Mode.AverageTime)
-//@OutputTimeUnit(TimeUnit.MICROSECONDS)
-//@State(Scope.Benchmark)
-//@Fork(value = 1, warmups = 1)
-//@Warmup(iterations = 3, time = 1)
-//@Measurement(iterations = 5, time = 1)
-//public class LRUCacheBenchmark {
-//
-//    @Param({"100", "1000", "10000"})
-//    private int cacheSize;
-//
-//    @Param({"0.2", "0.5", "0.8"})
-//    private double hitRatio;
-//
-//    private LRUCache<Integer, String> cache;
-//    private Integer[] keys;
-//    private Random random;
-//    private int dataSize;
-//
-//    @Setup
-//    public void setup() {
-//        cache = new LRUCache<>(cacheSize);
-//        random = new Random(42); // Fixed seed for reproducibility
-//
-//        // Create data with size larger than cache to force evictions
-//        dataSize = (int)(cacheSize * 1.5);
-//        keys = new Integer[dataSize];
-//
-//        // Initialize data
-//        for (int i = 0; i < dataSize; i++) {
-//            keys[i] = i;
-//            cache.put(i, "Value-" + i);
-//        }
-//    }
-//
-//    @Benchmark
-//    public String measureGetHit() {
-//        // Select keys that are likely to be in cache based on hit ratio
-//        int index = random.nextInt((int)(cacheSize * hitRatio));
-//        return cache.get(keys[index]);
-//    }
-//
-//    @Benchmark
-//    public String measureGetMiss() {
-//        // Select keys that are likely to be evicted
-//        int index = random.nextInt(dataSize - cacheSize) + cacheSize;
-//        return cache.get(keys[index]);
-//    }
-//
-//    @Benchmark
-//    public String measurePut() {
-//        int key = random.nextInt(dataSize);
-//        return cache.put(key, "NewValue-" + key);
-//    }
-//
-//    @Benchmark
-//    public void measureEviction() {
-//        // Force eviction by putting new entries
-//        int newKey = dataSize + random.nextInt(1000);
-//        cache.put(newKey, "EvictionValue-" + newKey);
-//    }
-//
-//    // Method to run the benchmark from IDE
-//    public static void main(String[] args) throws RunnerException {
-//        Options opt = new OptionsBuilder()
-//                .include(LRUCacheBenchmark.class.getSimpleName())
-//                .forks(1)
-//                .build();
-//
-//        new Runner(opt).run();
-//    }
-//}
\ No newline at end of file
+package org.athens.performance;
+
+
+import org.athens.db.core.LRUCache;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link LRUCache} with the access-ordered {@link LinkedHashMap} it
+ * replaced, made thread-safe the only way that map can be: one lock around
+ * every call, since even {@code get} reorders it. The {@code mixed} benchmarks
+ * run 90% gets and 10% puts from 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, warmups = 1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class LRUCacheBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    private int cacheSize;
+
+    @Param({"0.2", "0.5", "0.8"})
+    private double hitRatio;
+
+    @Param({"LRUCache", "SynchronizedLinkedHashMap"})
+    private String implementation;
+
+    private Map<Integer, String> cache;
+    private Integer[] keys;
+    private int dataSize;
+
+    @Setup
+    public void setup() {
+        cache = implementation.equals("LRUCache") ? new LRUCache<>(cacheSize) : synchronizedLinkedHashMap(cacheSize);
+
+        // Create data with size larger than cache to force evictions
+        dataSize = (int)(cacheSize * 1.5);
+        keys = new Integer[dataSize];
+
+        // Initialize data
+        for (int i = 0; i < dataSize; i++) {
+            keys[i] = i;
+            cache.put(i, "Value-" + i);
+        }
+    }
+
+    private static Map<Integer, String> synchronizedLinkedHashMap(int maxSize) {
+        return Collections.synchronizedMap(new LinkedHashMap<>(maxSize, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String> eldest) {
+                return size() > maxSize;
+            }
+        });
+    }
+
+    @Benchmark
+    public String measureGetHit() {
+        // Select keys that are likely to be in cache based on hit ratio
+        int index = ThreadLocalRandom.current().nextInt((int)(cacheSize * hitRatio));
+        return cache.get(keys[index]);
+    }
+
+    @Benchmark
+    public String measureGetMiss() {
+        // Select keys that are likely to be evicted
+        int index = ThreadLocalRandom.current().nextInt(dataSize - cacheSize) + cacheSize;
+        return cache.get(keys[index]);
+    }
+
+    @Benchmark
+    public String measurePut() {
+        int key = ThreadLocalRandom.current().nextInt(dataSize);
+        return cache.put(key, "NewValue-" + key);
+    }
+
+    @Benchmark
+    public void measureEviction() {
+        // Force eviction by putting new entries
+        int newKey = dataSize + ThreadLocalRandom.current().nextInt(1000);
+        cache.put(newKey, "EvictionValue-" + newKey);
+    }
+
+    private String mixed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int index = random.nextInt(dataSize);
+        if (random.nextInt(10) == 0) {
+            return cache.put(keys[index], "NewValue-" + index);
+        }
+        return cache.get(keys[random.nextDouble() < hitRatio ? index % cacheSize : index]);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String mixed1Thread() {
+        return mixed();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String mixed4Threads() {
+        return mixed();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String mixed16Threads() {
+        return mixed();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String mixed64Threads() {
+        return mixed();
+    }
+
+    // Method to run the benchmark from IDE
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(LRUCacheBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,152 @@
+package org.athens.performance;
+
+import org.athens.db.core.MvccStore;
+import org.athens.db.eviction.EvictionPolicy;
+import org.athens.db.offheap.OffHeapValueStore;
+import org.athens.utils.CacheValue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a store keeping its values on heap with one keeping them in an
+ * {@link OffHeapValueStore}: the time and garbage collection pauses of a burst
+ * of reads and updates against a full store, and, with {@code --footprint},
+ * the heap left in use after a full collection.
+ * <p>
+ * Values are lists of three short strings, like most list values in practice.
+ * The 10M case needs a large heap and enough direct memory, e.g.
+ * {@code -Xmx12g -XX:MaxDirectMemorySize=8g}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx12g", "-XX:MaxDirectMemorySize=8g"})
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class OffHeapStoreBenchmark {
+    private static final int OPERATIONS = 1_000_000;
+
+    @Param({"HEAP", "OFF_HEAP"})
+    private String store;
+
+    @Param({"1000000", "10000000"})
+    private int entries;
+
+    private MvccStore mvccStore;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class GcCounters {
+        public long gcCount;
+        public long gcPauseMillis;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mvccStore = populate(store.equals("OFF_HEAP"), entries);
+    }
+
+    static MvccStore populate(boolean offHeap, int entries) {
+        MvccStore mvccStore = new MvccStore(Integer.MAX_VALUE, EvictionPolicy.LRU, null,
+                offHeap ? new OffHeapValueStore() : null);
+        for (int i = 0; i < entries; i++) {
+            mvccStore.load("key-" + i, value(i));
+        }
+        return mvccStore;
+    }
+
+    private static CacheValue value(int i) {
+        return CacheValue.of(1, List.of("user-" + i, "group-" + (i % 100), "active"));
+    }
+
+    // Reads and updates random keys, as a shard under a mixed load would
+    static void churn(MvccStore mvccStore, int entries, GcCounters counters) {
+        long gcCount = totalGcCount();
+        long gcMillis = totalGcMillis();
+        Random random = new Random(42); // Fixed seed for reproducibility
+        for (int i = 0; i < OPERATIONS; i++) {
+            String key = "key-" + random.nextInt(entries);
+            if (i % 4 == 0) {
+                MvccStore.Snapshot snapshot = mvccStore.openSnapshot();
+                try {
+                    mvccStore.commit(snapshot, Map.of(key, value(i)), List.of());
+                } finally {
+                    snapshot.close();
+                }
+            } else {
+                mvccStore.get(key);
+            }
+        }
+        counters.gcCount += totalGcCount() - gcCount;
+        counters.gcPauseMillis += totalGcMillis() - gcMillis;
+    }
+
+    private static long totalGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long totalGcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Benchmark
+    public void readAndUpdate(GcCounters counters) {
+        churn(mvccStore, entries, counters);
+    }
+
+    // Prints heap and off-heap footprint and collection pauses for both stores without running JMH
+    public static void main(String[] args) throws RunnerException {
+        if (args.length > 0 && args[0].equals("--footprint")) {
+            int entries = args.length > 1 ? Integer.parseInt(args[1]) : 10_000_000;
+            for (boolean offHeap : new boolean[]{false, true}) {
+                long baseline = usedHeapAfterGc();
+                long start = System.nanoTime();
+                MvccStore mvccStore = populate(offHeap, entries);
+                long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                long heap = usedHeapAfterGc() - baseline;
+                long fullGcStart = System.nanoTime();
+                System.gc();
+                long fullGcMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - fullGcStart);
+                GcCounters counters = new GcCounters();
+                churn(mvccStore, entries, counters);
+                OffHeapValueStore values = mvccStore.getOffHeapStore();
+                System.out.printf("%-8s entries=%d load=%dms heap=%dMB off-heap=%dMB full gc=%dms"
+                                + " churn gcs=%d gc pause=%dms%n",
+                        offHeap ? "OFF_HEAP" : "HEAP", entries, loadMillis, heap >> 20,
+                        values != null ? values.getReservedBytes() >> 20 : 0, fullGcMillis,
+                        counters.gcCount, counters.gcPauseMillis);
+            }
+            return;
+        }
+        Options opt = new OptionsBuilder()
+                .include(OffHeapStoreBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
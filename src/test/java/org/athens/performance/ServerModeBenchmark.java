@@ -0,0 +1,180 @@
+package org.athens.performance;
+
+import org.athens.network.Server;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the server's connection modes with many clients connected at
+ * once: BLOCKING, a fixed pool of platform threads, VIRTUAL, a virtual thread
+ * per connection, and NIO for reference.
+ * <p>
+ * An operation is a round in which every connection sends a GET and waits for
+ * its reply. A BLOCKING server only serves as many connections as its pool
+ * has threads, so in its rounds with more connections the rest time out after
+ * {@link #REPLY_TIMEOUT_MILLIS}; they are counted and dropped rather than
+ * waited for again.
+ * <p>
+ * The clients run in the same process as the server, which then needs about
+ * two file descriptors per connection, e.g. {@code ulimit -n 32768}. Pinned
+ * virtual threads are reported on standard output.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {"-Djdk.tracePinnedThreads=short"})
+@Warmup(iterations = 1, time = 10)
+@Measurement(iterations = 3, time = 10)
+public class ServerModeBenchmark {
+    private static final int PORT = 20029;
+    private static final int REPLY_TIMEOUT_MILLIS = 5000;
+    private static final byte[] GET = "*2\r\n$3\r\nGET\r\n$5\r\nbench\r\n".getBytes(StandardCharsets.UTF_8);
+
+    @Param({"BLOCKING", "VIRTUAL", "NIO"})
+    private String mode;
+
+    @Param({"100", "1000", "10000"})
+    private int connections;
+
+    private final List<Client> clients = new ArrayList<>();
+    private ExecutorService clientThreads;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Replies {
+        public long timeouts;
+    }
+
+    private static final class Client {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private volatile boolean dropped;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        String request(byte[] request) throws IOException {
+            out.write(request);
+            out.flush();
+            String line = readLine();
+            // A bulk string reply has its data on a second line
+            return line.startsWith("$") ? readLine() : line;
+        }
+
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != '\n') {
+                if (c == -1) {
+                    throw new IOException("Connection closed");
+                }
+                line.append((char) c);
+            }
+            return line.toString().trim();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Every trial runs in a fork of its own, so the mode can be set before the server class loads
+        System.setProperty("cachebox.io", mode);
+        new File("db_files").mkdirs();
+        Thread server = new Thread(Server::main, "benchmark-server");
+        server.setDaemon(true);
+        server.start();
+
+        // The first connection is always served, also by a BLOCKING server, so it stores the key
+        Client first = connect(100);
+        first.request(("*4\r\n$3\r\nPUT\r\n$6\r\nstring\r\n$5\r\nbench\r\n$5\r\nvalue\r\n").getBytes(StandardCharsets.UTF_8));
+        clients.add(first);
+        for (int i = 1; i < connections; i++) {
+            clients.add(connect(1));
+        }
+        clientThreads = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    private static Client connect(int attempts) throws Exception {
+        for (int i = 1; ; i++) {
+            try {
+                Socket socket = new Socket("localhost", PORT);
+                socket.setSoTimeout(REPLY_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                return new Client(socket);
+            } catch (IOException e) {
+                if (i >= attempts) {
+                    throw e;
+                }
+                Thread.sleep(100); // The server is still starting
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        clientThreads.shutdownNow();
+        for (Client client : clients) {
+            client.socket.close();
+        }
+    }
+
+    @Benchmark
+    public int round(Replies replies) throws Exception {
+        AtomicInteger served = new AtomicInteger();
+        AtomicInteger timeouts = new AtomicInteger();
+        List<Future<?>> pending = new ArrayList<>(clients.size());
+        for (Client client : clients) {
+            if (client.dropped) {
+                continue;
+            }
+            pending.add(clientThreads.submit(() -> {
+                try {
+                    client.request(GET);
+                    served.incrementAndGet();
+                } catch (SocketTimeoutException e) {
+                    // Out of step now; closing it also frees the server thread it may hold
+                    client.dropped = true;
+                    client.socket.close();
+                    timeouts.incrementAndGet();
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : pending) {
+            future.get();
+        }
+        replies.timeouts += timeouts.get();
+        return served.get();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(ServerModeBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
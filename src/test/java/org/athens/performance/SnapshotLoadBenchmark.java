@@ -0,0 +1,72 @@
+package org.athens.performance;
+
+import org.athens.db.core.Storage;
+import org.athens.db.encryption.AESEncryptionStrategy;
+import org.athens.utils.CacheValue;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures shard startup: loading an AES-encrypted snapshot through
+ * {@link Storage#loadWithRecovery(Map)}. The 10M case needs a large heap,
+ * e.g. {@code -Xmx8g}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+public class SnapshotLoadBenchmark {
+
+    @Param({"100000", "1000000", "10000000"})
+    private int entries;
+
+    private final byte[] key = "benchmark-key-16".getBytes();
+    private String dbFile;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dbFile = "benchmark_snapshot_" + entries + "_" + System.nanoTime() + ".cbx";
+        Map<String, CacheValue> store = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            store.put("key-" + i, i % 2 == 0 ? CacheValue.of(1, i) : CacheValue.of(1, "value-" + i));
+        }
+        Storage storage = new Storage(dbFile, true, key, new AESEncryptionStrategy());
+        storage.saveToDisk(store);
+        storage.close();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        new File(dbFile).delete();
+        new File(dbFile + ".wal").delete();
+    }
+
+    @Benchmark
+    public Map<String, CacheValue> measureStartup() {
+        Map<String, CacheValue> store = new HashMap<>();
+        Storage storage = new Storage(dbFile, true, key, new AESEncryptionStrategy());
+        storage.loadWithRecovery(store);
+        storage.close();
+        return store;
+    }
+
+    // Method to run the benchmark from IDE
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(SnapshotLoadBenchmark.class.getSimpleName())
+                .forks(1)
+                .build();
+
+        new Runner(opt).run();
+    }
+}